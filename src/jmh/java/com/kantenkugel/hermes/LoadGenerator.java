@@ -0,0 +1,334 @@
+package com.kantenkugel.hermes;
+
+import com.kantenkugel.common.Histogram;
+import com.kantenkugel.common.LaneExecutor;
+import com.kantenkugel.hermes.benchmark.FakeDiscord;
+import com.kantenkugel.hermes.guildConfig.IGuildConfig;
+import com.kantenkugel.hermes.guildConfig.IGuildConfigProvider;
+import com.kantenkugel.hermes.guildConfig.JSONGuildConfigProvider;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageUpdateEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Synthetic gateway load for a {@link Listener}: Generates message (and edit) events of chatter and commands
+ * (announce, mention, sub, config) in the guilds of a {@link FakeDiscord}, with REST requests answered by it.
+ * <p>
+ * Reports the event and command throughput, command latencies (p50 / p99, including the queue wait), outgoing request
+ * counts and latencies, the latency of the ConfigProvider and the allocation rate during the run.
+ * Runs are done per ConfigProvider, the JSON one uses a temporary file by default, the others have to be given their
+ * args (e.g. the jdbc string of a local PostgreSQL instance) after {@code --}.
+ * <p>
+ * Options are given as {@code key=value}, see {@link #DEFAULTS}. Example:
+ * {@code guilds=200 rate=5000 duration=120 provider=com.kantenkugel.hermes.guildConfig.PGGuildConfigProvider -- jdbc:postgresql://localhost/hermes_load?user=hermes&password=hermespw}
+ * <p>
+ * Lives in the Listener's package to signal readiness without a (real) ReadyEvent.
+ */
+public class LoadGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+    private static final String[] CHATTER = {
+            "anyone around?", "gg", "that was a close one", "who is streaming tonight?", "lol",
+            "did you see the patch notes? they changed pretty much everything about the early game",
+            "brb", "<@429705913734168576> is a bot, right?", "ok"
+    };
+    //number of recent announcements per generator thread which can be edited
+    private static final int EDITABLE_ANNOUNCEMENTS = 64;
+
+    static {
+        DEFAULTS.put("guilds", "50");
+        DEFAULTS.put("roles", "20");            //topic (announcement) roles per guild
+        DEFAULTS.put("members", "200");         //members per guild
+        DEFAULTS.put("announcers", "5");        //members per guild with the announcer role
+        DEFAULTS.put("channels", "5");          //text channels per guild
+        DEFAULTS.put("duration", "60");         //seconds
+        DEFAULTS.put("rate", "1000");           //messages per second over all threads
+        DEFAULTS.put("threads", "2");           //generator threads (event threads)
+        DEFAULTS.put("commands", "0.2");        //share of messages which are commands
+        DEFAULTS.put("edits", "0.02");          //share of messages which are edits of earlier announcements
+        DEFAULTS.put("restLatency", "50");      //average ms until a REST request completes
+        DEFAULTS.put("restFailures", "0");      //share of failing REST requests
+        DEFAULTS.put("restThreads", "4");
+        DEFAULTS.put("mentionEveryone", "false");
+        DEFAULTS.put("provider", JSONGuildConfigProvider.class.getName());
+    }
+
+    private final FakeDiscord discord;
+    private final Listener listener;
+    private final String prefix;
+    private final double commandShare;
+    private final double editShare;
+    private final AtomicLong responseNumber = new AtomicLong();
+    private final Histogram dispatchLatency = new Histogram();
+
+    private LoadGenerator(FakeDiscord discord, Listener listener, double commandShare, double editShare) {
+        this.discord = discord;
+        this.listener = listener;
+        this.prefix = "<@" + discord.getSelfId() + "> ";
+        this.commandShare = commandShare;
+        this.editShare = editShare;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        String providerArgs = null;
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("--")) {
+                providerArgs = String.join(" ", Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            }
+            int split = args[i].indexOf('=');
+            if(split < 0 || !DEFAULTS.containsKey(args[i].substring(0, split))) {
+                LOG.error("Unknown option {}, supported are {}", args[i], DEFAULTS.keySet());
+                System.exit(1);
+            }
+            options.put(args[i].substring(0, split), args[i].substring(split + 1));
+        }
+        //the bot reads its global config (command threads,...) on first use, without one it exits
+        if(System.getenv("token") == null && !Files.exists(Paths.get("config.json"))) {
+            LOG.error("Missing global config. Set the env variable token (any value) or provide a config.json");
+            System.exit(1);
+        }
+
+        Class<? extends IGuildConfigProvider> providerClass = Class.forName(options.get("provider")).asSubclass(IGuildConfigProvider.class);
+        if(providerArgs == null && providerClass == JSONGuildConfigProvider.class)
+            providerArgs = Files.createTempDirectory("hermes-load").resolve("guildSettings.json").toString();
+        IGuildConfigProvider provider = IGuildConfigProvider.getFromClass(providerClass, providerArgs);
+
+        FakeDiscord discord = new FakeDiscord(intOption(options, "guilds"), intOption(options, "roles"),
+                intOption(options, "members"), intOption(options, "announcers"), intOption(options, "channels"),
+                Boolean.parseBoolean(options.get("mentionEveryone")), Long.parseLong(options.get("restLatency")),
+                Double.parseDouble(options.get("restFailures")), intOption(options, "restThreads"));
+        LOG.info("Running load test with {} (args: {})", options, providerArgs);
+
+        long setupStart = System.nanoTime();
+        seedConfigs(discord, provider);
+        LOG.info("Seeded configs of {} guilds in {}ms", discord.getGuildCount(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupStart));
+
+        Listener listener = new Listener(provider);
+        listener.ready(discord.getJDA());
+        LoadGenerator generator = new LoadGenerator(discord, listener, Double.parseDouble(options.get("commands")),
+                Double.parseDouble(options.get("edits")));
+        generator.run(intOption(options, "threads"), Double.parseDouble(options.get("rate")),
+                TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration"))), provider.getClass().getSimpleName());
+        discord.close();
+        //flushes pending config writes via the providers' shutdown hooks
+        System.exit(0);
+    }
+
+    private static int intOption(Map<String, String> options, String key) {
+        return Integer.parseInt(options.get(key));
+    }
+
+    //announcer role, topic roles as announcement roles and subscriptions enabled, stored via the provider
+    private static void seedConfigs(FakeDiscord discord, IGuildConfigProvider provider) {
+        for(int i = 0; i < discord.getGuildCount(); i++) {
+            FakeDiscord.FakeGuild guild = discord.getGuild(i);
+            IGuildConfig config = provider.getConfigForGuild(guild.getGuild());
+            config.addAnnouncerRole(guild.getAnnouncerRole());
+            for(Role role : guild.getTopicRoles())
+                config.addAnnouncementRole(role);
+            config.setSubscriptionsEnabled(true);
+            config.update();
+        }
+    }
+
+    private void run(int threadCount, double rate, long durationNanos, String providerName) throws InterruptedException {
+        //one message per channel, so the mention command finds previous authors
+        for(int i = 0; i < discord.getGuildCount(); i++) {
+            FakeDiscord.FakeGuild guild = discord.getGuild(i);
+            for(int c = 0; c < guild.getChannelCount(); c++)
+                dispatch(new GuildMessageReceivedEvent(discord.getJDA(), responseNumber.incrementAndGet(),
+                        guild.createMessage(c, guild.getMemberCount() - 1, "hello")));
+        }
+
+        LaneExecutor executor = listener.getCommandExecutor();
+        long executedBefore = executor.getExecutedCount();
+        long waitBefore = executor.getTotalWaitNanos();
+        long allocatedBefore = allocatedBytes();
+        long[] gcBefore = gcStats();
+
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(threadCount) / rate);
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        List<Thread> threads = new ArrayList<>(threadCount);
+        for(int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(() -> generate(start, end, intervalNanos), "LoadGenerator-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        while(System.nanoTime() < end) {
+            Thread.sleep(Math.min(5000, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()) + 1));
+            LOG.info("{} events dispatched, {} commands executed, {} queued", dispatchLatency.getCount(),
+                    executor.getExecutedCount() - executedBefore, executor.getQueuedCount());
+        }
+        for(Thread thread : threads)
+            thread.join();
+        long generated = System.nanoTime() - start;
+
+        //let queued commands and outgoing requests finish, so their latencies are part of the report
+        OutboundScheduler outbound = Utils.getOutboundScheduler();
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while(System.nanoTime() < drainDeadline && (executor.getQueuedCount() > 0 || executor.getActiveLaneCount() > 0
+                || outbound.getInFlightCount() > 0 || queuedRequests(outbound) > 0))
+            Thread.sleep(50);
+        long elapsed = System.nanoTime() - start;
+
+        long allocated = allocatedBytes() - allocatedBefore;
+        long[] gcAfter = gcStats();
+        long executed = executor.getExecutedCount() - executedBefore;
+        double seconds = generated / 1e9;
+
+        LOG.info("===== Load test results ({}) =====", providerName);
+        LOG.info("Events: {} ({} /s), dispatch p99 {}us", dispatchLatency.getCount(),
+                String.format("%.1f", dispatchLatency.getCount() / seconds), dispatchLatency.getPercentileNanos(99) / 1000);
+        LOG.info("Commands: {} executed ({} /s), {} rejected, {} failed, avg queue wait {}ms", executed,
+                String.format("%.1f", executed / seconds), executor.getRejectedCount(), executor.getFailedCount(),
+                executed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis((executor.getTotalWaitNanos() - waitBefore) / executed));
+        Map<String, Number> metrics = Utils.getMetrics().getValues();
+        for(Map.Entry<String, Number> metric : metrics.entrySet()) {
+            String name = metric.getKey();
+            if(name.endsWith(".count") && metric.getValue().longValue() > 0
+                    && (name.startsWith("hermes_command_latency_seconds.") || name.startsWith("hermes_persistence_latency_seconds.")
+                    || name.startsWith("hermes_rest_latency_seconds."))) {
+                String base = name.substring(0, name.length() - ".count".length());
+                LOG.info("{}: {} calls, p50 {}ms, p99 {}ms, max {}ms", base, metric.getValue(), millis(metrics.get(base + ".p50")),
+                        millis(metrics.get(base + ".p99")), millis(metrics.get(base + ".max")));
+            }
+        }
+        LOG.info("REST requests: {}", discord.getRequestCounts());
+        LOG.info("Allocated {}MB ({} MB/s, {} KB per event), {} GCs taking {}ms", allocated >> 20,
+                String.format("%.1f", allocated / 1048576.0 / (elapsed / 1e9)),
+                dispatchLatency.getCount() == 0 ? 0 : (allocated >> 10) / dispatchLatency.getCount(),
+                gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+    }
+
+    private void generate(long start, long end, long intervalNanos) {
+        JDA jda = discord.getJDA();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Message[] editable = new Message[EDITABLE_ANNOUNCEMENTS];
+        FakeDiscord.FakeGuild[] editableGuilds = new FakeDiscord.FakeGuild[EDITABLE_ANNOUNCEMENTS];
+        int editableCount = 0;
+        long next = start;
+        while(next < end) {
+            long now = System.nanoTime();
+            if(now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            next += intervalNanos;
+
+            FakeDiscord.FakeGuild guild = discord.getGuild(random.nextInt(discord.getGuildCount()));
+            double kind = random.nextDouble();
+            GenericEvent event;
+            if(kind < editShare && editableCount > 0) {
+                int index = random.nextInt(Math.min(editableCount, EDITABLE_ANNOUNCEMENTS));
+                Message original = editable[index];
+                event = new GuildMessageUpdateEvent(jda, responseNumber.incrementAndGet(),
+                        editableGuilds[index].editMessage(original, original.getContentRaw() + " (edited)"));
+            } else {
+                Message message = kind < editShare + commandShare ? command(guild, random) : chatter(guild, random);
+                //only announcements to a single role and channel can be edited
+                if(message.getContentRaw().startsWith(prefix + "announce ") && message.getContentRaw().indexOf(',') < 0) {
+                    editable[editableCount % EDITABLE_ANNOUNCEMENTS] = message;
+                    editableGuilds[editableCount++ % EDITABLE_ANNOUNCEMENTS] = guild;
+                }
+                event = new GuildMessageReceivedEvent(jda, responseNumber.incrementAndGet(), message);
+            }
+            dispatch(event);
+        }
+    }
+
+    private Message chatter(FakeDiscord.FakeGuild guild, ThreadLocalRandom random) {
+        return guild.createMessage(random.nextInt(guild.getChannelCount()), random.nextInt(guild.getMemberCount()),
+                CHATTER[random.nextInt(CHATTER.length)]);
+    }
+
+    //30% announce, 30% mention, 30% sub, 10% config
+    private Message command(FakeDiscord.FakeGuild guild, ThreadLocalRandom random) {
+        int channel = random.nextInt(guild.getChannelCount());
+        int announcer = random.nextInt(Math.max(1, guild.getAnnouncerCount()));
+        int kind = random.nextInt(10);
+        if(kind < 3) {
+            String role = topicRole(guild, random);
+            //some announcements go to multiple roles and channels
+            if(random.nextInt(10) == 0 && guild.getChannelCount() > 1) {
+                String targets = role + ", " + topicRole(guild, random) + " | " + guild.getChannel(0).getAsMention() + ' '
+                        + guild.getChannel(1).getAsMention();
+                return guild.createMessage(channel, announcer, prefix + "announce " + targets + " | Event starts in 10 minutes!");
+            }
+            return guild.createMessage(channel, announcer, prefix + "announce " + role + " | New stream is live, come watch!");
+        } else if(kind < 6) {
+            return guild.createMessage(channel, announcer, prefix + "mention " + topicRole(guild, random));
+        } else if(kind < 9) {
+            return guild.createMessage(channel, random.nextInt(guild.getMemberCount()), prefix + "sub " + topicRole(guild, random));
+        } else {
+            //the first member is the admin
+            return guild.createMessage(channel, 0, prefix + (random.nextBoolean() ? "config" : "config enablesubs true"));
+        }
+    }
+
+    private static String topicRole(FakeDiscord.FakeGuild guild, ThreadLocalRandom random) {
+        List<Role> roles = guild.getTopicRoles();
+        return roles.get(random.nextInt(roles.size())).getName().replace(' ', '_');
+    }
+
+    private void dispatch(GenericEvent event) {
+        long start = System.nanoTime();
+        try {
+            listener.onEvent(event);
+        } catch(RuntimeException ex) {
+            LOG.error("Listener threw an exception", ex);
+        }
+        dispatchLatency.recordSince(start);
+    }
+
+    private static int queuedRequests(OutboundScheduler outbound) {
+        int queued = 0;
+        for(OutboundScheduler.Priority priority : OutboundScheduler.Priority.values())
+            queued += outbound.getQueuedCount(priority);
+        return queued;
+    }
+
+    private static String millis(Number seconds) {
+        return seconds == null ? "-" : String.format("%.2f", seconds.doubleValue() * 1000);
+    }
+
+    //bytes allocated by all live threads, threads ending during the run are missing
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long sum = 0;
+        for(long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            sum += Math.max(0, allocated);
+        return sum;
+    }
+
+    private static long[] gcStats() {
+        long[] stats = new long[2];
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            stats[0] += Math.max(0, gc.getCollectionCount());
+            stats[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return stats;
+    }
+}
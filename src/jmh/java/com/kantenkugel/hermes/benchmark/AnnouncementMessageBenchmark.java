@@ -0,0 +1,59 @@
+package com.kantenkugel.hermes.benchmark;
+
+import com.kantenkugel.hermes.Utils;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.Role;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of announcement messages ({@link Utils#getAnnouncementMessage}) for a single role and a fan-out to
+ * several roles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnnouncementMessageBenchmark {
+    private static final String TEXT = "Game night starts in 10 minutes! Join the voice channel, " +
+            "this week we are playing something new. Bring snacks.";
+
+    private Member author;
+    private Role role;
+    private List<Role> roles;
+    private String avatarUrl;
+
+    @Setup
+    public void setup() {
+        roles = JdaStubs.roles(359029133412106241L, "Role ", 5);
+        role = roles.get(0);
+        author = JdaStubs.member("Some Announcer", "https://cdn.discordapp.com/avatars/183584227366158336/a_1b2c3d4e5f.gif",
+                Collections.emptyList());
+        avatarUrl = Utils.getAnnouncementAvatarUrl(author);
+    }
+
+    @Benchmark
+    public Message singleRole() {
+        return Utils.getAnnouncementMessage(role, TEXT, author);
+    }
+
+    @Benchmark
+    public Message multipleRoles() {
+        return Utils.getAnnouncementMessage(roles, TEXT, author.getEffectiveName(), avatarUrl);
+    }
+}
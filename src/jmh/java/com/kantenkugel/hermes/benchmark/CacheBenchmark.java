@@ -0,0 +1,132 @@
+package com.kantenkugel.hermes.benchmark;
+
+import com.kantenkugel.common.ConcurrentCache;
+import com.kantenkugel.common.FixedSizeCache;
+import com.kantenkugel.hermes.guildConfig.AbstractGuildConfigProvider;
+import com.kantenkugel.hermes.guildConfig.IGuildConfig;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guild config cache lookups under contention: The old {@link FixedSizeCache} (which is not thread-safe and therefore
+ * has to be wrapped in a synchronized map), the {@link ConcurrentCache} replacing it and the full
+ * {@link AbstractGuildConfigProvider#getConfigForGuild(long)} path on top of it.
+ * <p>
+ * Lookups follow a skewed distribution like real traffic: {@value #HOT_PERCENT}% of them hit a hot set of guilds
+ * (half the cache size), the rest is spread over four times the cache size, causing misses and evictions.
+ * Run with {@code -t <threads>} to change the contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+    private static final int HOT_PERCENT = 90;
+    //power of 2, so the cursor can wrap with a mask
+    private static final int KEY_COUNT = 1 << 16;
+    private static final Object VALUE = new Object();
+
+    @Param({"1000"})
+    public int cacheSize;
+
+    private Long[] keys;
+    private Map<Long, Object> fixedSizeCache;
+    private ConcurrentCache<Long, Object> concurrentCache;
+    private InMemoryProvider provider;
+
+    @Setup
+    public void setup() {
+        //keys are boxed up front, so boxing doesn't show up in the measurement
+        Random random = new Random(42);
+        keys = new Long[KEY_COUNT];
+        for(int i = 0; i < KEY_COUNT; i++) {
+            int bound = random.nextInt(100) < HOT_PERCENT ? cacheSize / 2 : cacheSize * 4;
+            keys[i] = 100_000_000_000_000_000L + random.nextInt(bound);
+        }
+        fixedSizeCache = Collections.synchronizedMap(new FixedSizeCache<>(cacheSize));
+        concurrentCache = new ConcurrentCache<>(cacheSize);
+        provider = new InMemoryProvider(cacheSize);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position;
+
+        @Setup
+        public void setup() {
+            //threads start at different offsets, so they don't walk the keys in lockstep
+            position = new Random().nextInt(KEY_COUNT);
+        }
+
+        private Long next(Long[] keys) {
+            return keys[position++ & (KEY_COUNT - 1)];
+        }
+    }
+
+    @Benchmark
+    public Object fixedSizeCache(Cursor cursor) {
+        return fixedSizeCache.computeIfAbsent(cursor.next(keys), key -> VALUE);
+    }
+
+    @Benchmark
+    public Object concurrentCache(Cursor cursor) {
+        return concurrentCache.computeIfAbsent(cursor.next(keys), key -> VALUE);
+    }
+
+    @Benchmark
+    public IGuildConfig providerLookup(Cursor cursor) {
+        return provider.getConfigForGuild(cursor.next(keys));
+    }
+
+    //provider without storage, so only the cache and config creation are measured
+    private static class InMemoryProvider extends AbstractGuildConfigProvider<InMemoryProvider.InMemoryConfig> {
+        private InMemoryProvider(int cacheSize) {
+            super(cacheSize);
+        }
+
+        @Override
+        protected InMemoryConfig createConfig(long guildId) {
+            return new InMemoryConfig(guildId);
+        }
+
+        @Override
+        protected InMemoryConfig getConfig(long guildId) {
+            return null;
+        }
+
+        @Override
+        public @NotNull Set<IGuildConfig> getAllConfigurations() {
+            return new HashSet<>(configCache.values());
+        }
+
+        private static class InMemoryConfig extends AbstractGuildConfig {
+            private InMemoryConfig(long guildId) {
+                super(guildId);
+            }
+
+            @Override
+            public void update() {}
+        }
+    }
+}
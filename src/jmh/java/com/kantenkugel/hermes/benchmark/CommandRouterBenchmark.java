@@ -0,0 +1,89 @@
+package com.kantenkugel.hermes.benchmark;
+
+import com.kantenkugel.hermes.command.CommandRouter;
+import com.kantenkugel.hermes.command.ICommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mention-prefix parsing and command lookup of every received message ({@link CommandRouter#route(String)}).
+ * Most messages the bot sees are not commands, so the rejection of plain messages matters as much as the lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandRouterBenchmark {
+    private static final String SELF_ID = "429705913734168576";
+
+    //same names as the commands registered by the Listener
+    private static final String[][] COMMAND_NAMES = {
+            {"announce"}, {"config", "configure"}, {"help"}, {"mention", "ping"},
+            {"sub", "subscribe", "unsub", "unsubscribe", "toggle"}
+    };
+
+    @Param({"command", "nicknameMention", "unknownCommand", "otherMention", "plain"})
+    public String message;
+
+    private CommandRouter router;
+    private String content;
+
+    @Setup
+    public void setup() {
+        router = new CommandRouter();
+        for(String[] names : COMMAND_NAMES)
+            router.register(new NamedCommand(names));
+        router.setSelfId(SELF_ID);
+
+        switch(message) {
+            case "command":
+                content = "<@" + SELF_ID + "> announce Game Night | Starting in 10 minutes, join the voice channel!";
+                break;
+            case "nicknameMention":
+                content = "<@!" + SELF_ID + ">   UNSUBSCRIBE game_night";
+                break;
+            case "unknownCommand":
+                content = "<@" + SELF_ID + "> subscription game_night";
+                break;
+            case "otherMention":
+                content = "<@!183584227366158336> did you see the announcement?";
+                break;
+            case "plain":
+                content = "hey everyone, is anyone up for a round later today?";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown message type " + message);
+        }
+    }
+
+    @Benchmark
+    public CommandRouter.Route route() {
+        return router.route(content);
+    }
+
+    private static class NamedCommand implements ICommand {
+        private final String[] names;
+
+        private NamedCommand(String[] names) {
+            this.names = names;
+        }
+
+        @Override
+        public String[] getNames() {
+            return names;
+        }
+    }
+}
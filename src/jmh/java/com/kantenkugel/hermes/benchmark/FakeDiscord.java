@@ -0,0 +1,667 @@
+package com.kantenkugel.hermes.benchmark;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageChannel;
+import net.dv8tion.jda.api.entities.PrivateChannel;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.entities.SelfUser;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.managers.RoleManager;
+import net.dv8tion.jda.api.requests.RestAction;
+import net.dv8tion.jda.api.requests.restaction.AuditableRestAction;
+import net.dv8tion.jda.api.requests.restaction.MessageAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Fake Discord for load tests: Guilds with roles, members and text channels made of {@link JdaStubs stub entities}.
+ * <p>
+ * Each guild has one announcer role ({@code Announcer}) held by the first members and topic roles ({@code Topic <n>})
+ * every member holds one of. The first member of each guild is an administrator.
+ * <p>
+ * REST requests don't leave the process: Stub actions complete on a local scheduler after a random latency
+ * (uniformly 50-150% of the configured one), optionally failing a share of them. Requests are counted per route.
+ * Role updates are applied to the fake members, so toggling a subscription twice adds and removes the role.
+ */
+public class FakeDiscord implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(FakeDiscord.class);
+    private static final long SELF_ID = 429705913734168576L;
+    private static final String ANNOUNCER_ROLE = "Announcer";
+    private static final String TOPIC_ROLE_PREFIX = "Topic ";
+
+    private final AtomicLong nextId = new AtomicLong(500_000_000_000_000_000L);
+    private final ScheduledExecutorService restExecutor;
+    private final long restLatencyNanos;
+    private final double restFailureRate;
+    private final boolean mentionEveryone;
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+
+    private final JDA jda;
+    private final SelfUser selfUser;
+    private final FakeGuild[] guilds;
+    private final Map<Long, FakeGuild> guildsById = new HashMap<>();
+
+    /**
+     * Creates a new fake Discord. Ids are assigned in order of creation, so the same parameters always create the same ids.
+     *
+     * @param   guildCount
+     *          The number of guilds
+     * @param   topicRoleCount
+     *          The number of topic (announcement) roles per guild
+     * @param   memberCount
+     *          The number of members per guild
+     * @param   announcerCount
+     *          The number of members per guild with the announcer role
+     * @param   channelCount
+     *          The number of text channels per guild
+     * @param   mentionEveryone
+     *          Whether the bot has the MENTION_EVERYONE permission. If not, roles have to be made mentionable for announcements
+     * @param   restLatency
+     *          The average latency of REST requests in milliseconds
+     * @param   restFailureRate
+     *          The share of REST requests failing, between 0 and 1
+     * @param   restThreads
+     *          The number of threads completing REST requests (running the callbacks)
+     */
+    public FakeDiscord(int guildCount, int topicRoleCount, int memberCount, int announcerCount, int channelCount,
+                       boolean mentionEveryone, long restLatency, double restFailureRate, int restThreads) {
+        this.restLatencyNanos = TimeUnit.MILLISECONDS.toNanos(restLatency);
+        this.restFailureRate = restFailureRate;
+        this.mentionEveryone = mentionEveryone;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.restExecutor = Executors.newScheduledThreadPool(restThreads, r -> {
+            Thread t = new Thread(r, "FakeDiscord-REST-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.selfUser = JdaStubs.proxy(SelfUser.class, "SelfUser", (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getIdLong":
+                    return SELF_ID;
+                case "getId":
+                    return Long.toUnsignedString(SELF_ID);
+                case "getName":
+                    return "Hermes";
+                case "getAsTag":
+                    return "Hermes#0000";
+                case "getAsMention":
+                    return "<@" + SELF_ID + '>';
+                case "isBot":
+                    return true;
+                default:
+                    return JdaStubs.NOT_STUBBED;
+            }
+        });
+
+        List<Guild> guildList = new ArrayList<>(guildCount);
+        this.guilds = new FakeGuild[guildCount];
+        this.jda = JdaStubs.proxy(JDA.class, "JDA", (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getSelfUser":
+                    return selfUser;
+                case "getGuilds":
+                    return guildList;
+                case "getGuildById": {
+                    FakeGuild guild = guildsById.get(toId(args[0]));
+                    return guild == null ? null : guild.guild;
+                }
+                case "getTextChannelById": {
+                    long id = toId(args[0]);
+                    for(FakeGuild guild : guilds) {
+                        TextChannel channel = guild.channelsById.get(id);
+                        if(channel != null)
+                            return channel;
+                    }
+                    return null;
+                }
+                case "getShardManager":
+                    return null;
+                case "getInviteUrl":
+                    return "https://discord.com/oauth2/authorize?client_id=" + SELF_ID + "&scope=bot";
+                default:
+                    return JdaStubs.NOT_STUBBED;
+            }
+        });
+        for(int i = 0; i < guildCount; i++) {
+            guilds[i] = new FakeGuild(topicRoleCount, memberCount, announcerCount, channelCount);
+            guildList.add(guilds[i].guild);
+            guildsById.put(guilds[i].id, guilds[i]);
+        }
+    }
+
+    /**
+     * @return  The fake JDA instance, knowing all guilds
+     */
+    public JDA getJDA() {
+        return jda;
+    }
+
+    /**
+     * @return  The id of the bot user, used for the mention prefix of commands
+     */
+    public String getSelfId() {
+        return Long.toUnsignedString(SELF_ID);
+    }
+
+    /**
+     * @return  The number of guilds
+     */
+    public int getGuildCount() {
+        return guilds.length;
+    }
+
+    /**
+     * @param   index
+     *          The index of the guild
+     * @return  The guild
+     */
+    public FakeGuild getGuild(int index) {
+        return guilds[index];
+    }
+
+    /**
+     * @return  The number of REST requests sent by route (e.g. {@code sendMessage}), sorted by route
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        requests.forEach((route, count) -> counts.put(route, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public void close() {
+        restExecutor.shutdownNow();
+    }
+
+    private long nextId() {
+        return nextId.getAndIncrement();
+    }
+
+    private static long toId(Object id) {
+        return id instanceof Long ? (Long) id : Long.parseUnsignedLong(id.toString());
+    }
+
+    //checks the permission arguments of Member#hasPermission(...) for the given permission
+    private static boolean requests(Object[] args, Permission permission) {
+        for(Object arg : args) {
+            if(arg == permission
+                    || (arg instanceof Permission[] && Arrays.asList((Permission[]) arg).contains(permission))
+                    || (arg instanceof Collection && ((Collection<?>) arg).contains(permission)))
+                return true;
+        }
+        return false;
+    }
+
+    //stub RestAction of the given type completing with the result of the supplier, builder methods return the action itself
+    @SuppressWarnings("unchecked")
+    private <T> T action(Class<T> type, String route, Supplier<?> result) {
+        return JdaStubs.proxy(type, route, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "queue":
+                    queue(route, result, args == null || args.length < 1 ? null : (Consumer<Object>) args[0],
+                            args == null || args.length < 2 ? null : (Consumer<? super Throwable>) args[1]);
+                    return null;
+                case "submit": {
+                    CompletableFuture<Object> future = new CompletableFuture<>();
+                    queue(route, result, future::complete, future::completeExceptionally);
+                    return future;
+                }
+                case "complete":
+                    requests.computeIfAbsent(route, r -> new LongAdder()).increment();
+                    return result.get();
+                case "getJDA":
+                    return jda;
+            }
+            if(method.getReturnType() != Object.class && method.getReturnType().isAssignableFrom(type))
+                return proxy;
+            return JdaStubs.NOT_STUBBED;
+        });
+    }
+
+    private void queue(String route, Supplier<?> result, Consumer<Object> success, Consumer<? super Throwable> failure) {
+        requests.computeIfAbsent(route, r -> new LongAdder()).increment();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = restLatencyNanos == 0 ? 0 : random.nextLong(restLatencyNanos / 2, restLatencyNanos * 3 / 2 + 1);
+        boolean fail = random.nextDouble() < restFailureRate;
+        restExecutor.schedule(() -> {
+            //like JDA, exceptions of callbacks are only logged
+            try {
+                if(fail) {
+                    if(failure != null)
+                        failure.accept(new IllegalStateException("Simulated failure of " + route));
+                } else if(success != null) {
+                    success.accept(result.get());
+                }
+            } catch(Throwable t) {
+                LOG.error("Callback of {} threw an exception", route, t);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    //message sent by the bot
+    private Message sentMessage(MessageChannel channel, Guild guild, long id) {
+        return JdaStubs.proxy(Message.class, "Message:" + id, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "getId":
+                    return Long.toUnsignedString(id);
+                case "getChannel":
+                    return channel;
+                case "getTextChannel":
+                    return channel instanceof TextChannel ? channel : JdaStubs.NOT_STUBBED;
+                case "getGuild":
+                    return guild == null ? JdaStubs.NOT_STUBBED : guild;
+                case "getAuthor":
+                    return selfUser;
+                case "getJDA":
+                    return jda;
+                case "delete":
+                    return action(AuditableRestAction.class, "deleteMessage", () -> null);
+                default:
+                    return JdaStubs.NOT_STUBBED;
+            }
+        });
+    }
+
+    /**
+     * A fake guild and its entities.
+     */
+    public class FakeGuild {
+        private final long id = nextId();
+        private final Guild guild;
+        private final Member selfMember;
+        private final Role[] roles;
+        private final Member[] members;
+        private final TextChannel[] channels;
+        private final int announcerCount;
+        //current roles of each member (by index), replaced by role updates
+        private final AtomicReferenceArray<List<Role>> memberRoles;
+        private final Map<Long, Integer> memberIndices = new HashMap<>();
+        private final Map<Long, Role> rolesById = new HashMap<>();
+        private final Map<Long, TextChannel> channelsById = new HashMap<>();
+
+        private FakeGuild(int topicRoleCount, int memberCount, int announcerCount, int channelCount) {
+            this.announcerCount = Math.min(announcerCount, memberCount);
+            this.guild = JdaStubs.proxy(Guild.class, "Guild:" + id, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "getIdLong":
+                        return id;
+                    case "getId":
+                        return Long.toUnsignedString(id);
+                    case "getName":
+                        return "Guild " + id;
+                    case "getJDA":
+                        return jda;
+                    case "getSelfMember":
+                        return FakeGuild.this.selfMember;
+                    case "getRoles":
+                        return Collections.unmodifiableList(Arrays.asList(FakeGuild.this.roles));
+                    case "getRoleById":
+                        return rolesById.get(toId(args[0]));
+                    case "getTextChannels":
+                        return Collections.unmodifiableList(Arrays.asList(FakeGuild.this.channels));
+                    case "getTextChannelById":
+                        return channelsById.get(toId(args[0]));
+                    case "getMemberById": {
+                        Integer index = memberIndices.get(toId(args[0]));
+                        return index == null ? null : FakeGuild.this.members[index];
+                    }
+                    case "modifyMemberRoles":
+                        return modifyMemberRoles((Member) args[0], (Collection<?>) args[1], (Collection<?>) args[2]);
+                    default:
+                        return JdaStubs.NOT_STUBBED;
+                }
+            });
+
+            //highest position first, like JDA
+            this.roles = new Role[topicRoleCount + 1];
+            roles[0] = createRole(ANNOUNCER_ROLE, topicRoleCount + 1);
+            for(int i = 1; i <= topicRoleCount; i++)
+                roles[i] = createRole(TOPIC_ROLE_PREFIX + i, topicRoleCount + 1 - i);
+
+            this.channels = new TextChannel[channelCount];
+            for(int i = 0; i < channelCount; i++) {
+                channels[i] = createChannel("channel-" + i);
+                channelsById.put(channels[i].getIdLong(), channels[i]);
+            }
+
+            this.selfMember = JdaStubs.proxy(Member.class, "SelfMember:" + id, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "getIdLong":
+                        return SELF_ID;
+                    case "getUser":
+                        return selfUser;
+                    case "getGuild":
+                        return guild;
+                    case "getJDA":
+                        return jda;
+                    case "getEffectiveName":
+                        return selfUser.getName();
+                    case "getRoles":
+                        return Collections.emptyList();
+                    case "hasPermission":
+                        return mentionEveryone || !requests(args, Permission.MESSAGE_MENTION_EVERYONE);
+                    case "canInteract":
+                        return true;
+                    default:
+                        return JdaStubs.NOT_STUBBED;
+                }
+            });
+
+            this.members = new Member[memberCount];
+            this.memberRoles = new AtomicReferenceArray<>(memberCount);
+            for(int i = 0; i < memberCount; i++) {
+                List<Role> initialRoles = new ArrayList<>(2);
+                if(i < this.announcerCount)
+                    initialRoles.add(roles[0]);
+                if(topicRoleCount > 0)
+                    initialRoles.add(roles[1 + i % topicRoleCount]);
+                memberRoles.set(i, Collections.unmodifiableList(initialRoles));
+                members[i] = createMember(i);
+                memberIndices.put(members[i].getIdLong(), i);
+            }
+        }
+
+        /**
+         * @return  The fake guild entity
+         */
+        public Guild getGuild() {
+            return guild;
+        }
+
+        /**
+         * @return  The announcer role
+         */
+        public Role getAnnouncerRole() {
+            return roles[0];
+        }
+
+        /**
+         * @return  The topic roles (announcement roles in a seeded config)
+         */
+        public List<Role> getTopicRoles() {
+            return Collections.unmodifiableList(Arrays.asList(roles).subList(1, roles.length));
+        }
+
+        /**
+         * @return  The number of members
+         */
+        public int getMemberCount() {
+            return members.length;
+        }
+
+        /**
+         * @return  The number of members with the announcer role (the first members)
+         */
+        public int getAnnouncerCount() {
+            return announcerCount;
+        }
+
+        /**
+         * @return  The number of text channels
+         */
+        public int getChannelCount() {
+            return channels.length;
+        }
+
+        /**
+         * @param   index
+         *          The index of the channel
+         * @return  The text channel
+         */
+        public TextChannel getChannel(int index) {
+            return channels[index];
+        }
+
+        /**
+         * Creates a new message, as received from the gateway.
+         *
+         * @param   channel
+         *          The index of the channel the message is sent in
+         * @param   member
+         *          The index of the author
+         * @param   content
+         *          The content of the message
+         * @return  The message, with a new id
+         */
+        public Message createMessage(int channel, int member, String content) {
+            return message(nextId(), channels[channel], members[member], content, false);
+        }
+
+        /**
+         * Creates an edited version of a message previously created via {@link #createMessage(int, int, String)}.
+         *
+         * @param   original
+         *          The original message
+         * @param   content
+         *          The new content
+         * @return  The edited message (same id, channel and author)
+         */
+        public Message editMessage(Message original, String content) {
+            return message(original.getIdLong(), original.getTextChannel(), original.getMember(), content, true);
+        }
+
+        private Message message(long messageId, TextChannel channel, Member member, String content, boolean edited) {
+            return JdaStubs.proxy(Message.class, "Message:" + messageId, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "getIdLong":
+                        return messageId;
+                    case "getId":
+                        return Long.toUnsignedString(messageId);
+                    case "getContentRaw":
+                    case "getContentDisplay":
+                    case "getContentStripped":
+                        return content;
+                    case "getAuthor":
+                        return member.getUser();
+                    case "getMember":
+                        return member;
+                    case "getGuild":
+                        return guild;
+                    case "getTextChannel":
+                    case "getChannel":
+                        return channel;
+                    case "getJDA":
+                        return jda;
+                    case "isWebhookMessage":
+                        return false;
+                    case "isEdited":
+                        return edited;
+                    case "addReaction":
+                        return action(RestAction.class, "addReaction", () -> null);
+                    case "delete":
+                        return action(AuditableRestAction.class, "deleteMessage", () -> null);
+                    default:
+                        return JdaStubs.NOT_STUBBED;
+                }
+            });
+        }
+
+        private Role createRole(String name, int position) {
+            long roleId = nextId();
+            String mention = "<@&" + roleId + '>';
+            Role role = JdaStubs.proxy(Role.class, "Role:" + name, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "getIdLong":
+                        return roleId;
+                    case "getId":
+                        return Long.toUnsignedString(roleId);
+                    case "getName":
+                        return name;
+                    case "getAsMention":
+                        return mention;
+                    case "getPosition":
+                    case "getPositionRaw":
+                        return position;
+                    case "compareTo":
+                        return Integer.compare(position, ((Role) args[0]).getPosition());
+                    case "getGuild":
+                        return guild;
+                    case "getJDA":
+                        return jda;
+                    case "isManaged":
+                    case "isMentionable":
+                    case "isPublicRole":
+                        return false;
+                    case "getManager":
+                        return action(RoleManager.class, "modifyRole", () -> null);
+                    default:
+                        return JdaStubs.NOT_STUBBED;
+                }
+            });
+            rolesById.put(roleId, role);
+            return role;
+        }
+
+        private TextChannel createChannel(String name) {
+            long channelId = nextId();
+            String mention = "<#" + channelId + '>';
+            return JdaStubs.proxy(TextChannel.class, "TextChannel:" + name, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "getIdLong":
+                        return channelId;
+                    case "getId":
+                        return Long.toUnsignedString(channelId);
+                    case "getName":
+                        return name;
+                    case "getAsMention":
+                        return mention;
+                    case "getGuild":
+                        return guild;
+                    case "getJDA":
+                        return jda;
+                    case "canTalk":
+                        return true;
+                    case "sendMessage":
+                    case "sendMessageFormat":
+                        return action(MessageAction.class, "sendMessage", () -> sentMessage((TextChannel) proxy, guild, nextId()));
+                    case "editMessageById": {
+                        long messageId = toId(args[0]);
+                        return action(MessageAction.class, "editMessage", () -> sentMessage((TextChannel) proxy, guild, messageId));
+                    }
+                    case "deleteMessageById":
+                        return action(AuditableRestAction.class, "deleteMessage", () -> null);
+                    default:
+                        //e.g. history requests, their actions are classes and can't be stubbed
+                        return JdaStubs.NOT_STUBBED;
+                }
+            });
+        }
+
+        private Member createMember(int index) {
+            long memberId = nextId();
+            String name = "Member " + index;
+            String tag = name + "#" + String.format("%04d", index % 10000);
+            PrivateChannel privateChannel = JdaStubs.proxy(PrivateChannel.class, "PrivateChannel:" + name, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "getIdLong":
+                        return memberId;
+                    case "getJDA":
+                        return jda;
+                    case "sendMessage":
+                        return action(MessageAction.class, "sendDirectMessage", () -> sentMessage((PrivateChannel) proxy, null, nextId()));
+                    default:
+                        return JdaStubs.NOT_STUBBED;
+                }
+            });
+            User user = JdaStubs.proxy(User.class, "User:" + name, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "getIdLong":
+                        return memberId;
+                    case "getId":
+                        return Long.toUnsignedString(memberId);
+                    case "getName":
+                        return name;
+                    case "getAsTag":
+                        return tag;
+                    case "getAsMention":
+                        return "<@" + memberId + '>';
+                    case "isBot":
+                        return false;
+                    case "getEffectiveAvatarUrl":
+                        return "https://cdn.discordapp.com/embed/avatars/" + index % 5 + ".png";
+                    case "getJDA":
+                        return jda;
+                    case "openPrivateChannel":
+                        return action(RestAction.class, "openPrivateChannel", () -> privateChannel);
+                    case "formatTo":
+                        ((Formatter) args[0]).format("%s", tag);
+                        return null;
+                    default:
+                        return JdaStubs.NOT_STUBBED;
+                }
+            });
+            return JdaStubs.proxy(Member.class, "Member:" + name, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "getIdLong":
+                        return memberId;
+                    case "getId":
+                        return Long.toUnsignedString(memberId);
+                    case "getUser":
+                        return user;
+                    case "getGuild":
+                        return guild;
+                    case "getJDA":
+                        return jda;
+                    case "getEffectiveName":
+                        return name;
+                    case "getAsMention":
+                        return "<@!" + memberId + '>';
+                    case "getRoles":
+                        return memberRoles.get(index);
+                    case "hasPermission":
+                        return index == 0;
+                    case "canInteract":
+                        return false;
+                    default:
+                        return JdaStubs.NOT_STUBBED;
+                }
+            });
+        }
+
+        private AuditableRestAction<?> modifyMemberRoles(Member member, Collection<?> add, Collection<?> remove) {
+            int index = memberIndices.get(member.getIdLong());
+            return action(AuditableRestAction.class, "modifyMemberRoles", () -> {
+                memberRoles.updateAndGet(index, current -> {
+                    List<Role> updated = new ArrayList<>(current);
+                    updated.removeAll(remove);
+                    for(Object role : add) {
+                        if(!updated.contains(role))
+                            updated.add((Role) role);
+                    }
+                    return Collections.unmodifiableList(updated);
+                });
+                return null;
+            });
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.kantenkugel.hermes.benchmark;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.entities.User;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lightweight stand-ins for the JDA entities used by the benchmarked code paths.
+ * <p>
+ * The stubs are dynamic proxies only answering the getters the bot actually calls, every other method throws.
+ * Their cost (a proxy dispatch per call) is the same for all compared variants, so it doesn't skew comparisons.
+ */
+public final class JdaStubs {
+    //returned by handlers for methods they don't stub
+    static final Object NOT_STUBBED = new Object();
+
+    private JdaStubs() {}
+
+    /**
+     * Creates a role stub.
+     *
+     * @param   id
+     *          The role id
+     * @param   name
+     *          The role name
+     * @param   position
+     *          The position of the role, used for sorting
+     * @return  The stub
+     */
+    public static Role role(long id, String name, int position) {
+        String mention = "<@&" + id + '>';
+        String idString = Long.toUnsignedString(id);
+        return proxy(Role.class, "Role:" + name, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "getId":
+                    return idString;
+                case "getName":
+                    return name;
+                case "getAsMention":
+                    return mention;
+                case "getPosition":
+                case "getPositionRaw":
+                    return position;
+                case "compareTo":
+                    return Integer.compare(position, ((Role) args[0]).getPosition());
+                default:
+                    return NOT_STUBBED;
+            }
+        });
+    }
+
+    /**
+     * Creates the given number of roles with ids counting up from {@code firstId} and names {@code <prefix><n>}.
+     *
+     * @param   firstId
+     *          The id of the first role
+     * @param   prefix
+     *          The name prefix
+     * @param   count
+     *          The number of roles
+     * @return  The role stubs, in order of their ids
+     */
+    public static List<Role> roles(long firstId, String prefix, int count) {
+        List<Role> roles = new ArrayList<>(count);
+        for(int i = 0; i < count; i++)
+            roles.add(role(firstId + i, prefix + i, i));
+        return roles;
+    }
+
+    /**
+     * Creates a guild stub with the given roles.
+     *
+     * @param   id
+     *          The guild id
+     * @param   roles
+     *          The roles of the guild
+     * @return  The stub
+     */
+    public static Guild guild(long id, List<Role> roles) {
+        List<Role> roleList = Collections.unmodifiableList(new ArrayList<>(roles));
+        Map<Long, Role> rolesById = new HashMap<>();
+        for(Role role : roles)
+            rolesById.put(role.getIdLong(), role);
+        return proxy(Guild.class, "Guild:" + id, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getIdLong":
+                    return id;
+                case "getRoles":
+                    return roleList;
+                case "getRoleById":
+                    return args[0] instanceof Long ? rolesById.get(args[0]) : rolesById.get(Long.parseUnsignedLong(args[0].toString()));
+                default:
+                    return NOT_STUBBED;
+            }
+        });
+    }
+
+    /**
+     * Creates a member stub.
+     *
+     * @param   name
+     *          The effective name of the member
+     * @param   avatarUrl
+     *          The effective avatar url of the user
+     * @param   roles
+     *          The roles of the member
+     * @return  The stub
+     */
+    public static Member member(String name, String avatarUrl, List<Role> roles) {
+        List<Role> roleList = Collections.unmodifiableList(new ArrayList<>(roles));
+        User user = proxy(User.class, "User:" + name, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getName":
+                    return name;
+                case "getEffectiveAvatarUrl":
+                    return avatarUrl;
+                default:
+                    return NOT_STUBBED;
+            }
+        });
+        return proxy(Member.class, "Member:" + name, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getRoles":
+                    return roleList;
+                case "getEffectiveName":
+                    return name;
+                case "getUser":
+                    return user;
+                default:
+                    return NOT_STUBBED;
+            }
+        });
+    }
+
+    //methods the handler returns NOT_STUBBED for are answered by identity (Object methods) or throw
+    static <T> T proxy(Class<T> type, String name, InvocationHandler handler) {
+        Object stub = Proxy.newProxyInstance(JdaStubs.class.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            Object result = handler.invoke(proxy, method, args);
+            return result == NOT_STUBBED ? objectMethod(proxy, method, args, name) : result;
+        });
+        return type.cast(stub);
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args, String name) {
+        switch(method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return name;
+            default:
+                throw new UnsupportedOperationException(name + " stub does not support " + method.getName());
+        }
+    }
+}
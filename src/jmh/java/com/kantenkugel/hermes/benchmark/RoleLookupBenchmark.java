@@ -0,0 +1,132 @@
+package com.kantenkugel.hermes.benchmark;
+
+import com.kantenkugel.hermes.RoleNameIndex;
+import com.kantenkugel.hermes.guildConfig.AbstractGuildConfigProvider;
+import com.kantenkugel.hermes.guildConfig.IGuildConfig;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Permission and role resolution done by the announce, mention and subscription commands:
+ * {@link IGuildConfig#isAnnouncer(Member)} next to a plain loop over the member's roles as baseline and the previous
+ * stream based check, and {@link RoleNameIndex#getRolesByName(Guild, String)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoleLookupBenchmark {
+    private static final long GUILD_ID = 359029133412106240L;
+    //power of two, so the member rotation can mask instead of mod
+    private static final int MEMBER_COUNT = 1024;
+
+    @Param({"25", "250"})
+    public int guildRoles;
+
+    @Param({"5"})
+    public int memberRoles;
+
+    private Guild guild;
+    private IGuildConfig config;
+    private TLongSet announcerRoles;
+    private Member[] members;
+    private int nextMember;
+    private RoleNameIndex roleNameIndex;
+    private String existingName;
+    private String underscoredName;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        List<Role> roles = JdaStubs.roles(GUILD_ID + 1, "Role ", guildRoles);
+        guild = JdaStubs.guild(GUILD_ID, roles);
+
+        config = new BenchmarkConfig(GUILD_ID);
+        config.addAnnouncerRole(roles.get(guildRoles - 1));
+        config.addAnnouncerRole(roles.get(guildRoles - 2));
+        announcerRoles = new TLongHashSet(config.getAnnouncerRoleIds());
+
+        members = new Member[MEMBER_COUNT];
+        for(int i = 0; i < MEMBER_COUNT; i++) {
+            List<Role> memberRoleList = new ArrayList<>(memberRoles);
+            for(int j = 0; j < memberRoles; j++)
+                memberRoleList.add(roles.get(random.nextInt(guildRoles)));
+            members[i] = JdaStubs.member("Member " + i, "https://cdn.discordapp.com/embed/avatars/0.png", memberRoleList);
+        }
+
+        roleNameIndex = new RoleNameIndex();
+        existingName = "role " + (guildRoles / 2);
+        underscoredName = "Role_" + (guildRoles / 3);
+        //build the index up front, it is built once per guild
+        roleNameIndex.getRolesByName(guild, existingName);
+    }
+
+    @Benchmark
+    public boolean isAnnouncer() {
+        return config.isAnnouncer(nextMember());
+    }
+
+    @Benchmark
+    public boolean isAnnouncerBaseline() {
+        List<Role> roles = nextMember().getRoles();
+        for(int i = 0; i < roles.size(); i++) {
+            if(announcerRoles.contains(roles.get(i).getIdLong()))
+                return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean isAnnouncerStream() {
+        return nextMember().getRoles().stream().anyMatch(config::isAnnouncerRole);
+    }
+
+    @Benchmark
+    public List<Role> rolesByName() {
+        return roleNameIndex.getRolesByName(guild, existingName);
+    }
+
+    @Benchmark
+    public List<Role> rolesByUnderscoredName() {
+        return roleNameIndex.getRolesByName(guild, underscoredName);
+    }
+
+    @Benchmark
+    public List<Role> rolesByUnknownName() {
+        return roleNameIndex.getRolesByName(guild, "does not exist");
+    }
+
+    private Member nextMember() {
+        return members[nextMember++ & (MEMBER_COUNT - 1)];
+    }
+
+    private static class BenchmarkConfig extends AbstractGuildConfigProvider.AbstractGuildConfig {
+        private BenchmarkConfig(long guildId) {
+            super(guildId);
+        }
+
+        @Override
+        public void update() {}
+    }
+}
@@ -0,0 +1,98 @@
+package com.kantenkugel.hermes.guildConfig;
+
+import gnu.trove.set.hash.TLongHashSet;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization and parsing of a single {@link JSONGuildConfigProvider.JSONGuildConfig}, as done for every
+ * config update (journal record / settings file) and for every config when loading the settings file.
+ * <p>
+ * Lives in the provider's package to reach the package-private json conversion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONGuildConfigBenchmark {
+    private static final long GUILD_ID = 359029133412106240L;
+
+    @Param({"2", "20"})
+    public int roles;
+
+    @Param({"0", "5"})
+    public int schedules;
+
+    private Path directory;
+    private JSONGuildConfigProvider provider;
+    private JSONGuildConfigProvider.JSONGuildConfig config;
+    private String json;
+
+    @Setup
+    public void setup() throws IOException {
+        //the settings file is only created on the first update, which never happens here
+        directory = Files.createTempDirectory("hermes-jmh");
+        provider = new JSONGuildConfigProvider(directory.resolve("guildSettings.json").toString());
+
+        TLongHashSet announcerRoles = new TLongHashSet();
+        TLongHashSet announcementRoles = new TLongHashSet();
+        for(int i = 0; i < roles; i++) {
+            long roleId = 359029133412106241L + i;
+            if(i % 4 == 0)
+                announcerRoles.add(roleId);
+            else
+                announcementRoles.add(roleId);
+        }
+        JSONObject settings = new JSONObject()
+                .put("announcerIds", new JSONArray(announcerRoles.toArray()))
+                .put("announcementRoles", new JSONArray(announcementRoles.toArray()))
+                .put("subscriptionsEnabled", true);
+        config = provider.new JSONGuildConfig(GUILD_ID, settings);
+        for(int i = 0; i < schedules; i++) {
+            config.putScheduledAnnouncement(new ScheduledAnnouncement(i + 1, GUILD_ID, 359029133412106300L, 359029133412106241L,
+                    1600000000000L + i * 3_600_000L, 86_400_000L, "Weekly game night, join the voice channel! #" + i,
+                    "Some Announcer", "https://cdn.discordapp.com/avatars/183584227366158336/a_1b2c3d4e5f.png"));
+        }
+        json = config.toJson().toString();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(directory.resolve("guildSettings.json"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public JSONObject toJson() {
+        return config.toJson();
+    }
+
+    @Benchmark
+    public String serialize() {
+        return config.toJson().toString();
+    }
+
+    @Benchmark
+    public JSONGuildConfigProvider.JSONGuildConfig parse() {
+        return provider.new JSONGuildConfig(GUILD_ID, new JSONObject(json));
+    }
+}
@@ -0,0 +1,365 @@
+package com.kantenkugel.common;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Thread-safe cache with lock-free reads and a frequency-aware eviction policy.
+ * <p>
+ * Reads only touch the backing {@link ConcurrentHashMap} and bump a small per-entry access counter.
+ * Once the cache grows above its maximum size, a single thread sweeps the eviction queue (CLOCK style):
+ * entries which were accessed since the last sweep get their counter decremented and a second chance,
+ * entries which were not accessed (or are expired) are evicted.
+ * Frequently used entries therefore survive bursts of one-off accesses, which plain LRU does not.
+ * <p>
+ * The cache may briefly exceed its maximum size while another thread is sweeping.
+ * A negative maximum size creates an unbounded cache which never evicts (but still honors the ttl).
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class ConcurrentCache<K, V> {
+    //cap for the per-entry access counter (= max number of second chances during eviction)
+    private static final int MAX_FREQUENCY = 3;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Node<K, V>> evictionQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a new cache without ttl.
+     *
+     * @param   maxSize
+     *          The maximum number of entries or a negative value for an unbounded cache
+     */
+    public ConcurrentCache(int maxSize) {
+        this(maxSize, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param   maxSize
+     *          The maximum number of entries or a negative value for an unbounded cache
+     * @param   ttl
+     *          The time after which entries expire (counted from their insertion). {@code 0} disables expiration
+     * @param   unit
+     *          The unit of the ttl
+     *
+     * @throws  IllegalArgumentException
+     *          If the maxSize is 0 or the ttl is negative
+     */
+    public ConcurrentCache(int maxSize, long ttl, @NotNull TimeUnit unit) {
+        if(maxSize == 0)
+            throw new IllegalArgumentException("Cache size must not be 0");
+        if(ttl < 0)
+            throw new IllegalArgumentException("Cache ttl must not be negative");
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Retrieves the value of the given key, if present and not expired.
+     *
+     * @param   key
+     *          The key to look up
+     * @return  The cached value or {@code null}
+     */
+    @Nullable
+    public V get(@NotNull K key) {
+        Node<K, V> node = getNode(key);
+        if(node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return node.value;
+    }
+
+    /**
+     * Like {@link #get(Object)}, but does not count a miss if nothing was found.
+     * Used for fast-path checks which fall back to {@link #computeIfAbsent(Object, Function)} (which counts the miss).
+     *
+     * @param   key
+     *          The key to look up
+     * @return  The cached value or {@code null}
+     */
+    @Nullable
+    public V getIfPresent(@NotNull K key) {
+        Node<K, V> node = getNode(key);
+        if(node == null)
+            return null;
+        hits.increment();
+        return node.value;
+    }
+
+    /**
+     * Retrieves the value of the given key, or computes it via the given loader if absent (or expired).
+     * The loader is called at most once per key at a time. If the loader returns {@code null}, nothing is cached.
+     *
+     * @param   key
+     *          The key to look up
+     * @param   loader
+     *          The function used to load missing values
+     * @return  The cached or newly loaded value
+     */
+    @Nullable
+    public V computeIfAbsent(@NotNull K key, @NotNull Function<? super K, ? extends V> loader) {
+        Node<K, V> node = getNode(key);
+        if(node != null) {
+            hits.increment();
+            return node.value;
+        }
+        misses.increment();
+        boolean[] created = new boolean[1];
+        node = map.compute(key, (k, existing) -> {
+            if(existing != null && !isExpired(existing))
+                return existing;
+            if(existing != null)
+                existing.removed = true;
+            V value = loader.apply(k);
+            if(value == null)
+                return null;
+            created[0] = true;
+            return new Node<>(k, value, ticker());
+        });
+        if(node == null)
+            return null;
+        if(created[0])
+            onInsert(node);
+        return node.value;
+    }
+
+    /**
+     * Stores the given value, replacing any previous value of the key.
+     *
+     * @param   key
+     *          The key to store the value under
+     * @param   value
+     *          The value to store
+     */
+    public void put(@NotNull K key, @NotNull V value) {
+        Node<K, V> node = new Node<>(key, value, ticker());
+        Node<K, V> old = map.put(key, node);
+        if(old != null)
+            old.removed = true;
+        onInsert(node);
+    }
+
+    /**
+     * Stores the given value unless the key already has a (non-expired) value.
+     * Used to pre-populate the cache without overwriting newer values. This does not count as hit or miss.
+     *
+     * @param   key
+     *          The key to store the value under
+     * @param   value
+     *          The value to store
+     * @return  The already cached value or {@code null} if the given value was stored
+     */
+    @Nullable
+    public V putIfAbsent(@NotNull K key, @NotNull V value) {
+        boolean[] created = new boolean[1];
+        Node<K, V> node = map.compute(key, (k, existing) -> {
+            if(existing != null && !isExpired(existing))
+                return existing;
+            if(existing != null)
+                existing.removed = true;
+            created[0] = true;
+            return new Node<>(k, value, ticker());
+        });
+        if(!created[0])
+            return node.value;
+        onInsert(node);
+        return null;
+    }
+
+    /**
+     * Removes the value of the given key.
+     *
+     * @param   key
+     *          The key to remove
+     * @return  The removed value or {@code null} if nothing was cached
+     */
+    @Nullable
+    public V remove(@NotNull K key) {
+        Node<K, V> old = map.remove(key);
+        if(old == null)
+            return null;
+        old.removed = true;
+        return old.value;
+    }
+
+    /**
+     * Removes all entries from this cache. This does not count as eviction.
+     */
+    public void clear() {
+        map.values().forEach(node -> node.removed = true);
+        map.clear();
+    }
+
+    /**
+     * Returns a snapshot of all currently cached (non-expired) values.
+     *
+     * @return  Snapshot of all cached values
+     */
+    @NotNull
+    public Collection<V> values() {
+        List<V> values = new ArrayList<>(map.size());
+        for(Node<K, V> node : map.values()) {
+            if(!isExpired(node))
+                values.add(node.value);
+        }
+        return values;
+    }
+
+    /**
+     * The current number of entries, which may include expired entries that were not yet cleaned up.
+     *
+     * @return  The current number of entries
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * @return  The maximum number of entries of this cache, negative if unbounded
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return  The number of lookups which were answered from the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return  The number of lookups which did not find a (non-expired) value
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return  The number of entries removed due to size constraints or expiration
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConcurrentCache[size=%d, maxSize=%d, hits=%d, misses=%d, evictions=%d]",
+                size(), maxSize, getHitCount(), getMissCount(), getEvictionCount());
+    }
+
+    private Node<K, V> getNode(K key) {
+        Node<K, V> node = map.get(key);
+        if(node == null)
+            return null;
+        if(isExpired(node)) {
+            if(map.remove(key, node)) {
+                node.removed = true;
+                evictions.increment();
+            }
+            return null;
+        }
+        //benign race: a lost increment only costs one second chance
+        if(node.frequency < MAX_FREQUENCY)
+            node.frequency++;
+        return node;
+    }
+
+    private void onInsert(Node<K, V> node) {
+        if(maxSize < 0)
+            return;
+        evictionQueue.offer(node);
+        queueSize.incrementAndGet();
+        //only one thread sweeps, others continue without blocking.
+        //the sweeping thread re-checks after unlocking to catch inserts which happened while it held the lock
+        while(needsEviction() && evictionLock.tryLock()) {
+            try {
+                evict();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private boolean needsEviction() {
+        //also sweep if removed/replaced nodes pile up in the queue
+        return map.size() > maxSize || queueSize.get() > 2 * maxSize;
+    }
+
+    private void evict() {
+        //bounds the number of second chances, so concurrent hits can't keep the sweep from making room
+        int budget = queueSize.get() * (MAX_FREQUENCY + 1);
+        while(true) {
+            boolean overCapacity = map.size() > maxSize;
+            if(!overCapacity && (budget <= 0 || queueSize.get() <= maxSize))
+                break;
+            Node<K, V> node = evictionQueue.poll();
+            if(node == null)
+                break;
+            if(node.removed) {
+                queueSize.decrementAndGet();
+                continue;
+            }
+            boolean secondChance = budget-- > 0 && !isExpired(node) && (!overCapacity || node.frequency > 0);
+            if(secondChance) {
+                //only consume the chance if we actually need to make room
+                if(overCapacity)
+                    node.frequency--;
+                evictionQueue.offer(node);
+                continue;
+            }
+            queueSize.decrementAndGet();
+            node.removed = true;
+            if(map.remove(node.key, node))
+                evictions.increment();
+        }
+    }
+
+    private boolean isExpired(Node<K, V> node) {
+        return ttlNanos > 0 && ticker() - node.writeTime >= ttlNanos;
+    }
+
+    private long ticker() {
+        return ttlNanos > 0 ? System.nanoTime() : 0;
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+        private final V value;
+        private final long writeTime;
+        private volatile int frequency;
+        private volatile boolean removed;
+
+        private Node(K key, V value, long writeTime) {
+            this.key = key;
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.kantenkugel.common;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small bounded JDBC connection pool.
+ * <p>
+ * Connections are created lazily up to the maximum size and handed out via {@link #borrow()}.
+ * Each pooled connection keeps its prepared statements, so repeated queries are only prepared once per connection.
+ * Connections which were idle for a while are validated before being handed out
+ * and idle connections are periodically health-checked in the background.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+
+    //connections idle for less than this are handed out without validation
+    private static final long VALIDATION_BYPASS_MILLIS = 500;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long HEALTH_CHECK_INTERVAL_SECONDS = 60;
+
+    private final String connectString;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService healthChecker;
+    private volatile boolean closed = false;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger open = new AtomicInteger();
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    /**
+     * Creates a new pool. No connections are opened until they are first needed.
+     *
+     * @param   connectString
+     *          The jdbc connect string
+     * @param   maxSize
+     *          The maximum number of open connections
+     * @param   borrowTimeoutMillis
+     *          The maximum time {@link #borrow()} waits for a free connection
+     */
+    public ConnectionPool(@NotNull String connectString, int maxSize, long borrowTimeoutMillis) {
+        if(maxSize < 1)
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        this.connectString = connectString;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ConnectionPool-HealthCheck");
+            t.setDaemon(true);
+            return t;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkIdleConnections, HEALTH_CHECK_INTERVAL_SECONDS,
+                HEALTH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Borrows a connection from the pool, opening a new one if none is idle and the pool is not at its maximum size.
+     * The returned connection has to be closed to give it back to the pool (best used with try-with-resources).
+     *
+     * @return  A validated connection
+     *
+     * @throws  SQLTimeoutException
+     *          If no connection became available within the borrow timeout
+     * @throws  SQLException
+     *          If the pool is closed or opening a new connection failed
+     */
+    @NotNull
+    public PooledConnection borrow() throws SQLException {
+        if(closed)
+            throw new SQLException("Connection pool is closed");
+        long start = System.nanoTime();
+        try {
+            if(!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLTimeoutException("Timed out waiting for a pooled connection after " + borrowTimeoutMillis + "ms");
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection", e);
+        } finally {
+            waitNanos.add(System.nanoTime() - start);
+        }
+        try {
+            PooledConnection connection;
+            while((connection = idle.pollFirst()) != null) {
+                if(isUsable(connection, System.currentTimeMillis() - connection.lastUsed > VALIDATION_BYPASS_MILLIS))
+                    break;
+                discard(connection);
+            }
+            if(connection == null) {
+                connection = new PooledConnection(DriverManager.getConnection(connectString));
+                open.incrementAndGet();
+            }
+            connection.borrowed.set(true);
+            borrows.increment();
+            active.incrementAndGet();
+            return connection;
+        } catch(SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return  The maximum number of connections of this pool
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return  The number of currently borrowed connections
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return  The number of currently open (borrowed or idle) connections
+     */
+    public int getOpenCount() {
+        return open.get();
+    }
+
+    /**
+     * @return  The total number of successful borrows
+     */
+    public long getBorrowCount() {
+        return borrows.sum();
+    }
+
+    /**
+     * @return  The total time (in nanoseconds) spent waiting for free connections
+     */
+    public long getTotalWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    /**
+     * @return  The number of borrows which timed out waiting for a free connection
+     */
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return  The number of connections which were closed because they were broken or failed validation
+     */
+    public long getDiscardCount() {
+        return discarded.sum();
+    }
+
+    @Override
+    public String toString() {
+        long borrowCount = getBorrowCount();
+        return String.format("ConnectionPool[active=%d, open=%d, max=%d, borrows=%d, avgWait=%.2fms, timeouts=%d, discarded=%d]",
+                getActiveCount(), getOpenCount(), maxSize, borrowCount,
+                borrowCount == 0 ? 0D : getTotalWaitNanos() / (double) borrowCount / 1_000_000D,
+                getTimeoutCount(), getDiscardCount());
+    }
+
+    /**
+     * Closes all idle connections and prevents further borrows.
+     * Connections currently borrowed are closed once they are given back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        healthChecker.shutdownNow();
+        PooledConnection connection;
+        while((connection = idle.pollFirst()) != null)
+            connection.closeQuietly();
+    }
+
+    private void release(PooledConnection connection) {
+        active.decrementAndGet();
+        if(closed || connection.broken || isClosed(connection)) {
+            discard(connection);
+        } else {
+            connection.lastUsed = System.currentTimeMillis();
+            //LIFO, so rarely needed connections stay idle long enough to be cleaned up by the health check
+            idle.offerFirst(connection);
+        }
+        permits.release();
+    }
+
+    private void checkIdleConnections() {
+        //checked connections hold a permit, so borrowers can't open additional ones in the meantime
+        for(int i = idle.size(); i > 0 && permits.tryAcquire(); i--) {
+            PooledConnection connection = idle.pollLast();
+            if(connection != null) {
+                if(isUsable(connection, true))
+                    idle.offerLast(connection);
+                else
+                    discard(connection);
+            }
+            permits.release();
+            if(connection == null)
+                break;
+        }
+    }
+
+    private boolean isUsable(PooledConnection connection, boolean validate) {
+        if(connection.broken)
+            return false;
+        try {
+            return validate ? connection.connection.isValid(VALIDATION_TIMEOUT_SECONDS) : !connection.connection.isClosed();
+        } catch(SQLException e) {
+            return false;
+        }
+    }
+
+    private boolean isClosed(PooledConnection connection) {
+        try {
+            return connection.connection.isClosed();
+        } catch(SQLException e) {
+            return true;
+        }
+    }
+
+    private void discard(PooledConnection connection) {
+        discarded.increment();
+        open.decrementAndGet();
+        connection.closeQuietly();
+    }
+
+    /**
+     * Connection handed out by the {@link ConnectionPool}. Closing it gives it back to the pool.
+     */
+    public class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean broken = false;
+        //guards against giving the connection back (and releasing its permit) more than once per borrow
+        private final AtomicBoolean borrowed = new AtomicBoolean();
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * The underlying jdbc connection. Must not be closed directly.
+         *
+         * @return  The underlying connection
+         */
+        @NotNull
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Retrieves the prepared statement for the given sql, preparing it if this connection did not do so yet.
+         * Parameters of reused statements are cleared.
+         *
+         * @param   sql
+         *          The sql of the statement
+         * @return  The (cached) prepared statement
+         *
+         * @throws  SQLException
+         *          If preparing the statement failed
+         */
+        @NotNull
+        public PreparedStatement prepareStatement(@NotNull String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if(statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        /**
+         * Marks this connection as broken, so it gets discarded instead of returned to the pool.
+         * Connection errors (SQLState class 08) are detected automatically via {@link #checkError(SQLException)}.
+         */
+        public void invalidate() {
+            broken = true;
+        }
+
+        /**
+         * Invalidates this connection if the given exception indicates a connection problem.
+         *
+         * @param   ex
+         *          The exception thrown while using this connection
+         */
+        public void checkError(@NotNull SQLException ex) {
+            if(ex.getSQLState() != null && ex.getSQLState().startsWith("08"))
+                invalidate();
+        }
+
+        /**
+         * Gives this connection back to the pool.
+         * Closing an already closed connection has no effect.
+         */
+        @Override
+        public void close() {
+            if(borrowed.compareAndSet(true, false))
+                release(this);
+        }
+
+        private void closeQuietly() {
+            for(PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                } catch(SQLException ignored) {}
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch(SQLException ex) {
+                LOG.debug("Error closing pooled connection", ex);
+            }
+        }
+    }
+}
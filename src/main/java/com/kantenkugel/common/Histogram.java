@@ -0,0 +1,129 @@
+package com.kantenkugel.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations (in nanoseconds) with a fixed relative precision, similar to HdrHistogram.
+ * <p>
+ * Values are counted in log-linear buckets: every power of 2 is split into {@value #SUB_BUCKETS} linear sub-buckets,
+ * so each bucket covers at most 1/{@value #SUB_BUCKETS} of its values (12.5%), independent of the magnitude.
+ * Recording a value is one array index computation and two atomic increments, no allocation and no lock.
+ * Values above ~18 minutes (2^40ns) are counted in the last bucket.
+ * <p>
+ * Reads are not atomic with concurrent recordings, so counts, sums and percentiles of a snapshot may be off
+ * by the recordings happening while reading.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param   nanos
+     *          The duration in nanoseconds. Negative values are counted as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while(value > (current = max.get()) && !max.compareAndSet(current, value));
+    }
+
+    /**
+     * Records the time passed since the given start.
+     *
+     * @param   startNanos
+     *          The start time, as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return  The number of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return  The sum of all recorded values (in nanoseconds)
+     */
+    public long getSumNanos() {
+        return sum.sum();
+    }
+
+    /**
+     * @return  The largest recorded value (in nanoseconds)
+     */
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /**
+     * Estimates a percentile of the recorded values.
+     *
+     * @param   percentile
+     *          The percentile, between 0 and 100
+     * @return  The upper bound of the bucket containing the percentile (capped at the max), 0 if nothing was recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long total = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++)
+            total += counts.get(i);
+        if(total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100D, Math.max(0D, percentile)) / 100D));
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if(seen >= rank)
+                return Math.min(upperBoundOf(i), getMaxNanos());
+        }
+        return getMaxNanos();
+    }
+
+    @Override
+    public String toString() {
+        long count = getCount();
+        return String.format("Histogram[count=%d, avg=%.2fms, p50=%.2fms, p99=%.2fms, max=%.2fms]", count,
+                count == 0 ? 0D : getSumNanos() / (double) count / 1_000_000D, toMillis(getPercentileNanos(50)),
+                toMillis(getPercentileNanos(99)), toMillis(getMaxNanos()));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static int bucketOf(long value) {
+        if(value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if(exponent > MAX_EXPONENT)
+            return BUCKET_COUNT - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        //the top bit is implied by the exponent, the next bits select the sub-bucket
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
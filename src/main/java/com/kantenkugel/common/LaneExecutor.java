@@ -0,0 +1,359 @@
+package com.kantenkugel.common;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Executor running tasks of the same key (lane) strictly in submission order, while tasks of different lanes run in parallel
+ * on a bounded worker pool.
+ * <p>
+ * A lane only occupies a worker while it has queued tasks and gives the worker up after a few tasks,
+ * so a busy lane can't starve the others. Lanes are created on demand and dropped once they run empty.
+ * Each lane has a queue limit, tasks submitted to a full lane are rejected.
+ * <p>
+ * Tasks may first resolve a value asynchronously (e.g. load data from storage). The lane waits for it without holding a worker
+ * and runs the task on a worker once it's available.
+ */
+public class LaneExecutor implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(LaneExecutor.class);
+
+    //tasks a lane may run before handing its worker to other lanes
+    private static final int MAX_TASKS_PER_RUN = 8;
+
+    private final String name;
+    private final int queueLimit;
+    private final ExecutorService workers;
+    private final ConcurrentHashMap<Long, Lane> lanes = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxLaneDepth = new AtomicInteger();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Creates a new executor.
+     *
+     * @param   name
+     *          Name of this executor, used for thread names
+     * @param   threads
+     *          The number of worker threads (= max number of lanes running in parallel)
+     * @param   queueLimit
+     *          The max number of queued tasks per lane
+     */
+    public LaneExecutor(@NotNull String name, int threads, int queueLimit) {
+        if(threads < 1 || queueLimit < 1)
+            throw new IllegalArgumentException("Thread count and queue limit must be at least 1");
+        this.name = name;
+        this.queueLimit = queueLimit;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues a task on the given lane. It runs after all tasks previously queued on that lane have finished.
+     * Exceptions thrown by the task are logged.
+     *
+     * @param   lane
+     *          The key of the lane (e.g. guild id)
+     * @param   task
+     *          The task to run
+     * @return  {@code true} if the task was queued, {@code false} if the lane is full or this executor was closed
+     */
+    public boolean execute(long lane, @NotNull Runnable task) {
+        return enqueue(lane, new QueuedTask<>(null, (value, error) -> task.run()));
+    }
+
+    /**
+     * Queues a task on the given lane, which needs an asynchronously resolved value.
+     * Once all tasks previously queued on that lane have finished, the resolver is called. The lane waits for the returned stage
+     * (without occupying a worker) and then runs the task with its result. Tasks queued later on the lane run after this one.
+     * If resolving failed (the resolver threw or the stage completed exceptionally), the task runs with the error instead,
+     * so it can report the failure. Exceptions thrown by the task are logged.
+     *
+     * @param   lane
+     *          The key of the lane (e.g. guild id)
+     * @param   resolver
+     *          Starts resolving the value needed by the task, must not block
+     * @param   task
+     *          The task to run with the resolved value or the error of resolving it (exactly one of them is non-null)
+     * @param   <T>
+     *          The type of the resolved value
+     * @return  {@code true} if the task was queued, {@code false} if the lane is full or this executor was closed
+     */
+    public <T> boolean execute(long lane, @NotNull Supplier<? extends CompletionStage<T>> resolver,
+                               @NotNull BiConsumer<? super T, ? super Throwable> task) {
+        return enqueue(lane, new QueuedTask<>(resolver, task));
+    }
+
+    private boolean enqueue(long lane, QueuedTask<?> task) {
+        while(true) {
+            Lane target = lanes.computeIfAbsent(lane, Lane::new);
+            boolean schedule;
+            synchronized(target) {
+                //lane ran empty and was dropped in the meantime
+                if(target.retired)
+                    continue;
+                if(target.tasks.size() >= queueLimit) {
+                    rejected.increment();
+                    return false;
+                }
+                target.tasks.add(task);
+                schedule = !target.scheduled;
+                target.scheduled = true;
+                updateMax(target.tasks.size());
+            }
+            queued.incrementAndGet();
+            if(schedule) {
+                try {
+                    workers.execute(target);
+                } catch(RejectedExecutionException ex) {
+                    //closed
+                    synchronized(target) {
+                        queued.addAndGet(-target.tasks.size());
+                        target.tasks.clear();
+                        target.scheduled = false;
+                    }
+                    rejected.increment();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param   lane
+     *          The key of the lane
+     * @return  The number of tasks currently queued on the given lane (excluding a running one)
+     */
+    public int getQueueDepth(long lane) {
+        Lane target = lanes.get(lane);
+        if(target == null)
+            return 0;
+        synchronized(target) {
+            return target.tasks.size();
+        }
+    }
+
+    /**
+     * @return  The number of tasks currently queued over all lanes
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return  The number of lanes which currently have queued or running tasks
+     */
+    public int getActiveLaneCount() {
+        return lanes.size();
+    }
+
+    /**
+     * @return  The highest queue depth any lane reached
+     */
+    public int getMaxQueueDepth() {
+        return maxLaneDepth.get();
+    }
+
+    /**
+     * @return  The max number of queued tasks per lane
+     */
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    /**
+     * @return  The total number of executed tasks (including failed ones)
+     */
+    public long getExecutedCount() {
+        return executed.sum();
+    }
+
+    /**
+     * @return  The total number of tasks which threw an exception
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return  The total number of tasks rejected because their lane was full
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return  The total time (in nanoseconds) tasks spent queued before running
+     */
+    public long getTotalWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    /**
+     * @return  The longest time (in nanoseconds) a task spent queued before running
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        long executedCount = getExecutedCount();
+        return String.format("LaneExecutor[%s, lanes=%d, queued=%d, maxDepth=%d, executed=%d, failed=%d, rejected=%d, avgWait=%.2fms, maxWait=%.2fms]",
+                name, getActiveLaneCount(), getQueuedCount(), getMaxQueueDepth(), executedCount, getFailedCount(), getRejectedCount(),
+                executedCount == 0 ? 0D : getTotalWaitNanos() / (double) executedCount / 1_000_000D,
+                getMaxWaitNanos() / 1_000_000D);
+    }
+
+    /**
+     * Stops accepting new tasks and waits a short while for already queued ones to finish.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            if(!workers.awaitTermination(5, TimeUnit.SECONDS))
+                LOG.warn("{} did not finish all queued tasks in time. {} tasks are dropped", name, getQueuedCount());
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void updateMax(int depth) {
+        int max;
+        while(depth > (max = maxLaneDepth.get()) && !maxLaneDepth.compareAndSet(max, depth));
+    }
+
+    private void recordWait(long nanos) {
+        waitNanos.add(nanos);
+        long max;
+        while(nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos));
+    }
+
+    private static class QueuedTask<T> {
+        private final Supplier<? extends CompletionStage<T>> resolver;
+        private final BiConsumer<? super T, ? super Throwable> task;
+        private final long queuedAt = System.nanoTime();
+        private CompletableFuture<T> resolved;
+
+        private QueuedTask(Supplier<? extends CompletionStage<T>> resolver, BiConsumer<? super T, ? super Throwable> task) {
+            this.resolver = resolver;
+            this.task = task;
+        }
+
+        //starts resolving the value, null if there is none to resolve
+        private CompletableFuture<T> resolve() {
+            if(resolver == null)
+                return null;
+            try {
+                resolved = resolver.get().toCompletableFuture();
+            } catch(Throwable ex) {
+                resolved = new CompletableFuture<>();
+                resolved.completeExceptionally(ex);
+            }
+            return resolved;
+        }
+
+        private void run() {
+            T value = null;
+            Throwable error = null;
+            if(resolved != null) {
+                try {
+                    value = resolved.join();
+                } catch(CompletionException ex) {
+                    error = ex.getCause() == null ? ex : ex.getCause();
+                } catch(CancellationException ex) {
+                    error = ex;
+                }
+            }
+            task.accept(value, error);
+        }
+    }
+
+    private class Lane implements Runnable {
+        private final long key;
+        //guarded by this
+        private final ArrayDeque<QueuedTask> tasks = new ArrayDeque<>();
+        private boolean scheduled = false;
+        private boolean retired = false;
+
+        private Lane(long key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            for(int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                QueuedTask<?> next;
+                synchronized(this) {
+                    next = tasks.poll();
+                    if(next == null) {
+                        scheduled = false;
+                        retired = true;
+                        lanes.remove(key, this);
+                        return;
+                    }
+                }
+                queued.decrementAndGet();
+                recordWait(System.nanoTime() - next.queuedAt);
+                CompletableFuture<?> pending = next.resolve();
+                if(pending != null && !pending.isDone()) {
+                    //the lane stays scheduled, so no other worker picks it up while waiting
+                    pending.whenComplete((value, ex) -> resume(() -> {
+                        runTask(next);
+                        run();
+                    }));
+                    return;
+                }
+                runTask(next);
+            }
+            //still busy, requeue behind other lanes
+            resume(this);
+        }
+
+        private void runTask(QueuedTask<?> task) {
+            try {
+                task.run();
+            } catch(Throwable ex) {
+                failed.increment();
+                LOG.error("Uncaught exception in task of lane {}", Long.toUnsignedString(key), ex);
+            }
+            executed.increment();
+        }
+
+        private void resume(Runnable continuation) {
+            try {
+                workers.execute(continuation);
+            } catch(RejectedExecutionException ex) {
+                //closed, finish remaining tasks on this thread
+                continuation.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.kantenkugel.common;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of named metrics, exported in the Prometheus text format and via JMX.
+ * <p>
+ * The registry does not record anything itself: Components keep their own counters ({@link java.util.concurrent.atomic.LongAdder})
+ * and {@link Histogram Histograms} and register functions reading them. Recording therefore stays lock-free
+ * and costs nothing extra, metrics are only read when exported.
+ * <p>
+ * Each metric may have one label (e.g. the command name). Registering a metric with a name and label value
+ * which are already registered replaces the previous one.
+ */
+public class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private enum Type {
+        COUNTER, GAUGE, SUMMARY
+    }
+
+    //sorted by name for stable output
+    private final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * Registers a counter (a monotonically increasing value).
+     *
+     * @param   name
+     *          The metric name, should end with {@code _total}
+     * @param   help
+     *          Description of the metric
+     * @param   value
+     *          Reads the current value
+     */
+    public void counter(@NotNull String name, @NotNull String help, @NotNull LongSupplier value) {
+        register(name, help, Type.COUNTER, null, null, value);
+    }
+
+    /**
+     * Registers a labeled counter (a monotonically increasing value).
+     *
+     * @param   name
+     *          The metric name, should end with {@code _total}
+     * @param   help
+     *          Description of the metric
+     * @param   label
+     *          The label name
+     * @param   labelValue
+     *          The label value of this counter
+     * @param   value
+     *          Reads the current value
+     */
+    public void counter(@NotNull String name, @NotNull String help, @NotNull String label, @NotNull String labelValue,
+                        @NotNull LongSupplier value) {
+        register(name, help, Type.COUNTER, label, labelValue, value);
+    }
+
+    /**
+     * Registers a gauge (a value which can go up and down).
+     *
+     * @param   name
+     *          The metric name
+     * @param   help
+     *          Description of the metric
+     * @param   value
+     *          Reads the current value
+     */
+    public void gauge(@NotNull String name, @NotNull String help, @NotNull DoubleSupplier value) {
+        register(name, help, Type.GAUGE, null, null, value);
+    }
+
+    /**
+     * Registers a labeled gauge (a value which can go up and down).
+     *
+     * @param   name
+     *          The metric name
+     * @param   help
+     *          Description of the metric
+     * @param   label
+     *          The label name
+     * @param   labelValue
+     *          The label value of this gauge
+     * @param   value
+     *          Reads the current value
+     */
+    public void gauge(@NotNull String name, @NotNull String help, @NotNull String label, @NotNull String labelValue,
+                      @NotNull DoubleSupplier value) {
+        register(name, help, Type.GAUGE, label, labelValue, value);
+    }
+
+    /**
+     * Registers a histogram of durations, exported in seconds as summary with the 50th, 90th, 99th and 99.9th percentile.
+     *
+     * @param   name
+     *          The metric name, should end with {@code _seconds}
+     * @param   help
+     *          Description of the metric
+     * @param   histogram
+     *          The histogram
+     */
+    public void histogram(@NotNull String name, @NotNull String help, @NotNull Histogram histogram) {
+        register(name, help, Type.SUMMARY, null, null, histogram);
+    }
+
+    /**
+     * Registers a labeled histogram of durations, exported in seconds as summary with the 50th, 90th, 99th and 99.9th percentile.
+     *
+     * @param   name
+     *          The metric name, should end with {@code _seconds}
+     * @param   help
+     *          Description of the metric
+     * @param   label
+     *          The label name
+     * @param   labelValue
+     *          The label value of this histogram
+     * @param   histogram
+     *          The histogram
+     */
+    public void histogram(@NotNull String name, @NotNull String help, @NotNull String label, @NotNull String labelValue,
+                          @NotNull Histogram histogram) {
+        register(name, help, Type.SUMMARY, label, labelValue, histogram);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format (version 0.0.4).
+     *
+     * @param   out
+     *          The builder to append to
+     */
+    public void writePrometheus(@NotNull StringBuilder out) {
+        for(Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type.name().toLowerCase()).append('\n');
+            for(Map.Entry<String, Object> sample : family.samples.entrySet()) {
+                String labels = family.label == null ? "" : family.label + "=\"" + escapeLabel(sample.getKey()) + '"';
+                Object source = sample.getValue();
+                switch(family.type) {
+                    case COUNTER:
+                        writeSample(out, family.name, labels, ((LongSupplier) source).getAsLong());
+                        break;
+                    case GAUGE:
+                        writeSample(out, family.name, labels, ((DoubleSupplier) source).getAsDouble());
+                        break;
+                    case SUMMARY:
+                        Histogram histogram = (Histogram) source;
+                        for(double quantile : QUANTILES) {
+                            String quantileLabel = "quantile=\"" + quantile + '"';
+                            writeSample(out, family.name, labels.isEmpty() ? quantileLabel : labels + ',' + quantileLabel,
+                                    toSeconds(histogram.getPercentileNanos(quantile * 100)));
+                        }
+                        writeSample(out, family.name + "_sum", labels, toSeconds(histogram.getSumNanos()));
+                        writeSample(out, family.name + "_count", labels, histogram.getCount());
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads all metrics as flat map of values, named {@code name[.labelValue]}.
+     * Histograms are split into {@code .count}, {@code .sum}, {@code .p50}, {@code .p90}, {@code .p99}, {@code .p999}
+     * and {@code .max} (in seconds).
+     *
+     * @return  The current values by name
+     */
+    @NotNull
+    public Map<String, Number> getValues() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for(Family family : families.values()) {
+            for(Map.Entry<String, Object> sample : family.samples.entrySet()) {
+                String name = family.label == null ? family.name : family.name + '.' + sample.getKey();
+                Object source = sample.getValue();
+                switch(family.type) {
+                    case COUNTER:
+                        values.put(name, ((LongSupplier) source).getAsLong());
+                        break;
+                    case GAUGE:
+                        values.put(name, ((DoubleSupplier) source).getAsDouble());
+                        break;
+                    case SUMMARY:
+                        Histogram histogram = (Histogram) source;
+                        values.put(name + ".count", histogram.getCount());
+                        values.put(name + ".sum", toSeconds(histogram.getSumNanos()));
+                        for(int i = 0; i < QUANTILES.length; i++)
+                            values.put(name + '.' + QUANTILE_NAMES[i], toSeconds(histogram.getPercentileNanos(QUANTILES[i] * 100)));
+                        values.put(name + ".max", toSeconds(histogram.getMaxNanos()));
+                        break;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Registers an MBean on the platform MBean server exposing all metrics of this registry as read-only attributes
+     * (see {@link #getValues()}).
+     *
+     * @param   objectName
+     *          The object name of the MBean, e.g. {@code com.kantenkugel.hermes:type=Metrics}
+     * @throws  JMException
+     *          If the name is invalid or already registered
+     */
+    public void registerMBean(@NotNull String objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(objectName));
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsRegistry[metrics=" + families.size() + ']';
+    }
+
+    private void register(String name, String help, Type type, @Nullable String label, @Nullable String labelValue, Object source) {
+        Family family = families.computeIfAbsent(name, n -> new Family(name, help, type, label));
+        if(family.type != type || (family.label == null ? label != null : !family.label.equals(label)))
+            throw new IllegalArgumentException("Metric " + name + " is already registered with a different type or label");
+        family.samples.put(labelValue == null ? "" : labelValue, source);
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if(!labels.isEmpty())
+            out.append('{').append(labels).append('}');
+        out.append(' ');
+        if(Double.isInfinite(value))
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        else if(value == (long) value)
+            out.append((long) value);
+        else
+            out.append(value);
+        out.append('\n');
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static double toSeconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static class Family {
+        private final String name;
+        private final String help;
+        private final Type type;
+        private final String label;
+        //source per label value ("" if unlabeled)
+        private final Map<String, Object> samples = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, Type type, String label) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+        }
+    }
+
+    //attributes are created from the registered metrics on every request, so later registrations show up as well
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = getValues().get(attribute);
+            if(value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = getValues();
+            AttributeList list = new AttributeList();
+            for(String attribute : attributes) {
+                Number value = values.get(attribute);
+                if(value != null)
+                    list.add(new Attribute(attribute, value));
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("Metrics don't have operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> values = getValues();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for(Map.Entry<String, Number> value : values.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                        value.getKey(), true, false, false);
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Registered metrics", attributes, null, null, null);
+        }
+    }
+}
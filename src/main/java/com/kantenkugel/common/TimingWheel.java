@@ -0,0 +1,218 @@
+package com.kantenkugel.common;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hashed timing wheel running tasks at (roughly) given points in time.
+ * <p>
+ * Tasks are hashed into a ring of buckets by their deadline. Every tick, the wheel thread only looks at one bucket:
+ * Tasks due in the current rotation are run, all others wait for the next rotation. Scheduling and cancelling are O(1),
+ * so large numbers of pending tasks neither need a thread nor a heap entry each.
+ * <p>
+ * Deadlines are wall-clock times (epoch millis), so persisted deadlines can be scheduled directly.
+ * Tasks run on the wheel thread at most one tick late and should therefore hand off everything expensive.
+ */
+public class TimingWheel implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final long tickMillis;
+    private final int mask;
+    //only accessed by the wheel thread
+    private final ArrayDeque<Timeout>[] buckets;
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startTime;
+    private long tick = 0;
+    private volatile boolean closed = false;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Creates and starts a new wheel.
+     *
+     * @param   name
+     *          Name of the wheel thread
+     * @param   tickMillis
+     *          Duration of a tick (in milliseconds), which is the precision of the wheel
+     * @param   wheelSize
+     *          The number of buckets, rounded up to a power of 2. One rotation takes {@code wheelSize * tickMillis}
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(@NotNull String name, long tickMillis, int wheelSize) {
+        if(tickMillis < 1 || wheelSize < 1 || wheelSize > 1 << 20)
+            throw new IllegalArgumentException("Tick duration must be at least 1, wheel size must be between 1 and 2^20");
+        this.tickMillis = tickMillis;
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        this.buckets = new ArrayDeque[Math.max(1, size)];
+        this.mask = buckets.length - 1;
+        for(int i = 0; i < buckets.length; i++)
+            buckets[i] = new ArrayDeque<>();
+        this.startTime = System.currentTimeMillis();
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules a task. Tasks with a deadline in the past run on the next tick.
+     *
+     * @param   deadline
+     *          The time (epoch millis) to run the task at
+     * @param   task
+     *          The task to run
+     * @return  Handle used to cancel the task
+     */
+    @NotNull
+    public Timeout schedule(long deadline, @NotNull Runnable task) {
+        if(closed)
+            throw new IllegalStateException("TimingWheel was closed");
+        Timeout timeout = new Timeout(deadline, task);
+        pending.incrementAndGet();
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return  The number of scheduled tasks which neither ran nor were cancelled yet
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return  The total number of tasks run
+     */
+    public long getExecutedCount() {
+        return executed.sum();
+    }
+
+    /**
+     * @return  The total number of tasks which threw an exception
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TimingWheel[%s, pending=%d, executed=%d, failed=%d]", thread.getName(), getPendingCount(),
+                getExecutedCount(), getFailedCount());
+    }
+
+    /**
+     * Stops the wheel. Pending tasks are not run.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while(!closed) {
+            long sleep = startTime + (tick + 1) * tickMillis - System.currentTimeMillis();
+            if(sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch(InterruptedException ex) {
+                    continue;
+                }
+            }
+            transferIncoming();
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout timeout;
+        while((timeout = incoming.poll()) != null) {
+            if(timeout.cancelled)
+                continue;
+            //ticks are processed at their end, so a deadline within the current tick is due now
+            long deadlineTick = Math.max((timeout.deadline - startTime) / tickMillis, tick);
+            timeout.rounds = (deadlineTick - tick) / buckets.length;
+            buckets[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while(iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if(timeout.cancelled) {
+                iterator.remove();
+            } else if(timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                iterator.remove();
+                if(!timeout.expire())
+                    continue;
+                pending.decrementAndGet();
+                try {
+                    timeout.task.run();
+                } catch(Throwable ex) {
+                    failed.increment();
+                    LOG.error("Uncaught exception in task of {}", thread.getName(), ex);
+                }
+                executed.increment();
+            }
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public class Timeout {
+        private final long deadline;
+        private final Runnable task;
+        //only accessed by the wheel thread
+        private long rounds;
+        //written while holding this, also read by the wheel thread to drop cancelled tasks early
+        private volatile boolean cancelled = false;
+        //guarded by this
+        private boolean expired = false;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * @return  The time (epoch millis) the task is scheduled for
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Cancels the task. The task is removed from the wheel once its bucket comes up.
+         *
+         * @return  {@code true} if the task was cancelled, {@code false} if it already ran (or is running) or was cancelled before
+         */
+        public synchronized boolean cancel() {
+            if(cancelled || expired)
+                return false;
+            cancelled = true;
+            pending.decrementAndGet();
+            return true;
+        }
+
+        private synchronized boolean expire() {
+            if(cancelled)
+                return false;
+            expired = true;
+            return true;
+        }
+    }
+}
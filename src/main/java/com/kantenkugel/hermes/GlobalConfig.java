@@ -24,8 +24,28 @@ public class GlobalConfig {
     public static final Class<? extends IGuildConfigProvider> GUILD_CONFIG_PROVIDER;
     public static final String GUILD_CONFIG_PROVIDER_ARGS;
 
+    public static final int GUILD_CONFIG_CACHE_SIZE;
+    public static final long GUILD_CONFIG_CACHE_TTL;
+
+    public static final boolean SHARDING_ENABLED;
+    public static final int SHARDS_TOTAL;
+    public static final int SHARDS_FROM;
+    public static final int SHARDS_TO;
+    public static final int SHARD_EVENT_THREADS;
+
+    public static final int COMMAND_THREADS;
+    public static final int COMMAND_QUEUE_LIMIT;
+
+    public static final int METRICS_PORT;
+    public static final String METRICS_HOST;
+    public static final boolean METRICS_JMX;
+
     //finals
-    private static final int CONFIG_VERSION = 3;
+    private static final int CONFIG_VERSION = 7;
+    private static final int DEFAULT_CACHE_SIZE = 1000;
+    private static final int DEFAULT_COMMAND_THREADS = 4;
+    private static final int DEFAULT_COMMAND_QUEUE_LIMIT = 20;
+    private static final String DEFAULT_METRICS_HOST = "127.0.0.1";
     static final Path CONFIG_PATH = Paths.get("config.json");
 
     //static init code
@@ -33,6 +53,18 @@ public class GlobalConfig {
         String tmpToken = null;
         Class<? extends IGuildConfigProvider> tmpConfigProvider = JSONGuildConfigProvider.class;
         String tmpGuildConfigArgs = null;
+        int tmpCacheSize = DEFAULT_CACHE_SIZE;
+        long tmpCacheTtl = 0;
+        boolean tmpSharding = false;
+        int tmpShardsTotal = -1;
+        int tmpShardsFrom = -1;
+        int tmpShardsTo = -1;
+        int tmpShardEventThreads = 1;
+        int tmpCommandThreads = DEFAULT_COMMAND_THREADS;
+        int tmpCommandQueueLimit = DEFAULT_COMMAND_QUEUE_LIMIT;
+        int tmpMetricsPort = -1;
+        String tmpMetricsHost = DEFAULT_METRICS_HOST;
+        boolean tmpMetricsJmx = false;
 
         if(System.getenv("token") != null) {
             LOG.info("Using ENV for configuration");
@@ -49,6 +81,50 @@ public class GlobalConfig {
                     LOG.warn("guildConfigProvider.class was not found in classpath... Defaulting to JSON provider");
                 }
             }
+            try {
+                if(System.getenv("configcachesize") != null)
+                    tmpCacheSize = Integer.parseInt(System.getenv("configcachesize"));
+                if(System.getenv("configcachettl") != null)
+                    tmpCacheTtl = Long.parseLong(System.getenv("configcachettl"));
+            } catch(NumberFormatException ex) {
+                LOG.warn("configcachesize/configcachettl is not a valid number... Using defaults");
+                tmpCacheSize = DEFAULT_CACHE_SIZE;
+                tmpCacheTtl = 0;
+            }
+            tmpSharding = Boolean.parseBoolean(System.getenv("sharding"));
+            try {
+                if(System.getenv("shardstotal") != null)
+                    tmpShardsTotal = Integer.parseInt(System.getenv("shardstotal"));
+                if(System.getenv("shardsfrom") != null)
+                    tmpShardsFrom = Integer.parseInt(System.getenv("shardsfrom"));
+                if(System.getenv("shardsto") != null)
+                    tmpShardsTo = Integer.parseInt(System.getenv("shardsto"));
+                if(System.getenv("shardeventthreads") != null)
+                    tmpShardEventThreads = Integer.parseInt(System.getenv("shardeventthreads"));
+            } catch(NumberFormatException ex) {
+                LOG.warn("shardstotal/shardsfrom/shardsto/shardeventthreads is not a valid number... Using defaults");
+                tmpShardsTotal = tmpShardsFrom = tmpShardsTo = -1;
+                tmpShardEventThreads = 1;
+            }
+            try {
+                if(System.getenv("commandthreads") != null)
+                    tmpCommandThreads = Integer.parseInt(System.getenv("commandthreads"));
+                if(System.getenv("commandqueuelimit") != null)
+                    tmpCommandQueueLimit = Integer.parseInt(System.getenv("commandqueuelimit"));
+            } catch(NumberFormatException ex) {
+                LOG.warn("commandthreads/commandqueuelimit is not a valid number... Using defaults");
+                tmpCommandThreads = DEFAULT_COMMAND_THREADS;
+                tmpCommandQueueLimit = DEFAULT_COMMAND_QUEUE_LIMIT;
+            }
+            try {
+                if(System.getenv("metricsport") != null)
+                    tmpMetricsPort = Integer.parseInt(System.getenv("metricsport"));
+            } catch(NumberFormatException ex) {
+                LOG.warn("metricsport is not a valid number... Disabling metrics endpoint");
+            }
+            if(System.getenv("metricshost") != null)
+                tmpMetricsHost = System.getenv("metricshost");
+            tmpMetricsJmx = Boolean.parseBoolean(System.getenv("metricsjmx"));
         } else if(!Files.exists(CONFIG_PATH)) {
             try {
                 Utils.writeJson(CONFIG_PATH, getDefaultConfig());
@@ -106,6 +182,30 @@ public class GlobalConfig {
                     if(gconf.has("args"))
                         tmpGuildConfigArgs = gconf.getString("args");
                 }
+                JSONObject cacheConf = obj.optJSONObject("guildConfigCache");
+                if(cacheConf != null) {
+                    tmpCacheSize = cacheConf.optInt("size", DEFAULT_CACHE_SIZE);
+                    tmpCacheTtl = cacheConf.optLong("ttl", 0);
+                }
+                JSONObject shardConf = obj.optJSONObject("sharding");
+                if(shardConf != null) {
+                    tmpSharding = shardConf.optBoolean("enabled", false);
+                    tmpShardsTotal = shardConf.optInt("total", -1);
+                    tmpShardsFrom = shardConf.optInt("from", -1);
+                    tmpShardsTo = shardConf.optInt("to", -1);
+                    tmpShardEventThreads = shardConf.optInt("eventThreads", 1);
+                }
+                JSONObject commandConf = obj.optJSONObject("commandExecutor");
+                if(commandConf != null) {
+                    tmpCommandThreads = commandConf.optInt("threads", DEFAULT_COMMAND_THREADS);
+                    tmpCommandQueueLimit = commandConf.optInt("queueLimit", DEFAULT_COMMAND_QUEUE_LIMIT);
+                }
+                JSONObject metricsConf = obj.optJSONObject("metrics");
+                if(metricsConf != null) {
+                    tmpMetricsPort = metricsConf.optInt("port", -1);
+                    tmpMetricsHost = metricsConf.optString("host", DEFAULT_METRICS_HOST);
+                    tmpMetricsJmx = metricsConf.optBoolean("jmx", false);
+                }
             } else {
                 System.exit(1);
             }
@@ -113,6 +213,18 @@ public class GlobalConfig {
         TOKEN = tmpToken;
         GUILD_CONFIG_PROVIDER = tmpConfigProvider;
         GUILD_CONFIG_PROVIDER_ARGS = tmpGuildConfigArgs;
+        GUILD_CONFIG_CACHE_SIZE = tmpCacheSize;
+        GUILD_CONFIG_CACHE_TTL = Math.max(0, tmpCacheTtl);
+        SHARDING_ENABLED = tmpSharding;
+        SHARDS_TOTAL = tmpShardsTotal;
+        SHARDS_FROM = tmpShardsFrom;
+        SHARDS_TO = tmpShardsTo;
+        SHARD_EVENT_THREADS = Math.max(1, tmpShardEventThreads);
+        COMMAND_THREADS = Math.max(1, tmpCommandThreads);
+        COMMAND_QUEUE_LIMIT = Math.max(1, tmpCommandQueueLimit);
+        METRICS_PORT = tmpMetricsPort;
+        METRICS_HOST = tmpMetricsHost;
+        METRICS_JMX = tmpMetricsJmx;
     }
 
     /**
@@ -152,6 +264,14 @@ public class GlobalConfig {
                 config.remove("allowedIds");
             case 2:
                 config.put("guildConfigProvider", getDefaultConfig().getJSONObject("guildConfigProvider"));
+            case 3:
+                config.put("guildConfigCache", getDefaultConfig().getJSONObject("guildConfigCache"));
+            case 4:
+                config.put("sharding", getDefaultConfig().getJSONObject("sharding"));
+            case 5:
+                config.put("commandExecutor", getDefaultConfig().getJSONObject("commandExecutor"));
+            case 6:
+                config.put("metrics", getDefaultConfig().getJSONObject("metrics"));
             default:
                 config.put("version", CONFIG_VERSION);
         }
@@ -165,6 +285,26 @@ public class GlobalConfig {
                 .put("guildConfigProvider", new JSONObject()
                         .put("class", JSONGuildConfigProvider.class.getName())
                         .put("args", "guildSettings.json")
+                )
+                .put("guildConfigCache", new JSONObject()
+                        .put("size", DEFAULT_CACHE_SIZE)
+                        .put("ttl", 0)
+                )
+                .put("sharding", new JSONObject()
+                        .put("enabled", false)
+                        .put("total", -1)
+                        .put("from", -1)
+                        .put("to", -1)
+                        .put("eventThreads", 1)
+                )
+                .put("commandExecutor", new JSONObject()
+                        .put("threads", DEFAULT_COMMAND_THREADS)
+                        .put("queueLimit", DEFAULT_COMMAND_QUEUE_LIMIT)
+                )
+                .put("metrics", new JSONObject()
+                        .put("port", -1)
+                        .put("host", DEFAULT_METRICS_HOST)
+                        .put("jmx", false)
                 );
     }
 
@@ -1,11 +1,14 @@
 package com.kantenkugel.hermes;
 
-import com.kantenkugel.hermes.guildConfig.IGuildConfig;
+import com.kantenkugel.common.MetricsServer;
+import com.kantenkugel.hermes.guildConfig.ConfigMigration;
 import com.kantenkugel.hermes.guildConfig.IGuildConfigProvider;
 import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.requests.GatewayIntent;
 import net.dv8tion.jda.api.requests.restaction.MessageAction;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ThreadPoolProvider;
 import net.dv8tion.jda.api.utils.ChunkingFilter;
 import net.dv8tion.jda.api.utils.MemberCachePolicy;
 import net.dv8tion.jda.api.utils.cache.CacheFlag;
@@ -13,15 +16,21 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
 import javax.security.auth.login.LoginException;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class Hermes {
     public static final Logger LOG = LoggerFactory.getLogger(Hermes.class);
+    private static final Path MIGRATION_CHECKPOINT_PATH = Paths.get("migratedb.checkpoint");
 
     public static void main(String[] args) {
         if(handleArgs(args))
@@ -30,29 +39,127 @@ public class Hermes {
         IGuildConfigProvider guildConfigProvider = IGuildConfigProvider.getFromClass(GlobalConfig.GUILD_CONFIG_PROVIDER,
                 GlobalConfig.GUILD_CONFIG_PROVIDER_ARGS);
 
+        MessageAction.setDefaultMentions(EnumSet.noneOf(Message.MentionType.class));
+        //one listener (and therefore provider + config cache) shared by all shards
+        Listener listener = new Listener(guildConfigProvider);
+        startMetrics();
         try {
-            MessageAction.setDefaultMentions(EnumSet.noneOf(Message.MentionType.class));
-            JDABuilder.create(GlobalConfig.TOKEN, EnumSet.of(GatewayIntent.GUILD_MESSAGES))
-                    .setBulkDeleteSplittingEnabled(false)
-                    .setChunkingFilter(ChunkingFilter.NONE)
-                    .setMemberCachePolicy(MemberCachePolicy.NONE)
-                    .disableCache(EnumSet.allOf(CacheFlag.class))
-                    .enableCache(EnumSet.of(CacheFlag.MEMBER_OVERRIDES))
-                    .addEventListeners(new Listener(guildConfigProvider))
-                    .build();
+            if(GlobalConfig.SHARDING_ENABLED)
+                startShardManager(listener);
+            else
+                JDABuilder.create(GlobalConfig.TOKEN, EnumSet.of(GatewayIntent.GUILD_MESSAGES))
+                        .setBulkDeleteSplittingEnabled(false)
+                        .setChunkingFilter(ChunkingFilter.NONE)
+                        .setMemberCachePolicy(MemberCachePolicy.NONE)
+                        .disableCache(EnumSet.allOf(CacheFlag.class))
+                        .enableCache(EnumSet.of(CacheFlag.MEMBER_OVERRIDES))
+                        .addEventListeners(listener)
+                        .build();
         } catch(LoginException e) {
             LOG.error("Error building jda instance", e);
         }
     }
 
+    private static void startMetrics() {
+        if(GlobalConfig.METRICS_JMX) {
+            try {
+                Utils.getMetrics().registerMBean("com.kantenkugel.hermes:type=Metrics");
+            } catch(JMException ex) {
+                LOG.error("Could not register metrics MBean", ex);
+            }
+        }
+        if(GlobalConfig.METRICS_PORT >= 0) {
+            try {
+                MetricsServer server = new MetricsServer(Utils.getMetrics(), GlobalConfig.METRICS_HOST, GlobalConfig.METRICS_PORT);
+                Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+            } catch(IOException ex) {
+                LOG.error("Could not start metrics endpoint on {}:{}", GlobalConfig.METRICS_HOST, GlobalConfig.METRICS_PORT, ex);
+            }
+        }
+    }
+
+    private static void startShardManager(Listener listener) throws LoginException {
+        DefaultShardManagerBuilder builder = DefaultShardManagerBuilder.create(GlobalConfig.TOKEN, EnumSet.of(GatewayIntent.GUILD_MESSAGES))
+                .setBulkDeleteSplittingEnabled(false)
+                .setChunkingFilter(ChunkingFilter.NONE)
+                .setMemberCachePolicy(MemberCachePolicy.NONE)
+                .disableCache(EnumSet.allOf(CacheFlag.class))
+                .enableCache(EnumSet.of(CacheFlag.MEMBER_OVERRIDES))
+                .setShardsTotal(GlobalConfig.SHARDS_TOTAL)
+                .setEventPoolProvider(new ShardEventPoolProvider(GlobalConfig.SHARD_EVENT_THREADS))
+                .addEventListeners(listener);
+        if(GlobalConfig.SHARDS_FROM >= 0 && GlobalConfig.SHARDS_TO >= GlobalConfig.SHARDS_FROM) {
+            if(GlobalConfig.SHARDS_TOTAL < 0)
+                LOG.warn("Shard range configured without total shard count. Ignoring range and starting all shards");
+            else
+                builder.setShards(GlobalConfig.SHARDS_FROM, GlobalConfig.SHARDS_TO);
+        }
+        builder.build();
+        LOG.info("Started ShardManager (total: {}, range: {}-{})", GlobalConfig.SHARDS_TOTAL < 0 ? "auto" : GlobalConfig.SHARDS_TOTAL,
+                GlobalConfig.SHARDS_FROM, GlobalConfig.SHARDS_TO);
+    }
+
+    /**
+     * Gives every shard its own event pool, so events of a busy shard don't delay the ones of other shards.
+     */
+    private static class ShardEventPoolProvider implements ThreadPoolProvider<ExecutorService> {
+        private final int threads;
+
+        private ShardEventPoolProvider(int threads) {
+            this.threads = threads;
+        }
+
+        @Override
+        public ExecutorService provide(int shardId) {
+            AtomicInteger threadCount = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "Hermes-Shard-" + shardId + "-Event-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        @Override
+        public boolean shouldShutdownAutomatically(int shardId) {
+            return true;
+        }
+    }
+
     private static boolean handleArgs(String[] args) {
         if(args.length > 0 && args[0].equalsIgnoreCase("migratedb")) {
-            if(args.length < 2) {
-                LOG.error("DB Migration syntax: <fully.qualified.IGuildProvider.class.reference> [<arguments for class init>]");
+            int batchSize = ConfigMigration.DEFAULT_BATCH_SIZE;
+            int fetchSize = ConfigMigration.DEFAULT_FETCH_SIZE;
+            int threads = ConfigMigration.DEFAULT_THREADS;
+            int classIndex = 1;
+            try {
+                for(; classIndex < args.length && args[classIndex].contains("="); classIndex++) {
+                    String[] option = args[classIndex].split("=", 2);
+                    switch(option[0].toLowerCase()) {
+                        case "batchsize":
+                            batchSize = Integer.parseInt(option[1]);
+                            break;
+                        case "fetchsize":
+                            fetchSize = Integer.parseInt(option[1]);
+                            break;
+                        case "threads":
+                            threads = Integer.parseInt(option[1]);
+                            break;
+                        default:
+                            LOG.error("Unknown DB Migration option {}", option[0]);
+                            return true;
+                    }
+                }
+            } catch(NumberFormatException e) {
+                LOG.error("Invalid number for DB Migration option {}", args[classIndex]);
+                return true;
+            }
+            if(args.length <= classIndex) {
+                LOG.error("DB Migration syntax: [batchSize=<n>] [fetchSize=<n>] [threads=<n>] " +
+                        "<fully.qualified.IGuildProvider.class.reference> [<arguments for class init>]");
                 return true;
             }
             try {
-                Class<?> rawClass = Class.forName(args[1]);
+                Class<?> rawClass = Class.forName(args[classIndex]);
                 if(!IGuildConfigProvider.class.isAssignableFrom(rawClass)) {
                     LOG.error("Provided class reference is not a subtype of IGuildConfigProvider");
                     return true;
@@ -60,19 +167,16 @@ public class Hermes {
                 @SuppressWarnings("unchecked") //cuz its actually checked by if above
                 Class<? extends IGuildConfigProvider> newProviderClass = (Class<? extends IGuildConfigProvider>) rawClass;
 
-                String providerArgs = args.length < 3 ? "" : Arrays.stream(args).skip(2).collect(Collectors.joining(" "));
+                String providerArgs = Arrays.stream(args).skip(classIndex + 1).collect(Collectors.joining(" "));
                 IGuildConfigProvider newProvider = IGuildConfigProvider.getFromClass(newProviderClass, providerArgs);
 
                 IGuildConfigProvider currentProvider = IGuildConfigProvider.getFromClass(GlobalConfig.GUILD_CONFIG_PROVIDER,
                         GlobalConfig.GUILD_CONFIG_PROVIDER_ARGS);
 
-                Set<IGuildConfig> allConfigurations = currentProvider.getAllConfigurations();
-                for(IGuildConfig config : allConfigurations) {
-                    IGuildConfig newConfig = newProvider.getConfigForGuild(config.getGuildId());
-                    newConfig.copyFromConfig(config);
-                    newConfig.update();
-                }
-                LOG.info("Successfully migrated {} configurations.", allConfigurations.size());
+                ConfigMigration migration = new ConfigMigration(currentProvider, newProvider,
+                        newProviderClass.getName() + ' ' + providerArgs, MIGRATION_CHECKPOINT_PATH, batchSize, fetchSize, threads);
+                if(!migration.run())
+                    return true;
 
                 if(System.getenv("token") == null) {
                     LOG.info("Rewriting new config entries...");
@@ -91,7 +195,7 @@ public class Hermes {
                     LOG.info("Please restart the bot with the new config environment");
                 }
             } catch(ClassNotFoundException e) {
-                LOG.error("Could not find/assign new IGuildConfigProvider class {}", args[1], e);
+                LOG.error("Could not find/assign new IGuildConfigProvider class {}", args[classIndex], e);
                 return true;
             }
             return true;
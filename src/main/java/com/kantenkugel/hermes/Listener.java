@@ -1,75 +1,238 @@
 package com.kantenkugel.hermes;
 
+import com.kantenkugel.common.Histogram;
+import com.kantenkugel.common.LaneExecutor;
+import com.kantenkugel.common.MetricsRegistry;
 import com.kantenkugel.hermes.command.*;
-import com.kantenkugel.hermes.guildConfig.IGuildConfig;
 import com.kantenkugel.hermes.guildConfig.IGuildConfigProvider;
+import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.events.GenericEvent;
 import net.dv8tion.jda.api.events.ReadyEvent;
+import net.dv8tion.jda.api.events.ReconnectedEvent;
+import net.dv8tion.jda.api.events.guild.GuildJoinEvent;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.guild.GuildReadyEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageDeleteEvent;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageUpdateEvent;
+import net.dv8tion.jda.api.events.role.RoleCreateEvent;
+import net.dv8tion.jda.api.events.role.RoleDeleteEvent;
+import net.dv8tion.jda.api.events.role.update.RoleUpdateNameEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.sharding.ShardManager;
 
-import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Listener extends ListenerAdapter {
+    private static final int MAX_TRACKED_CHANNELS = 5000;
+    //role toggles of a member within this window are sent as one update
+    private static final long ROLE_CHANGE_WINDOW = 1500;
+    //each guild may send 5 role updates at once, then one every second
+    private static final int ROLE_CHANGE_BURST = 5;
+    private static final long ROLE_CHANGE_REFILL = 1000;
+
     private final IGuildConfigProvider guildConfigProvider;
-    private final Map<String, ICommand> commandMap = new HashMap<>();
-    private final Set<ICommand> commands;
-    private Pattern selfMentionPattern;
+    private final CommandRouter router = new CommandRouter();
+    private final MessageTracker messageTracker = new MessageTracker();
+    private final MentionCoordinator mentionCoordinator = new MentionCoordinator(Utils.getOutboundScheduler());
+    private final RecentAuthorTracker authorTracker = new RecentAuthorTracker(MAX_TRACKED_CHANNELS);
+    private final RoleChangeBatcher roleChangeBatcher = new RoleChangeBatcher("Subscription", ROLE_CHANGE_WINDOW,
+            ROLE_CHANGE_BURST, ROLE_CHANGE_REFILL);
+    //one lane per guild, so commands of a guild run in order without blocking the event thread
+    private final LaneExecutor commandExecutor = new LaneExecutor("Hermes-Command", GlobalConfig.COMMAND_THREADS,
+            GlobalConfig.COMMAND_QUEUE_LIMIT);
+    private final AnnounceCommand announceCommand;
+
+    //metrics
+    private final Map<ICommand, Histogram> commandLatency = new IdentityHashMap<>();
+    private final LongAdder gatewayEvents = new LongAdder();
 
     public Listener(IGuildConfigProvider guildConfigProvider) {
         this.guildConfigProvider = guildConfigProvider;
-        registerCommand(new AnnounceCommand());
-        registerCommand(new ConfigCommand());
-        registerCommand(new HelpCommand());
-        registerCommand(new MentionCommand());
-        registerCommand(new SubscriptionCommand());
-        this.commands = new HashSet<>(commandMap.values());
+        this.announceCommand = new AnnounceCommand(messageTracker, mentionCoordinator, guildConfigProvider, commandExecutor);
+        router.register(announceCommand);
+        router.register(announceCommand.getScheduleCommand());
+        router.register(new ConfigCommand());
+        router.register(new HelpCommand());
+        router.register(new MentionCommand(mentionCoordinator, authorTracker));
+        router.register(new SubscriptionCommand(roleChangeBatcher));
+        registerMetrics(Utils.getMetrics());
+    }
+
+    @Override
+    public void onGenericEvent(GenericEvent event) {
+        gatewayEvents.increment();
     }
 
     @Override
     public void onReady(ReadyEvent event) {
-        String inviteUrl = event.getJDA().getInviteUrl(Permission.MANAGE_ROLES);
-        selfMentionPattern = Pattern.compile("^<@!?"+Pattern.quote(event.getJDA().getSelfUser().getId())+">\\s*");
+        ready(event.getJDA());
+    }
+
+    //split from onReady for the load generator, which can't create ReadyEvents for its fake JDA instance
+    void ready(JDA jda) {
+        String inviteUrl = jda.getInviteUrl(Permission.MANAGE_ROLES);
+        router.setSelfId(jda.getSelfUser().getId());
         Hermes.LOG.info("Bot is ready. Use following link to invite to servers: {}", inviteUrl);
+
+        //warm up the config cache before commands come in
+        long[] guildIds = jda.getGuilds().stream().mapToLong(Guild::getIdLong).toArray();
+        long start = System.currentTimeMillis();
+        guildConfigProvider.prefetchConfigs(guildIds).whenComplete((v, ex) -> {
+            if(ex != null)
+                Hermes.LOG.warn("Error prefetching guild configs", ex);
+            else
+                Hermes.LOG.info("Prefetched configs of {} guilds in {}ms", guildIds.length, System.currentTimeMillis() - start);
+        });
+
+        //only loaded once, the scheduler resolves guilds over all shards
+        ShardManager shardManager = jda.getShardManager();
+        announceCommand.getScheduler().load(shardManager == null ? jda::getGuildById : shardManager::getGuildById);
+    }
+
+    @Override
+    public void onGuildReady(GuildReadyEvent event) {
+        //roles might have changed while the guild was unavailable
+        Utils.getRoleNameIndex().invalidate(event.getGuild().getIdLong());
+        announceCommand.getScheduler().loadGuild(event.getGuild().getIdLong());
+    }
+
+    @Override
+    public void onGuildJoin(GuildJoinEvent event) {
+        guildConfigProvider.prefetchConfigs(new long[] { event.getGuild().getIdLong() });
+        //schedules of the guild were unloaded if the bot was in it before
+        announceCommand.getScheduler().loadGuild(event.getGuild().getIdLong());
+    }
+
+    @Override
+    public void onGuildLeave(GuildLeaveEvent event) {
+        Utils.getRoleNameIndex().invalidate(event.getGuild().getIdLong());
+        announceCommand.getScheduler().unload(event.getGuild().getIdLong());
+    }
+
+    @Override
+    public void onRoleCreate(RoleCreateEvent event) {
+        Utils.getRoleNameIndex().onRoleCreate(event.getRole());
+    }
+
+    @Override
+    public void onRoleDelete(RoleDeleteEvent event) {
+        Utils.getRoleNameIndex().onRoleDelete(event.getRole());
+    }
+
+    @Override
+    public void onRoleUpdateName(RoleUpdateNameEvent event) {
+        Utils.getRoleNameIndex().onRoleRename(event.getRole(), event.getOldName());
     }
 
     @Override
     public void onGuildMessageReceived(GuildMessageReceivedEvent event) {
+        //all messages (including ones of bots) count for the mention command's previous author check
+        authorTracker.onMessage(event.getChannel().getIdLong(), event.getMessageIdLong(), event.getAuthor().getIdLong());
+
         //ignore bots, webhooks,...
         if(event.getAuthor().isBot() || event.getMessage().isWebhookMessage() || event.getMember() == null)
             return;
 
-        String messageContentRaw = event.getMessage().getContentRaw();
-        //check and remove prefix (mention)
-        Matcher matcher = selfMentionPattern.matcher(messageContentRaw);
-        if(!matcher.find())
+        //check prefix (mention) and look up command
+        CommandRouter.Route route = router.route(event.getMessage().getContentRaw());
+        if(route == null)
             return;
 
-        String argString = matcher.replaceFirst("").trim();
-        if(argString.isEmpty()) //abort if no command specified
-            return;
+        ICommand command = route.getCommand();
+        long guildId = event.getGuild().getIdLong();
+        //start of config lookup + command handling, set when the lane gets to this command
+        long[] start = new long[1];
+        //config is resolved inside the lane to keep commands of a guild (and their config changes) in order,
+        //a config which has to be loaded from storage doesn't block a worker (and with it other guilds) meanwhile
+        boolean queued = commandExecutor.execute(guildId, () -> {
+            start[0] = System.nanoTime();
+            return guildConfigProvider.getConfigForGuildAsync(guildId);
+        }, (config, error) -> {
+            try {
+                if(error != null) {
+                    Hermes.LOG.error("Could not load config of guild {} for command {}", event.getGuild().getId(), command.getNames()[0], error);
+                    Utils.reactError(event, "Could not load the configuration of this server, please try again later");
+                    return;
+                }
+                command.handleCommand(event, config, route.getArgs());
+            } catch(RuntimeException ex) {
+                Hermes.LOG.error("Error handling command {} in guild {}", command.getNames()[0], event.getGuild().getId(), ex);
+            } finally {
+                commandLatency.get(command).recordSince(start[0]);
+            }
+        });
+        if(!queued) {
+            Hermes.LOG.debug("Dropped command {} in guild {} because too many commands are pending", command.getNames()[0],
+                    event.getGuild().getId());
+            Utils.reactError(event, "Too many commands are pending in this server, please try again in a moment");
+        }
+    }
 
-        String[] args = argString.split("\\s+", 2);
+    @Override
+    public void onGuildMessageDelete(GuildMessageDeleteEvent event) {
+        authorTracker.onDelete(event.getChannel().getIdLong(), event.getMessageIdLong());
+    }
 
-        ICommand command = commandMap.get(args[0].toLowerCase());
-        if(command != null) {
-            IGuildConfig guildConfig = guildConfigProvider.getConfigForGuild(event.getGuild());
-            command.handleCommand(event, guildConfig, args.length > 1 ? args[1] : "");
-        }
+    @Override
+    public void onReconnect(ReconnectedEvent event) {
+        //events received during the disconnect are lost, so the tracked messages and role names might be outdated
+        authorTracker.clear();
+        for(Guild guild : event.getJDA().getGuilds())
+            Utils.getRoleNameIndex().invalidate(guild.getIdLong());
     }
 
     @Override
     public void onGuildMessageUpdate(GuildMessageUpdateEvent event) {
-        commands.forEach(cmdHandler -> cmdHandler.handleUpdate(event));
+        //only messages tracked by a command are of interest
+        ICommand handler = messageTracker.getHandler(event.getMessageIdLong());
+        if(handler == null)
+            return;
+        commandExecutor.execute(event.getGuild().getIdLong(), () -> handler.handleUpdate(event));
     }
 
-    private void registerCommand(ICommand handler) {
-        for(String name : handler.getNames()) {
-            commandMap.put(name.toLowerCase(), handler);
+    private void registerMetrics(MetricsRegistry metrics) {
+        //only filled here, read-only afterwards
+        for(ICommand command : router.getCommands()) {
+            Histogram histogram = new Histogram();
+            commandLatency.put(command, histogram);
+            metrics.histogram("hermes_command_latency_seconds", "Time a command took to handle (including config lookup)",
+                    "command", command.getNames()[0], histogram);
         }
+        metrics.counter("hermes_gateway_events_total", "Events received from the gateway (over all shards)", gatewayEvents::sum);
+
+        metrics.gauge("hermes_command_queued", "Commands waiting to be executed", commandExecutor::getQueuedCount);
+        metrics.gauge("hermes_command_active_lanes", "Guilds with pending commands", commandExecutor::getActiveLaneCount);
+        metrics.counter("hermes_command_executed_total", "Executed commands", commandExecutor::getExecutedCount);
+        metrics.counter("hermes_command_failed_total", "Commands which threw an exception", commandExecutor::getFailedCount);
+        metrics.counter("hermes_command_rejected_total", "Commands dropped because of a full guild queue", commandExecutor::getRejectedCount);
+        metrics.counter("hermes_command_wait_nanos_total", "Total time commands waited in their queue", commandExecutor::getTotalWaitNanos);
+
+        metrics.counter("hermes_role_toggles_total", "Role toggles of the subscription command", roleChangeBatcher::getToggleCount);
+        metrics.counter("hermes_role_updates_total", "Batched role updates sent", roleChangeBatcher::getUpdateCount);
+        metrics.counter("hermes_role_updates_skipped_total", "Batched role updates which cancelled out", roleChangeBatcher::getSkippedCount);
+        metrics.counter("hermes_role_updates_failed_total", "Batched role updates which failed", roleChangeBatcher::getFailedCount);
+        metrics.gauge("hermes_role_updates_active_guilds", "Guilds with pending role updates", roleChangeBatcher::getActiveGuildCount);
+
+        metrics.gauge("hermes_mention_active_roles", "Roles temporarily made mentionable", mentionCoordinator::getActiveRoleCount);
+
+        AnnouncementScheduler scheduler = announceCommand.getScheduler();
+        metrics.gauge("hermes_scheduled_announcements", "Announcements on schedule", scheduler::getScheduledCount);
+        metrics.gauge("hermes_timer_pending", "Timers pending on the announcement timing wheel", scheduler.getTimingWheel()::getPendingCount);
+        metrics.counter("hermes_timer_executed_total", "Timers run by the announcement timing wheel", scheduler.getTimingWheel()::getExecutedCount);
+        metrics.counter("hermes_timer_failed_total", "Timers of the announcement timing wheel which threw an exception",
+                scheduler.getTimingWheel()::getFailedCount);
+    }
+
+    /**
+     * @return  The executor running the commands of all guilds
+     */
+    public LaneExecutor getCommandExecutor() {
+        return commandExecutor;
     }
 
 }
@@ -0,0 +1,382 @@
+package com.kantenkugel.hermes;
+
+import com.kantenkugel.common.Histogram;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageChannel;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.requests.RestAction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Schedules outgoing requests by priority, so announcements don't have to wait behind feedback messages.
+ * <p>
+ * Requests are scheduled per scope (the guild they belong to, or the user for direct messages).
+ * Only a limited number of requests of a scope is handed to JDA at once, which queues them per route and holds them
+ * while their route is rate-limited. This way, rate-limited requests only hold back requests of their own scope.
+ * Everything else waits in one queue per scope and {@link Priority} and is sent highest priority first
+ * once running requests of the scope complete.
+ * Feedback messages for a channel which already has feedback queued are merged into that message.
+ * Queues of the low priority classes are bounded per scope, new requests of a full class are dropped.
+ */
+public class OutboundScheduler {
+    private static final int MAX_MESSAGE_LENGTH = 2000;
+
+    /**
+     * Priority classes of outgoing requests, highest first.
+     */
+    public enum Priority {
+        ANNOUNCEMENT(-1),
+        MENTION(-1),
+        FEEDBACK(100),
+        DM(20);
+
+        private final int queueLimit;
+
+        Priority(int queueLimit) {
+            this.queueLimit = queueLimit;
+        }
+
+        /**
+         * @return  The max number of queued requests of this class per scope, {@code -1} if unbounded
+         */
+        public int getQueueLimit() {
+            return queueLimit;
+        }
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final int maxInFlightPerScope;
+    //guarded by this
+    private final Map<Long, Scope> scopes = new HashMap<>();
+    private final Map<Long, FeedbackOutbound> queuedFeedback = new HashMap<>();
+    private final int[] queuedCounts = new int[PRIORITIES.length];
+    private int inFlight = 0;
+
+    private final ClassStats[] stats = new ClassStats[PRIORITIES.length];
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param   maxInFlightPerScope
+     *          The max number of requests of one scope handed to JDA at once
+     */
+    public OutboundScheduler(int maxInFlightPerScope) {
+        if(maxInFlightPerScope < 1)
+            throw new IllegalArgumentException("Max in-flight requests must be at least 1");
+        this.maxInFlightPerScope = maxInFlightPerScope;
+        for(int i = 0; i < PRIORITIES.length; i++)
+            stats[i] = new ClassStats();
+    }
+
+    /**
+     * Schedules a request.
+     *
+     * @param   priority
+     *          The priority class of the request
+     * @param   scope
+     *          The id of the guild the request belongs to, or of the user for direct messages
+     * @param   action
+     *          Creates the request. Called once it is the request's turn
+     * @param   success
+     *          Called with the result of the request, may be {@code null}
+     * @param   failure
+     *          Called if the request (or its creation) failed, may be {@code null}
+     * @return  {@code true} if the request was scheduled, {@code false} if it was dropped because the queue of its class is full
+     */
+    public <T> boolean submit(@NotNull Priority priority, long scope, @NotNull Supplier<? extends RestAction<T>> action,
+                              @Nullable Consumer<? super T> success, @Nullable Consumer<? super Throwable> failure) {
+        return enqueue(new Outbound<>(priority, scope, action, success, failure));
+    }
+
+    /**
+     * Schedules a request without callbacks.
+     *
+     * @param   priority
+     *          The priority class of the request
+     * @param   scope
+     *          The id of the guild the request belongs to, or of the user for direct messages
+     * @param   action
+     *          The request
+     * @return  {@code true} if the request was scheduled, {@code false} if it was dropped because the queue of its class is full
+     */
+    public boolean submit(@NotNull Priority priority, long scope, @NotNull RestAction<?> action) {
+        return enqueue(new Outbound<>(priority, scope, () -> action, null, null));
+    }
+
+    /**
+     * Schedules a feedback message. Feedback messages queued for the same channel are merged into one message if possible.
+     * Messages in guild channels are scoped to their guild, others to the channel.
+     *
+     * @param   channel
+     *          The channel to send the message in
+     * @param   text
+     *          The message content
+     * @return  {@code true} if the message was scheduled or merged, {@code false} if it was dropped because the feedback queue is full
+     */
+    public boolean sendFeedback(@NotNull MessageChannel channel, @NotNull String text) {
+        ClassStats feedbackStats = stats[Priority.FEEDBACK.ordinal()];
+        synchronized(this) {
+            FeedbackOutbound queued = queuedFeedback.get(channel.getIdLong());
+            if(queued != null && queued.text.length() + 1 + text.length() <= MAX_MESSAGE_LENGTH) {
+                queued.text.append('\n').append(text);
+                feedbackStats.merged.increment();
+                return true;
+            }
+        }
+        long scope = channel instanceof TextChannel ? ((TextChannel) channel).getGuild().getIdLong() : channel.getIdLong();
+        return enqueue(new FeedbackOutbound(channel, scope, new StringBuilder(text)));
+    }
+
+    /**
+     * @param   priority
+     *          The priority class
+     * @return  The number of currently queued requests of the given class (over all scopes)
+     */
+    public synchronized int getQueuedCount(@NotNull Priority priority) {
+        return queuedCounts[priority.ordinal()];
+    }
+
+    /**
+     * @return  The number of requests currently handed to JDA (over all scopes)
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * @param   priority
+     *          The priority class
+     * @return  The total number of completed (successful or failed) requests of the given class
+     */
+    public long getCompletedCount(@NotNull Priority priority) {
+        return stats[priority.ordinal()].completed.sum();
+    }
+
+    /**
+     * @param   priority
+     *          The priority class
+     * @return  The total number of requests of the given class dropped because of a full queue
+     */
+    public long getDroppedCount(@NotNull Priority priority) {
+        return stats[priority.ordinal()].dropped.sum();
+    }
+
+    /**
+     * @param   priority
+     *          The priority class
+     * @return  The total number of messages of the given class merged into already queued ones
+     */
+    public long getMergedCount(@NotNull Priority priority) {
+        return stats[priority.ordinal()].merged.sum();
+    }
+
+    /**
+     * @param   priority
+     *          The priority class
+     * @return  The total time (in nanoseconds) requests of the given class took from scheduling to completion
+     */
+    public long getTotalLatencyNanos(@NotNull Priority priority) {
+        return stats[priority.ordinal()].latencyNanos.sum();
+    }
+
+    /**
+     * @param   priority
+     *          The priority class
+     * @return  The longest time (in nanoseconds) a request of the given class took from scheduling to completion
+     */
+    public long getMaxLatencyNanos(@NotNull Priority priority) {
+        return stats[priority.ordinal()].maxLatencyNanos.get();
+    }
+
+    /**
+     * @param   priority
+     *          The priority class
+     * @return  Histogram of the time requests of the given class took from being handed to JDA until their callback completed
+     */
+    @NotNull
+    public Histogram getRestLatency(@NotNull Priority priority) {
+        return stats[priority.ordinal()].restLatency;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("OutboundScheduler[inFlight=").append(getInFlightCount());
+        for(Priority priority : PRIORITIES) {
+            long completed = getCompletedCount(priority);
+            builder.append(String.format(", %s(queued=%d, completed=%d, dropped=%d, merged=%d, avgLatency=%.2fms, maxLatency=%.2fms)",
+                    priority, getQueuedCount(priority), completed, getDroppedCount(priority), getMergedCount(priority),
+                    completed == 0 ? 0D : getTotalLatencyNanos(priority) / (double) completed / 1_000_000D,
+                    getMaxLatencyNanos(priority) / 1_000_000D));
+        }
+        return builder.append(']').toString();
+    }
+
+    private boolean enqueue(Outbound<?> outbound) {
+        ClassStats classStats = stats[outbound.priority.ordinal()];
+        Scope scope;
+        synchronized(this) {
+            scope = scopes.computeIfAbsent(outbound.scopeId, Scope::new);
+            ArrayDeque<Outbound<?>> queue = scope.queues[outbound.priority.ordinal()];
+            if(outbound.priority.queueLimit >= 0 && queue.size() >= outbound.priority.queueLimit) {
+                classStats.dropped.increment();
+                if(scope.inFlight == 0 && scope.isEmpty())
+                    scopes.remove(scope.id, scope);
+                return false;
+            }
+            queue.add(outbound);
+            queuedCounts[outbound.priority.ordinal()]++;
+            outbound.scope = scope;
+            if(outbound instanceof FeedbackOutbound)
+                queuedFeedback.put(((FeedbackOutbound) outbound).channel.getIdLong(), (FeedbackOutbound) outbound);
+        }
+        dispatch(scope);
+        return true;
+    }
+
+    private void dispatch(Scope scope) {
+        while(true) {
+            Outbound<?> next = null;
+            synchronized(this) {
+                if(scope.inFlight >= maxInFlightPerScope)
+                    return;
+                for(ArrayDeque<Outbound<?>> queue : scope.queues) {
+                    next = queue.poll();
+                    if(next != null)
+                        break;
+                }
+                if(next == null) {
+                    if(scope.inFlight == 0)
+                        scopes.remove(scope.id, scope);
+                    return;
+                }
+                if(next instanceof FeedbackOutbound)
+                    //no more merging once handed out
+                    queuedFeedback.remove(((FeedbackOutbound) next).channel.getIdLong(), next);
+                queuedCounts[next.priority.ordinal()]--;
+                scope.inFlight++;
+                inFlight++;
+            }
+            next.execute();
+        }
+    }
+
+    private void complete(Outbound<?> outbound) {
+        long now = System.nanoTime();
+        long latency = now - outbound.queuedAt;
+        ClassStats classStats = stats[outbound.priority.ordinal()];
+        classStats.restLatency.record(now - outbound.handedOutAt);
+        classStats.completed.increment();
+        classStats.latencyNanos.add(latency);
+        long max;
+        while(latency > (max = classStats.maxLatencyNanos.get()) && !classStats.maxLatencyNanos.compareAndSet(max, latency));
+        synchronized(this) {
+            outbound.scope.inFlight--;
+            inFlight--;
+        }
+        dispatch(outbound.scope);
+    }
+
+    private static class ClassStats {
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder merged = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+        private final Histogram restLatency = new Histogram();
+    }
+
+    private static class Scope {
+        private final long id;
+        //guarded by the scheduler
+        private final ArrayDeque<Outbound<?>>[] queues;
+        private int inFlight = 0;
+
+        @SuppressWarnings("unchecked")
+        private Scope(long id) {
+            this.id = id;
+            this.queues = new ArrayDeque[PRIORITIES.length];
+            for(int i = 0; i < PRIORITIES.length; i++)
+                queues[i] = new ArrayDeque<>();
+        }
+
+        private boolean isEmpty() {
+            for(ArrayDeque<Outbound<?>> queue : queues) {
+                if(!queue.isEmpty())
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private class Outbound<T> {
+        private final Priority priority;
+        private final long scopeId;
+        private final Supplier<? extends RestAction<T>> action;
+        private final Consumer<? super T> success;
+        private final Consumer<? super Throwable> failure;
+        private final long queuedAt = System.nanoTime();
+        private long handedOutAt;
+        //set when queued, guarded by the scheduler
+        private Scope scope;
+
+        private Outbound(Priority priority, long scopeId, Supplier<? extends RestAction<T>> action, Consumer<? super T> success,
+                         Consumer<? super Throwable> failure) {
+            this.priority = priority;
+            this.scopeId = scopeId;
+            this.action = action;
+            this.success = success;
+            this.failure = failure;
+        }
+
+        private void execute() {
+            handedOutAt = System.nanoTime();
+            try {
+                //queue throws as well if JDA already shut down its executors, the callbacks are not called then
+                action.get().queue(result -> {
+                    try {
+                        if(success != null)
+                            success.accept(result);
+                    } finally {
+                        complete(this);
+                    }
+                }, err -> {
+                    try {
+                        if(failure != null)
+                            failure.accept(err);
+                    } finally {
+                        complete(this);
+                    }
+                });
+            } catch(RuntimeException ex) {
+                try {
+                    if(failure != null)
+                        failure.accept(ex);
+                } finally {
+                    complete(this);
+                }
+            }
+        }
+    }
+
+    private class FeedbackOutbound extends Outbound<Message> {
+        private final MessageChannel channel;
+        //guarded by the scheduler while queued, read once handed out
+        private final StringBuilder text;
+
+        private FeedbackOutbound(MessageChannel channel, long scope, StringBuilder text) {
+            super(Priority.FEEDBACK, scope, () -> channel.sendMessage(text.toString()), null, null);
+            this.channel = channel;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.kantenkugel.hermes;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Role;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Case-insensitive index of role names per guild.
+ * <p>
+ * The index of a guild is built from its roles on first lookup and afterwards kept up to date via role events
+ * ({@link #onRoleCreate(Role)}, {@link #onRoleDelete(Role)}, {@link #onRoleRename(Role, String)}).
+ * Only role ids are indexed, the roles themselves are resolved from the guild on lookup.
+ * If a resolved role doesn't exist anymore or has a different name (a role event got lost), the index of the guild is rebuilt.
+ */
+public class RoleNameIndex {
+    private static final long[] NO_IDS = new long[0];
+
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<String, long[]>> guilds = new ConcurrentHashMap<>();
+
+    /**
+     * Retrieves all roles of the Guild matching the given name (ignoring case).<br>
+     * First, the name is tried as-is and in a second attempt, all underscores are replaced by spaces.
+     *
+     * @param   guild
+     *          The Guild where the Roles should be searched for in
+     * @param   name
+     *          The name of the Roles to search
+     * @return  All found roles with given name, ordered by position (highest first)
+     */
+    @NotNull
+    public List<Role> getRolesByName(@NotNull Guild guild, @NotNull String name) {
+        String key = normalize(name.trim());
+        List<Role> roles = lookup(guilds.computeIfAbsent(guild.getIdLong(), id -> buildIndex(guild)), guild, key, true);
+        if(roles == null) {
+            //stale index, a freshly built one can only be off by concurrent changes, so mismatches are just skipped
+            ConcurrentHashMap<String, long[]> index = buildIndex(guild);
+            guilds.put(guild.getIdLong(), index);
+            roles = lookup(index, guild, key, false);
+        }
+        return roles;
+    }
+
+    //returns null if strict and the index doesn't match the roles of the guild
+    private static List<Role> lookup(ConcurrentHashMap<String, long[]> index, Guild guild, String key, boolean strict) {
+        long[] ids = index.getOrDefault(key, NO_IDS);
+        if(ids.length == 0 && key.indexOf('_') >= 0) {
+            key = key.replace('_', ' ');
+            ids = index.getOrDefault(key, NO_IDS);
+        }
+
+        if(ids.length == 0)
+            return Collections.emptyList();
+        List<Role> roles = new ArrayList<>(ids.length);
+        for(long id : ids) {
+            Role role = guild.getRoleById(id);
+            if(role != null && normalize(role.getName()).equals(key))
+                roles.add(role);
+            else if(strict)
+                return null;
+        }
+        if(roles.size() > 1)
+            roles.sort(Comparator.reverseOrder());
+        return roles;
+    }
+
+    /**
+     * Adds a newly created role to the index of its guild.
+     *
+     * @param   role
+     *          The created role
+     */
+    public void onRoleCreate(@NotNull Role role) {
+        ConcurrentHashMap<String, long[]> index = guilds.get(role.getGuild().getIdLong());
+        if(index != null)
+            add(index, normalize(role.getName()), role.getIdLong());
+    }
+
+    /**
+     * Removes a deleted role from the index of its guild.
+     *
+     * @param   role
+     *          The deleted role
+     */
+    public void onRoleDelete(@NotNull Role role) {
+        ConcurrentHashMap<String, long[]> index = guilds.get(role.getGuild().getIdLong());
+        if(index != null)
+            remove(index, normalize(role.getName()), role.getIdLong());
+    }
+
+    /**
+     * Moves a renamed role to its new name in the index of its guild.
+     *
+     * @param   role
+     *          The renamed role
+     * @param   oldName
+     *          The name of the role before the rename
+     */
+    public void onRoleRename(@NotNull Role role, @NotNull String oldName) {
+        ConcurrentHashMap<String, long[]> index = guilds.get(role.getGuild().getIdLong());
+        if(index != null) {
+            remove(index, normalize(oldName), role.getIdLong());
+            add(index, normalize(role.getName()), role.getIdLong());
+        }
+    }
+
+    /**
+     * Drops the index of a guild, e.g. when leaving it or when role events might have been missed. It is rebuilt on the next lookup.
+     *
+     * @param   guildId
+     *          The id of the guild
+     */
+    public void invalidate(long guildId) {
+        guilds.remove(guildId);
+    }
+
+    private static ConcurrentHashMap<String, long[]> buildIndex(Guild guild) {
+        ConcurrentHashMap<String, long[]> index = new ConcurrentHashMap<>();
+        for(Role role : guild.getRoles())
+            add(index, normalize(role.getName()), role.getIdLong());
+        return index;
+    }
+
+    private static void add(ConcurrentHashMap<String, long[]> index, String key, long roleId) {
+        index.merge(key, new long[] { roleId }, (ids, added) -> {
+            for(long id : ids) {
+                if(id == roleId)
+                    return ids;
+            }
+            long[] newIds = Arrays.copyOf(ids, ids.length + 1);
+            newIds[ids.length] = roleId;
+            return newIds;
+        });
+    }
+
+    private static void remove(ConcurrentHashMap<String, long[]> index, String key, long roleId) {
+        index.computeIfPresent(key, (k, ids) -> {
+            long[] newIds = new long[ids.length];
+            int count = 0;
+            for(long id : ids) {
+                if(id != roleId)
+                    newIds[count++] = id;
+            }
+            return count == 0 ? null : count == ids.length ? ids : Arrays.copyOf(newIds, count);
+        });
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,5 +1,6 @@
 package com.kantenkugel.hermes;
 
+import com.kantenkugel.common.MetricsRegistry;
 import com.kantenkugel.hermes.guildConfig.IGuildConfig;
 import net.dv8tion.jda.api.EmbedBuilder;
 import net.dv8tion.jda.api.MessageBuilder;
@@ -7,7 +8,9 @@ import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageChannel;
 import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -16,17 +19,45 @@ import org.json.JSONTokener;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Utils {
+    private static final RoleNameIndex ROLE_NAME_INDEX = new RoleNameIndex();
+    //per guild (or user for DMs), JDA holds back requests of rate-limited routes on its own
+    private static final int MAX_OUTBOUND_IN_FLIGHT_PER_SCOPE = 4;
+    private static final OutboundScheduler OUTBOUND_SCHEDULER = new OutboundScheduler(MAX_OUTBOUND_IN_FLIGHT_PER_SCOPE);
+    private static final MetricsRegistry METRICS = new MetricsRegistry();
+
+    static {
+        for(OutboundScheduler.Priority priority : OutboundScheduler.Priority.values()) {
+            String name = priority.name().toLowerCase();
+            METRICS.gauge("hermes_outbound_queued", "Requests waiting to be sent", "priority", name,
+                    () -> OUTBOUND_SCHEDULER.getQueuedCount(priority));
+            METRICS.counter("hermes_outbound_completed_total", "Completed (successful or failed) requests", "priority", name,
+                    () -> OUTBOUND_SCHEDULER.getCompletedCount(priority));
+            METRICS.counter("hermes_outbound_dropped_total", "Requests dropped because of a full queue", "priority", name,
+                    () -> OUTBOUND_SCHEDULER.getDroppedCount(priority));
+            METRICS.counter("hermes_outbound_merged_total", "Feedback messages merged into already queued ones", "priority", name,
+                    () -> OUTBOUND_SCHEDULER.getMergedCount(priority));
+            METRICS.histogram("hermes_rest_latency_seconds", "Time from handing a request to JDA until its callback completed",
+                    "priority", name, OUTBOUND_SCHEDULER.getRestLatency(priority));
+        }
+        METRICS.gauge("hermes_outbound_in_flight", "Requests currently handed to JDA", OUTBOUND_SCHEDULER::getInFlightCount);
+    }
+
     /**
      * Tries to read json (object) from the given file path.
      *
@@ -59,6 +90,30 @@ public class Utils {
         Files.write(path, json.toString(4).getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
     }
 
+    /**
+     * Writes a json object to the given file path in a crash-safe way.
+     * The json is first written (and synced) to a temporary file next to the target,
+     * which is then atomically renamed to the target path.
+     *
+     * @param   path
+     *          The file path to write to
+     * @param   json
+     *          The json to write to the file
+     *
+     * @throws  IOException
+     *          If there was some error writing the json data
+     */
+    public static void writeJsonAtomically(@NotNull Path path, @NotNull JSONObject json) throws IOException {
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(json.toString(4).getBytes(StandardCharsets.UTF_8));
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
     /**
      * Tries to react in a positive way to the given event.<br>
      * This is a shorthand for {@link #reactSuccess(GuildMessageReceivedEvent, String) reactSuccess(event, "Done")}.<br>
@@ -143,7 +198,7 @@ public class Utils {
     public static void react(@NotNull GuildMessageReceivedEvent event, @NotNull String reaction, @NotNull String messageContent) {
         boolean canReact = event.getGuild().getSelfMember().hasPermission(event.getChannel(), Permission.MESSAGE_ADD_REACTION);
         if(canReact)                            //try reacting first
-            event.getMessage().addReaction(reaction).queue();
+            OUTBOUND_SCHEDULER.submit(OutboundScheduler.Priority.FEEDBACK, event.getGuild().getIdLong(), event.getMessage().addReaction(reaction));
         else                                    //try send message in channel/dm
             sendMessageExhaustive(event, messageContent);
     }
@@ -159,9 +214,45 @@ public class Utils {
      */
     public static void sendMessageExhaustive(@NotNull GuildMessageReceivedEvent event, @NotNull String message) {
         if(event.getChannel().canTalk())        //then try message
-            event.getChannel().sendMessage(message).queue();
+            sendFeedback(event.getChannel(), message);
         else                                    //lastly, send dm and ignore error
-            event.getAuthor().openPrivateChannel().queue(chan -> chan.sendMessage(message + " (could not react/message in server)").queue(), err -> {});
+            sendDirectMessage(event.getAuthor(), message + " (could not react/message in server)");
+    }
+
+    /**
+     * Sends a feedback message (e.g. errors or confirmations of commands) with feedback priority.
+     * Feedback queued for the same channel may be merged into one message and feedback is dropped if too much is queued.
+     *
+     * @param   channel
+     *          The channel to send the message in
+     * @param   message
+     *          The message to send
+     *
+     * @see OutboundScheduler#sendFeedback(MessageChannel, String)
+     */
+    public static void sendFeedback(@NotNull MessageChannel channel, @NotNull String message) {
+        OUTBOUND_SCHEDULER.sendFeedback(channel, message);
+    }
+
+    /**
+     * Sends a direct message to the given user with DM priority, ignoring errors (e.g. closed DMs).
+     *
+     * @param   user
+     *          The user to send the message to
+     * @param   message
+     *          The message to send
+     */
+    public static void sendDirectMessage(@NotNull User user, @NotNull String message) {
+        OUTBOUND_SCHEDULER.submit(OutboundScheduler.Priority.DM, user.getIdLong(), user::openPrivateChannel,
+                channel -> OUTBOUND_SCHEDULER.submit(OutboundScheduler.Priority.DM, user.getIdLong(), channel.sendMessage(message)), null);
+    }
+
+    /**
+     * @return  The scheduler all outgoing messages should be sent through
+     */
+    @NotNull
+    public static OutboundScheduler getOutboundScheduler() {
+        return OUTBOUND_SCHEDULER;
     }
 
     /**
@@ -209,16 +300,73 @@ public class Utils {
      */
     @NotNull
     public static Message getAnnouncementMessage(@NotNull Role role, @NotNull String text, @NotNull Member author) {
-        String avatarUrl = author.getUser().getEffectiveAvatarUrl();
-        if(avatarUrl.endsWith(".gif"))      //force "static" png avatar in footer instead of possibly animated one
-            avatarUrl = avatarUrl.substring(0, avatarUrl.length() - 3) + "png";
+        return getAnnouncementMessage(role, text, author.getEffectiveName(), getAnnouncementAvatarUrl(author));
+    }
+
+    /**
+     * Creates the announcement message used in the announce command for an author which might not be available anymore
+     * (e.g. for scheduled announcements).
+     *
+     * @param   role
+     *          The role to mention
+     * @param   text
+     *          The announcement text
+     * @param   authorName
+     *          The name of the author
+     * @param   authorAvatarUrl
+     *          The avatar url of the author, see {@link #getAnnouncementAvatarUrl(Member)}
+     * @return  Message object ready to be sent to discord
+     *
+     * @see #getAnnouncementMessage(Role, String, Member)
+     */
+    @NotNull
+    public static Message getAnnouncementMessage(@NotNull Role role, @NotNull String text, @NotNull String authorName,
+                                                 @NotNull String authorAvatarUrl) {
+        return getAnnouncementMessage(Collections.singletonList(role), text, authorName, authorAvatarUrl);
+    }
+
+    /**
+     * Creates the announcement message used in the announce command for announcements mentioning multiple roles.
+     * The message is the same for every channel, so it only has to be created once per announcement.
+     *
+     * @param   roles
+     *          The roles to mention
+     * @param   text
+     *          The announcement text
+     * @param   authorName
+     *          The name of the author
+     * @param   authorAvatarUrl
+     *          The avatar url of the author, see {@link #getAnnouncementAvatarUrl(Member)}
+     * @return  Message object ready to be sent to discord
+     *
+     * @see #getAnnouncementMessage(Role, String, String, String)
+     */
+    @NotNull
+    public static Message getAnnouncementMessage(@NotNull Collection<Role> roles, @NotNull String text, @NotNull String authorName,
+                                                 @NotNull String authorAvatarUrl) {
         EmbedBuilder embedBuilder = new EmbedBuilder()
                 .setTitle("Announcement")
                 .setDescription(text)
                 .setColor(0xFFFFD0)
-                .setFooter(author.getEffectiveName(), avatarUrl)
+                .setFooter(authorName, authorAvatarUrl)
                 .setTimestamp(Instant.now());
-        return new MessageBuilder(role.getAsMention()).setEmbed(embedBuilder.build()).build();
+        String mentions = roles.stream().map(Role::getAsMention).collect(Collectors.joining(" "));
+        return new MessageBuilder(mentions).setEmbed(embedBuilder.build()).build();
+    }
+
+    /**
+     * Retrieves the avatar url of an announcement author shown in the footer of announcements.
+     *
+     * @param   author
+     *          The author of the announcement
+     * @return  The avatar url of the author, never animated
+     */
+    @NotNull
+    public static String getAnnouncementAvatarUrl(@NotNull Member author) {
+        String avatarUrl = author.getUser().getEffectiveAvatarUrl();
+        if(avatarUrl.endsWith(".gif"))      //force "static" png avatar in footer instead of possibly animated one
+            avatarUrl = avatarUrl.substring(0, avatarUrl.length() - 3) + "png";
+        return avatarUrl;
     }
 
     /**
@@ -248,7 +396,7 @@ public class Utils {
     }
 
     /**
-     * Retrieves all roles of the Guild matching the given name.<br>
+     * Retrieves all roles of the Guild matching the given name (ignoring case) via the {@link #getRoleNameIndex() role name index}.<br>
      * First, the name is tried as-is and in a second attempt, all underscores are replaced by spaces.
      *
      * @param   guild
@@ -259,10 +407,22 @@ public class Utils {
      */
     @NotNull
     public static List<Role> getRolesByName(@NotNull Guild guild, @NotNull String name) {
-        name = name.trim();
-        List<Role> rolesByName = guild.getRolesByName(name, true);
-        if(rolesByName.isEmpty() && name.contains("_"))
-            return guild.getRolesByName(name.replace('_', ' '), true);
-        return rolesByName;
+        return ROLE_NAME_INDEX.getRolesByName(guild, name);
+    }
+
+    /**
+     * @return  The role name index used by {@link #getRolesByName(Guild, String)}
+     */
+    @NotNull
+    public static RoleNameIndex getRoleNameIndex() {
+        return ROLE_NAME_INDEX;
+    }
+
+    /**
+     * @return  The registry all metrics of Hermes are registered in
+     */
+    @NotNull
+    public static MetricsRegistry getMetrics() {
+        return METRICS;
     }
 }
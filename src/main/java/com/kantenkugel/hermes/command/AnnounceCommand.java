@@ -1,22 +1,70 @@
 package com.kantenkugel.hermes.command;
 
-import com.kantenkugel.common.FixedSizeCache;
+import com.kantenkugel.common.LaneExecutor;
+import com.kantenkugel.hermes.OutboundScheduler;
 import com.kantenkugel.hermes.Utils;
 import com.kantenkugel.hermes.guildConfig.IGuildConfig;
+import com.kantenkugel.hermes.guildConfig.IGuildConfigProvider;
+import com.kantenkugel.hermes.guildConfig.ScheduledAnnouncement;
 import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.entities.TextChannel;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageUpdateEvent;
+import net.dv8tion.jda.api.requests.RestAction;
 
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public class AnnounceCommand implements ICommand {
     private static final String[] NAMES = {"announce"};
-    private static final Map<Long, Message> CACHE = new FixedSizeCache<>(5);
+    private static final int MAX_ANNOUNCEMENTS_PER_GUILD = 10;
+    private static final long ANNOUNCEMENT_TTL = TimeUnit.HOURS.toMillis(6);
+
+    private static final String SYNTAX = "Syntax: `announce role_name [, role_name ...] [ | channel_mention ...] | text`\n" +
+            "Put role names containing a comma in double quotes";
+    private static final String[] SCHEDULE_NAMES = {"schedule"};
+    private static final String SCHEDULE_SYNTAX = "Syntax: `schedule time [every interval] | role_name [ | channel_mention] | text`, " +
+            "`schedule list` or `schedule cancel id`\n" +
+            "time is either a duration from now (e.g. `1d12h30m`) or a UTC timestamp (e.g. `2020-06-01T18:00:00Z`), " +
+            "interval is a duration of at least 10 minutes";
+    private static final int MAX_FAN_OUT_ROLES = 10;
+    private static final int MAX_FAN_OUT_CHANNELS = 10;
+    private static final Pattern CHANNEL_MENTION_PATTERN = Pattern.compile("<#(\\d+)>");
+    private static final int MAX_SCHEDULES_PER_GUILD = 20;
+    private static final long MIN_SCHEDULE_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+    private static final Pattern DURATION_PATTERN = Pattern.compile("(?:(\\d{1,4})d)?(?:(\\d{1,5})h)?(?:(\\d{1,6})m)?",
+            Pattern.CASE_INSENSITIVE);
+
+    private final MessageTracker messageTracker;
+    private final MentionCoordinator mentionCoordinator;
+    private final AnnouncementStore announcements;
+    private final AnnouncementScheduler scheduler;
+    private final ScheduleCommand scheduleCommand = new ScheduleCommand();
+
+    public AnnounceCommand(MessageTracker messageTracker, MentionCoordinator mentionCoordinator,
+                           IGuildConfigProvider guildConfigProvider, LaneExecutor commandExecutor) {
+        this.messageTracker = messageTracker;
+        this.mentionCoordinator = mentionCoordinator;
+        //dropped announcements can't be edited anymore
+        this.announcements = new AnnouncementStore(MAX_ANNOUNCEMENTS_PER_GUILD, ANNOUNCEMENT_TTL, messageTracker::untrack);
+        this.scheduler = new AnnouncementScheduler(guildConfigProvider, commandExecutor, this::postScheduled);
+    }
 
     @Override
     public void handleCommand(GuildMessageReceivedEvent event, IGuildConfig guildConfig, String args) {
@@ -26,98 +74,418 @@ public class AnnounceCommand implements ICommand {
 
         //can bot talk in current channel? (important for feedback)
         if(!event.getChannel().canTalk()) {
-            event.getAuthor().openPrivateChannel().queue(ch -> {
-                ch.sendMessage("Can not send messages in channel "+event.getChannel().getName()).queue();
-            }, err -> {});
+            Utils.sendDirectMessage(event.getAuthor(), "Can not send messages in channel "+event.getChannel().getName());
+            return;
+        }
+
+        Target target = getTarget(event, guildConfig, args, SYNTAX);
+        if(target == null)
+            return;
+        //announce, the message is the same in every channel
+        Member author = event.getMember();
+        Message message = Utils.getAnnouncementMessage(target.roles, target.text, author.getEffectiveName(),
+                Utils.getAnnouncementAvatarUrl(author));
+        fanOut(target, message, result -> {
+            //cache sent message for future edits (only announcements to a single role and channel can be edited)
+            if(target.isSingle() && result.sent[0] != null)
+                storeAnnouncement(event, result.sent[0], target.roles.get(0));
+            reportFanOut(event, target, result);
+        });
+    }
+
+    @Override
+    public void handleUpdate(GuildMessageUpdateEvent event) {
+        //handle updates of announcement commands
+        long commandId = event.getMessageIdLong();
+        AnnouncementStore.Announcement announcement = announcements.get(event.getGuild().getIdLong(), commandId);
+        if(announcement == null) {
+            messageTracker.untrack(commandId);
+            return;
+        }
+        TextChannel channel = event.getGuild().getTextChannelById(announcement.getChannelId());
+        Role role = event.getGuild().getRoleById(announcement.getRoleId());
+        if(channel == null || role == null || event.getMember() == null) {
+            forgetAnnouncement(event.getGuild().getIdLong(), commandId);
+            return;
+        }
+        String[] splits = event.getMessage().getContentRaw().split("\\s*\\|\\s*", 3);
+        Utils.getOutboundScheduler().submit(OutboundScheduler.Priority.ANNOUNCEMENT, event.getGuild().getIdLong(),
+                () -> channel.editMessageById(announcement.getBotMessageId(), Utils.getAnnouncementMessage(role, splits[splits.length-1].trim(), event.getMember())),
+                //announcement was most likely deleted
+                null, err -> forgetAnnouncement(event.getGuild().getIdLong(), commandId));
+    }
+
+    /**
+     * @return  The scheduler posting scheduled announcements
+     */
+    public AnnouncementScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return  The command managing scheduled announcements. It is separate from this command,
+     *          so its sub-commands can't collide with role names
+     */
+    public ICommand getScheduleCommand() {
+        return scheduleCommand;
+    }
+
+    private void schedule(GuildMessageReceivedEvent event, IGuildConfig guildConfig, String args) {
+        //time [every interval] | role_name [ | channel_mention] | text
+        String[] splits = args.split("\\s*\\|\\s*", 2);
+        String[] timing = splits[0].trim().split("\\s+");
+        if(splits.length < 2 || (timing.length != 1 && timing.length != 3) || (timing.length == 3 && !timing[1].equalsIgnoreCase("every"))) {
+            Utils.sendFeedback(event.getChannel(), SCHEDULE_SYNTAX);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long nextRun = parseTime(timing[0], now);
+        long interval = timing.length == 3 ? parseDuration(timing[2]) : 0;
+        if(nextRun <= now) {
+            Utils.sendFeedback(event.getChannel(), "Invalid time or time in the past! " + SCHEDULE_SYNTAX);
             return;
         }
+        if(timing.length == 3 && interval < MIN_SCHEDULE_INTERVAL) {
+            Utils.sendFeedback(event.getChannel(), "Invalid interval! " + SCHEDULE_SYNTAX);
+            return;
+        }
+        if(guildConfig.getScheduledAnnouncements().size() >= MAX_SCHEDULES_PER_GUILD) {
+            Utils.sendFeedback(event.getChannel(), "Too many scheduled announcements! Remove some first (see `schedule list`)");
+            return;
+        }
+
+        Target target = getTarget(event, guildConfig, splits[1], SCHEDULE_SYNTAX);
+        if(target == null)
+            return;
+        if(!target.isSingle()) {
+            Utils.sendFeedback(event.getChannel(), "Scheduled announcements only support a single role and channel!");
+            return;
+        }
+        ScheduledAnnouncement announcement = new ScheduledAnnouncement(event.getMessageIdLong(), event.getGuild().getIdLong(),
+                target.channels.get(0).getIdLong(), target.roles.get(0).getIdLong(), nextRun, interval, target.text,
+                event.getMember().getEffectiveName(), Utils.getAnnouncementAvatarUrl(event.getMember()));
+        try {
+            guildConfig.putScheduledAnnouncement(announcement);
+        } catch(UnsupportedOperationException ex) {
+            //custom config providers might not implement scheduling
+            Utils.sendFeedback(event.getChannel(), "Scheduled announcements are not supported by the configured storage!");
+            return;
+        }
+        guildConfig.update();
+        scheduler.schedule(announcement);
+        Utils.sendFeedback(event.getChannel(), String.format("Scheduled announcement `%s` for %s%s. Cancel it with `schedule cancel %1$s`",
+                Long.toUnsignedString(announcement.getId()), Instant.ofEpochMilli(nextRun),
+                interval == 0 ? "" : ", repeated every " + formatDuration(interval)));
+    }
 
+    private void listSchedules(GuildMessageReceivedEvent event, IGuildConfig guildConfig) {
+        List<ScheduledAnnouncement> scheduled = guildConfig.getScheduledAnnouncements();
+        if(scheduled.isEmpty()) {
+            Utils.sendFeedback(event.getChannel(), "There are no scheduled announcements");
+            return;
+        }
+        Utils.sendFeedback(event.getChannel(), "**Scheduled announcements:**\n" + scheduled.stream().map(announcement -> {
+            Role role = event.getGuild().getRoleById(announcement.getRoleId());
+            return String.format("`%s` - %s in <#%s> at %s%s", Long.toUnsignedString(announcement.getId()),
+                    role == null ? "deleted role" : role.getName(), Long.toUnsignedString(announcement.getChannelId()),
+                    Instant.ofEpochMilli(announcement.getNextRun()),
+                    announcement.isRecurring() ? " (every " + formatDuration(announcement.getInterval()) + ")" : "");
+        }).collect(Collectors.joining("\n")));
+    }
+
+    private void unschedule(GuildMessageReceivedEvent event, IGuildConfig guildConfig, String idString) {
+        long id;
+        try {
+            id = Long.parseUnsignedLong(idString);
+        } catch(NumberFormatException ex) {
+            Utils.sendFeedback(event.getChannel(), "Syntax: `schedule cancel id` (see `schedule list`)");
+            return;
+        }
+        if(!guildConfig.removeScheduledAnnouncement(id)) {
+            Utils.sendFeedback(event.getChannel(), "No scheduled announcement with this id found!");
+            return;
+        }
+        guildConfig.update();
+        scheduler.cancel(id);
+        Utils.reactSuccess(event);
+    }
+
+    //called in the lane of the guild once a scheduled announcement is due
+    private boolean postScheduled(Guild guild, IGuildConfig guildConfig, ScheduledAnnouncement announcement) {
+        TextChannel channel = guild.getTextChannelById(announcement.getChannelId());
+        Role role = guild.getRoleById(announcement.getRoleId());
+        if(channel == null || role == null || !guildConfig.isAnnouncementRole(role))
+            return false;
+        Member self = guild.getSelfMember();
+        //might be fixed until the next run
+        if(!channel.canTalk() || !self.canInteract(role) || (!self.hasPermission(channel, Permission.MESSAGE_MENTION_EVERYONE)
+                && !self.hasPermission(channel, Permission.MANAGE_ROLES)))
+            return true;
+        Target target = new Target(Collections.singletonList(channel), Collections.singletonList(role), announcement.getText());
+        fanOut(target, Utils.getAnnouncementMessage(role, announcement.getText(), announcement.getAuthorName(),
+                announcement.getAuthorAvatarUrl()), null);
+        return true;
+    }
+
+    //checks the roles, target channels and permissions of an announcement
+    //(role_name [, role_name ...] [ | channel_mention ...] | text), reports all problems at once and returns null if invalid
+    private Target getTarget(GuildMessageReceivedEvent event, IGuildConfig guildConfig, String args, String syntax) {
         //get and check argument list
         String[] splits = args.isEmpty() ? null : args.split("\\s*\\|\\s*", 3);
         if(splits == null || splits.length < 2) {
-            event.getChannel().sendMessage("Syntax: `announce role_name [ | channel_mention] | text`").queue();
-            return;
+            Utils.sendFeedback(event.getChannel(), syntax);
+            return null;
         }
 
-        //get text to send and channel to send in
-        TextChannel channel;
+        //get text to send and channels to send in
+        Set<TextChannel> channels = new LinkedHashSet<>();
         String textToSend;
         if(splits.length == 3) {
-            if(event.getMessage().getMentionedChannels().size() == 0) {
-                event.getChannel().sendMessage("Channel mention missing!").queue();
-                return;
+            Matcher matcher = CHANNEL_MENTION_PATTERN.matcher(splits[1]);
+            while(matcher.find()) {
+                try {
+                    TextChannel channel = event.getGuild().getTextChannelById(Long.parseLong(matcher.group(1)));
+                    if(channel != null)
+                        channels.add(channel);
+                } catch(NumberFormatException ignored) {}
+            }
+            if(channels.isEmpty()) {
+                Utils.sendFeedback(event.getChannel(), "Channel mention missing!");
+                return null;
             }
-            channel = event.getMessage().getMentionedChannels().get(0);
             textToSend = splits[2].trim();
         } else {
-            channel = event.getChannel();
+            channels.add(event.getChannel());
             textToSend = splits[1].trim();
         }
 
-        //check if bot can manage roles
-        if(!event.getGuild().getSelfMember().hasPermission(channel, Permission.MESSAGE_MENTION_EVERYONE) &&
-                !event.getGuild().getSelfMember().hasPermission(channel, Permission.MANAGE_ROLES)) {
-            event.getChannel().sendMessage("Missing MANAGE_ROLES or MENTION_EVERYONE permission!").queue();
-            return;
+        //get roles to mention
+        List<String> roleNames = splitRoleNames(splits[0]);
+        if(roleNames.size() > MAX_FAN_OUT_ROLES || channels.size() > MAX_FAN_OUT_CHANNELS) {
+            Utils.sendFeedback(event.getChannel(), "Announcements can mention at most " + MAX_FAN_OUT_ROLES
+                    + " roles in at most " + MAX_FAN_OUT_CHANNELS + " channels!");
+            return null;
         }
 
-        //can bot talk in channel?
-        if(!channel.canTalk()) {
-            event.getChannel().sendMessage("Can not talk in target channel").queue();
-            return;
+        //validate all targets before sending anything
+        List<String> problems = new ArrayList<>();
+        Member self = event.getGuild().getSelfMember();
+        for(TextChannel channel : channels) {
+            //check if bot can manage roles
+            if(!self.hasPermission(channel, Permission.MESSAGE_MENTION_EVERYONE) && !self.hasPermission(channel, Permission.MANAGE_ROLES))
+                problems.add("Missing MANAGE_ROLES or MENTION_EVERYONE permission in " + channel.getAsMention() + "!");
+            //can bot talk in channel?
+            else if(!channel.canTalk())
+                problems.add("Can not talk in target channel " + channel.getAsMention());
+        }
+        Set<Role> roles = new LinkedHashSet<>();
+        for(String roleName : roleNames) {
+            List<Role> matching = Utils.getRolesByName(event.getGuild(), roleName).stream()
+                    .filter(guildConfig::isAnnouncementRole)
+                    .collect(Collectors.toList());
+            if(matching.size() == 0)
+                problems.add("No (announcement) roles matching " + roleName.trim() + " found!");
+            else if(matching.size() > 1)
+                problems.add("Too many announcement roles named " + roleName.trim() + "!");
+            else if(!self.canInteract(matching.get(0)))
+                problems.add("Can't interact with role " + matching.get(0).getName() + "!");
+            else
+                roles.add(matching.get(0));
         }
 
-        //get and check role to mention
-        List<Role> roles = Utils.getRolesByName(event.getGuild(), splits[0]).stream()
-                .filter(guildConfig::isAnnouncementRole)
+        if(!problems.isEmpty()) {
+            Utils.sendFeedback(event.getChannel(), String.join("\n", problems));
+            return null;
+        }
+        return new Target(new ArrayList<>(channels), new ArrayList<>(roles), textToSend);
+    }
+
+    //sends the message to all channels of the target in parallel, onDone (if given) is called once all completed
+    private void fanOut(Target target, Message message, Consumer<FanOut> onDone) {
+        FanOut fanOut = new FanOut(target.channels.size(), onDone);
+        List<Supplier<RestAction<Message>>> actions = target.channels.stream()
+                .map(channel -> (Supplier<RestAction<Message>>) () -> channel.sendMessage(message))
                 .collect(Collectors.toList());
-        if(roles.size() == 0) {
-            event.getChannel().sendMessage("No (announcement) roles matching "+splits[0].trim()+" found!").queue();
-        } else if(roles.size() > 1) {
-            event.getChannel().sendMessage("Too many announcement roles with this name!").queue();
-        } else if(!event.getGuild().getSelfMember().canInteract(roles.get(0))) {
-            event.getChannel().sendMessage("Can't interact with this role!").queue();
+        boolean canMentionAll = target.channels.stream()
+                .allMatch(channel -> channel.getGuild().getSelfMember().hasPermission(channel, Permission.MESSAGE_MENTION_EVERYONE));
+        //all target channels are in the guild of the command
+        long scope = target.channels.get(0).getGuild().getIdLong();
+        if(canMentionAll) {
+            for(int i = 0; i < actions.size(); i++) {
+                int index = i;
+                if(!Utils.getOutboundScheduler().submit(OutboundScheduler.Priority.ANNOUNCEMENT, scope, actions.get(i),
+                        msg -> fanOut.success(msg, index), err -> fanOut.failure(err, index)))
+                    fanOut.failure(null, index);
+            }
         } else {
-            Role role = roles.get(0);
-            //announce
-            if(role.isMentionable() || event.getGuild().getSelfMember().hasPermission(channel, Permission.MESSAGE_MENTION_EVERYONE)) {
-                channel.sendMessage(Utils.getAnnouncementMessage(role, textToSend, event.getMember()))
-                        .queue(msg -> {
-                            //cache sent message for future edits
-                            CACHE.put(event.getMessageIdLong(), msg);
-                            if(event.getChannel() != channel)
-                                event.getChannel().sendMessage("Successfully announced").queue();
-                        });
+            //makes each role mentionable once for all channels
+            mentionCoordinator.sendAll(scope, target.roles, OutboundScheduler.Priority.ANNOUNCEMENT, actions, fanOut::success, fanOut::failure);
+        }
+    }
+
+    private static void reportFanOut(GuildMessageReceivedEvent event, Target target, FanOut result) {
+        List<String> failed = new ArrayList<>();
+        for(int i = 0; i < result.sent.length; i++) {
+            if(result.sent[i] == null)
+                failed.add(target.channels.get(i).getAsMention());
+        }
+        if(!failed.isEmpty())
+            Utils.sendFeedback(event.getChannel(), "Could not announce in " + String.join(", ", failed));
+        else if(target.channels.size() > 1)
+            Utils.sendFeedback(event.getChannel(), "Successfully announced in " + target.channels.size() + " channels");
+        else if(target.channels.get(0) != event.getChannel())
+            Utils.sendFeedback(event.getChannel(), "Successfully announced");
+    }
+
+    private void storeAnnouncement(GuildMessageReceivedEvent event, Message announcement, Role role) {
+        announcements.put(event.getGuild().getIdLong(), event.getMessageIdLong(), announcement.getChannel().getIdLong(),
+                announcement.getIdLong(), role.getIdLong());
+        messageTracker.track(event.getMessageIdLong(), this);
+    }
+
+    private void forgetAnnouncement(long guildId, long commandId) {
+        announcements.remove(guildId, commandId);
+        messageTracker.untrack(commandId);
+    }
+
+    //splits at commas, except inside double quotes (for role names containing commas)
+    private static List<String> splitRoleNames(String roles) {
+        List<String> names = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for(int i = 0; i < roles.length(); i++) {
+            char c = roles.charAt(i);
+            if(c == '"') {
+                quoted = !quoted;
+            } else if(c == ',' && !quoted) {
+                names.add(current.toString().trim());
+                current.setLength(0);
             } else {
-                role.getManager().setMentionable(true)
-                        .queue(v -> {
-                            channel.sendMessage(Utils.getAnnouncementMessage(role, textToSend, event.getMember()))
-                                    .queue(msg -> {
-                                        //cache sent message for future edits
-                                        CACHE.put(event.getMessageIdLong(), msg);
-                                        role.getManager().setMentionable(false).queue();
-                                        if(event.getChannel() != channel)
-                                            event.getChannel().sendMessage("Successfully announced").queue();
-                                    }, err -> {
-                                        role.getManager().setMentionable(false).queue();
-                                    });
-                        });
+                current.append(c);
             }
         }
+        names.add(current.toString().trim());
+        return names;
     }
 
-    @Override
-    public void handleUpdate(GuildMessageUpdateEvent event) {
-        //handle updates of announcement commands
-        Message botMsg = CACHE.get(event.getMessageIdLong());
-        if(botMsg == null)
-            return;
-        String[] splits = event.getMessage().getContentRaw().split("\\s*\\|\\s*", 3);
-        botMsg.editMessage(Utils.getAnnouncementMessage(botMsg.getMentionedRoles().get(0), splits[splits.length-1].trim(), event.getMember())).queue();
+    //duration from now or ISO-8601 timestamp, -1 if invalid
+    private static long parseTime(String time, long now) {
+        long duration = parseDuration(time);
+        if(duration > 0)
+            return now + duration;
+        try {
+            return Instant.parse(time).toEpochMilli();
+        } catch(DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    //duration like 1d12h30m in milliseconds, -1 if invalid
+    private static long parseDuration(String duration) {
+        Matcher matcher = DURATION_PATTERN.matcher(duration);
+        if(duration.isEmpty() || !matcher.matches())
+            return -1;
+        long millis = 0;
+        if(matcher.group(1) != null)
+            millis += TimeUnit.DAYS.toMillis(Long.parseLong(matcher.group(1)));
+        if(matcher.group(2) != null)
+            millis += TimeUnit.HOURS.toMillis(Long.parseLong(matcher.group(2)));
+        if(matcher.group(3) != null)
+            millis += TimeUnit.MINUTES.toMillis(Long.parseLong(matcher.group(3)));
+        return millis;
+    }
+
+    private static String formatDuration(long millis) {
+        long minutes = TimeUnit.MILLISECONDS.toMinutes(millis);
+        StringBuilder builder = new StringBuilder();
+        if(minutes >= 1440)
+            builder.append(minutes / 1440).append('d');
+        if(minutes % 1440 >= 60)
+            builder.append(minutes % 1440 / 60).append('h');
+        if(minutes % 60 > 0)
+            builder.append(minutes % 60).append('m');
+        return builder.toString();
     }
 
     @Override
     public String[] getNames() {
         return NAMES;
     }
+
+    private class ScheduleCommand implements ICommand {
+        @Override
+        public void handleCommand(GuildMessageReceivedEvent event, IGuildConfig guildConfig, String args) {
+            //same permissions as announcing right away
+            if(!guildConfig.isAnnouncer(event.getMember()))
+                return;
+
+            if(!event.getChannel().canTalk()) {
+                Utils.sendDirectMessage(event.getAuthor(), "Can not send messages in channel "+event.getChannel().getName());
+                return;
+            }
+
+            //sub-commands can't collide with the time of a new schedule
+            String[] mode = args.trim().split("\\s+", 2);
+            switch(mode[0].toLowerCase()) {
+                case "list":
+                    listSchedules(event, guildConfig);
+                    break;
+                case "cancel":
+                    unschedule(event, guildConfig, mode.length == 2 ? mode[1].trim() : "");
+                    break;
+                default:
+                    schedule(event, guildConfig, args);
+            }
+        }
+
+        @Override
+        public String[] getNames() {
+            return SCHEDULE_NAMES;
+        }
+    }
+
+    private static class Target {
+        private final List<TextChannel> channels;
+        private final List<Role> roles;
+        private final String text;
+
+        private Target(List<TextChannel> channels, List<Role> roles, String text) {
+            this.channels = channels;
+            this.roles = roles;
+            this.text = text;
+        }
+
+        private boolean isSingle() {
+            return channels.size() == 1 && roles.size() == 1;
+        }
+    }
+
+    //collects the results of a fan-out, sent messages are null for channels the announcement failed in
+    private static class FanOut {
+        private final Message[] sent;
+        private final AtomicInteger remaining;
+        private final Consumer<FanOut> onDone;
+
+        private FanOut(int channelCount, Consumer<FanOut> onDone) {
+            this.sent = new Message[channelCount];
+            this.remaining = new AtomicInteger(channelCount);
+            this.onDone = onDone;
+        }
+
+        private void success(Message message, int index) {
+            sent[index] = message;
+            complete();
+        }
+
+        private void failure(Throwable error, int index) {
+            complete();
+        }
+
+        private void complete() {
+            //the decrement publishes the results to the thread calling onDone
+            if(remaining.decrementAndGet() == 0 && onDone != null)
+                onDone.accept(this);
+        }
+    }
 }
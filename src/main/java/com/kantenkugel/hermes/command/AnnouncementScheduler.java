@@ -0,0 +1,289 @@
+package com.kantenkugel.hermes.command;
+
+import com.kantenkugel.common.LaneExecutor;
+import com.kantenkugel.common.TimingWheel;
+import com.kantenkugel.hermes.guildConfig.IGuildConfig;
+import com.kantenkugel.hermes.guildConfig.IGuildConfigProvider;
+import com.kantenkugel.hermes.guildConfig.ScheduledAnnouncement;
+import net.dv8tion.jda.api.entities.Guild;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+/**
+ * Posts scheduled announcements when they are due.
+ * <p>
+ * Scheduled announcements are stored in the guild configs (and therefore persisted by the config provider).
+ * This only keeps a timer per announcement on a {@link TimingWheel}, the guild config is not looked up until
+ * the announcement is due. Due announcements are posted in the lane of their guild, so they are ordered with
+ * commands changing them. After startup, all stored announcements are put back on schedule via {@link #load(LongFunction)},
+ * those of guilds (re)joined or becoming available later via {@link #loadGuild(long)}.
+ * Announcements of guilds which are not available are retried with increasing delay until they are.
+ */
+public class AnnouncementScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(AnnouncementScheduler.class);
+
+    //one rotation of the wheel takes ~8.5 minutes, later announcements wait for more rotations
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 512;
+    //announcements overdue by more than this (e.g. after downtime) are skipped instead of posted late
+    private static final long MAX_DELAY = TimeUnit.HOURS.toMillis(1);
+    //retries if the guild is not available (yet), its config could not be loaded or its lane is full
+    private static final long RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * Posts a due announcement.
+     */
+    public interface Poster {
+        /**
+         * Posts the given announcement.
+         *
+         * @param   guild
+         *          The guild of the announcement
+         * @param   config
+         *          The config of the guild
+         * @param   announcement
+         *          The due announcement
+         * @return  {@code false} if the announcement can't be posted anymore (e.g. its channel was deleted) and should be removed
+         */
+        boolean post(@NotNull Guild guild, @NotNull IGuildConfig config, @NotNull ScheduledAnnouncement announcement);
+    }
+
+    private final IGuildConfigProvider guildConfigProvider;
+    private final LaneExecutor executor;
+    private final Poster poster;
+    private final TimingWheel wheel = new TimingWheel("Hermes-Announcement-Scheduler", TICK_MILLIS, WHEEL_SIZE);
+    //pending timer per announcement id
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    private volatile LongFunction<Guild> guildResolver;
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param   guildConfigProvider
+     *          The provider storing the scheduled announcements
+     * @param   executor
+     *          The executor running the commands, due announcements are posted in the lane of their guild
+     * @param   poster
+     *          Posts due announcements
+     */
+    public AnnouncementScheduler(@NotNull IGuildConfigProvider guildConfigProvider, @NotNull LaneExecutor executor,
+                                 @NotNull Poster poster) {
+        this.guildConfigProvider = guildConfigProvider;
+        this.executor = executor;
+        this.poster = poster;
+    }
+
+    /**
+     * Puts all stored announcements on schedule. Only the first call has an effect.
+     *
+     * @param   guildResolver
+     *          Looks up guilds by id (over all shards)
+     */
+    public void load(@NotNull LongFunction<Guild> guildResolver) {
+        synchronized(this) {
+            if(this.guildResolver != null)
+                return;
+            this.guildResolver = guildResolver;
+        }
+        guildConfigProvider.getAllScheduledAnnouncements().whenComplete((announcements, ex) -> {
+            if(ex != null) {
+                LOG.error("Could not load scheduled announcements", ex);
+                return;
+            }
+            for(ScheduledAnnouncement announcement : announcements)
+                schedule(announcement);
+            LOG.info("Loaded {} scheduled announcements", announcements.size());
+        });
+    }
+
+    /**
+     * Puts the stored announcements of a guild on schedule which are not already (e.g. after the bot rejoined the guild).
+     * Does nothing before {@link #load(LongFunction)}, which loads those of all guilds.
+     *
+     * @param   guildId
+     *          The id of the guild
+     */
+    public void loadGuild(long guildId) {
+        if(guildResolver == null)
+            return;
+        guildConfigProvider.getConfigForGuildAsync(guildId).whenComplete((config, ex) -> {
+            if(ex != null) {
+                LOG.error("Could not load scheduled announcements of guild {}", guildId, ex);
+                return;
+            }
+            for(ScheduledAnnouncement announcement : config.getScheduledAnnouncements()) {
+                if(!entries.containsKey(announcement.getId()))
+                    schedule(announcement);
+            }
+        });
+    }
+
+    /**
+     * Schedules an announcement (replacing an earlier schedule of it).
+     * The announcement has to be stored in the guild config as well.
+     *
+     * @param   announcement
+     *          The announcement to schedule
+     */
+    public void schedule(@NotNull ScheduledAnnouncement announcement) {
+        schedule(announcement.getId(), announcement.getGuildId(), announcement.getNextRun(), 0);
+    }
+
+    /**
+     * Cancels the timer of an announcement.
+     * The announcement has to be removed from the guild config as well.
+     *
+     * @param   id
+     *          The id of the announcement
+     */
+    public void cancel(long id) {
+        Entry entry = entries.remove(id);
+        if(entry != null)
+            entry.cancel();
+    }
+
+    /**
+     * Cancels the timers of all announcements of a guild (e.g. when the bot left it).
+     * The announcements stay stored in the guild config and are put back on schedule by {@link #loadGuild(long)}.
+     *
+     * @param   guildId
+     *          The id of the guild
+     */
+    public void unload(long guildId) {
+        entries.values().removeIf(entry -> {
+            if(entry.guildId != guildId)
+                return false;
+            entry.cancel();
+            return true;
+        });
+    }
+
+    /**
+     * @return  The number of announcements currently on schedule
+     */
+    public int getScheduledCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return  The wheel the timers of the announcements run on
+     */
+    @NotNull
+    public TimingWheel getTimingWheel() {
+        return wheel;
+    }
+
+    @Override
+    public String toString() {
+        return "AnnouncementScheduler[scheduled=" + getScheduledCount() + ", " + wheel + ']';
+    }
+
+    private void schedule(long id, long guildId, long time, int attempt) {
+        Entry entry = new Entry(guildId);
+        //registered before the timer exists, so it never fires without an entry
+        Entry previous = entries.put(id, entry);
+        if(previous != null)
+            previous.cancel();
+        entry.timeout = wheel.schedule(time, () -> {
+            //the config is loaded without blocking a worker of the lane
+            boolean queued = executor.execute(guildId, () -> {
+                Guild guild = getGuild(guildId);
+                return guild == null ? CompletableFuture.completedFuture(null) : guildConfigProvider.getConfigForGuildAsync(guild);
+            }, (config, error) -> run(id, guildId, entry, attempt, config, error));
+            if(!queued)
+                retry(id, guildId, entry, attempt);
+        });
+    }
+
+    private void retry(long id, long guildId, Entry entry, int attempt) {
+        //only if not re- or unscheduled in the meantime
+        if(entries.get(id) != entry)
+            return;
+        //doubled per attempt (1, 2, 4,... minutes), never given up so schedules survive longer outages
+        long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(attempt, 5));
+        LOG.debug("Retrying scheduled announcement {} of guild {} in {}s", id, guildId, TimeUnit.MILLISECONDS.toSeconds(delay));
+        schedule(id, guildId, System.currentTimeMillis() + delay, attempt + 1);
+    }
+
+    private Guild getGuild(long guildId) {
+        LongFunction<Guild> resolver = guildResolver;
+        return resolver == null ? null : resolver.apply(guildId);
+    }
+
+    private void run(long id, long guildId, Entry entry, int attempt, IGuildConfig config, Throwable error) {
+        if(entries.get(id) != entry)
+            return;
+        if(error != null)
+            LOG.warn("Could not load config for scheduled announcement {} of guild {}", id, guildId, error);
+        Guild guild = getGuild(guildId);
+        if(config == null || guild == null) {
+            retry(id, guildId, entry, attempt);
+            return;
+        }
+
+        ScheduledAnnouncement announcement = null;
+        for(ScheduledAnnouncement scheduled : config.getScheduledAnnouncements()) {
+            if(scheduled.getId() == id)
+                announcement = scheduled;
+        }
+        if(announcement == null) {
+            //removed in the meantime
+            entries.remove(id, entry);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if(announcement.getNextRun() > now + TICK_MILLIS) {
+            //stored state is ahead of this timer
+            schedule(announcement);
+            return;
+        }
+        boolean keep;
+        if(now - announcement.getNextRun() > MAX_DELAY) {
+            LOG.info("Skipping scheduled announcement {} of guild {} which is overdue by {}s", id, guildId,
+                    TimeUnit.MILLISECONDS.toSeconds(now - announcement.getNextRun()));
+            keep = true;
+        } else {
+            keep = poster.post(guild, config, announcement);
+            if(!keep)
+                LOG.debug("Removing scheduled announcement {} of guild {} which can't be posted anymore", id, guildId);
+        }
+
+        if(keep && announcement.isRecurring()) {
+            //skip runs missed during downtime
+            long interval = announcement.getInterval();
+            long nextRun = announcement.getNextRun() + ((now - announcement.getNextRun()) / interval + 1) * interval;
+            ScheduledAnnouncement next = announcement.withNextRun(nextRun);
+            config.putScheduledAnnouncement(next);
+            config.update();
+            schedule(next);
+        } else {
+            config.removeScheduledAnnouncement(id);
+            config.update();
+            entries.remove(id, entry);
+        }
+    }
+
+    private static class Entry {
+        private final long guildId;
+        private volatile TimingWheel.Timeout timeout;
+
+        private Entry(long guildId) {
+            this.guildId = guildId;
+        }
+
+        private void cancel() {
+            //timers without an entry don't post anything, so a timer which is not set yet can be ignored
+            TimingWheel.Timeout current = timeout;
+            if(current != null)
+                current.cancel();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.kantenkugel.hermes.command;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/**
+ * Thread-safe store of recent announcements, used to apply edits of announce commands to the announcements they created.
+ * <p>
+ * Announcements are kept as plain ids (channel, bot message, role) in a small ring per guild,
+ * so neither the sent message nor any other JDA entity is retained.
+ * Each guild keeps at most a fixed number of announcements, which additionally expire after a fixed time.
+ */
+public class AnnouncementStore {
+    //guilds are scanned for expired announcements every this many puts
+    private static final int PURGE_INTERVAL = 256;
+
+    private final int maxPerGuild;
+    private final long ttlMillis;
+    private final LongConsumer removalListener;
+    private final ConcurrentHashMap<Long, GuildAnnouncements> guilds = new ConcurrentHashMap<>();
+    private final AtomicInteger putsSincePurge = new AtomicInteger();
+
+    /**
+     * Creates a new store.
+     *
+     * @param   maxPerGuild
+     *          The max number of announcements kept per guild. When full, the oldest one is dropped
+     * @param   ttlMillis
+     *          Time (in milliseconds) after which announcements expire
+     * @param   removalListener
+     *          Called with the command message id of every announcement dropped because of the limit or expiry
+     */
+    public AnnouncementStore(int maxPerGuild, long ttlMillis, LongConsumer removalListener) {
+        if(maxPerGuild < 1)
+            throw new IllegalArgumentException("Max announcements per guild must be at least 1");
+        this.maxPerGuild = maxPerGuild;
+        this.ttlMillis = ttlMillis;
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * Stores a sent announcement.
+     *
+     * @param   guildId
+     *          The id of the guild
+     * @param   commandMessageId
+     *          The id of the message containing the announce command
+     * @param   channelId
+     *          The id of the channel the announcement was sent to
+     * @param   botMessageId
+     *          The id of the announcement message
+     * @param   roleId
+     *          The id of the announced role
+     */
+    public void put(long guildId, long commandMessageId, long channelId, long botMessageId, long roleId) {
+        long now = System.currentTimeMillis();
+        guilds.compute(guildId, (id, announcements) -> {
+            if(announcements == null)
+                announcements = new GuildAnnouncements(maxPerGuild);
+            announcements.put(commandMessageId, channelId, botMessageId, roleId, now);
+            return announcements;
+        });
+        if(putsSincePurge.incrementAndGet() >= PURGE_INTERVAL) {
+            putsSincePurge.set(0);
+            purgeExpired();
+        }
+    }
+
+    /**
+     * Looks up the announcement created by the given command message.
+     *
+     * @param   guildId
+     *          The id of the guild
+     * @param   commandMessageId
+     *          The id of the message containing the announce command
+     * @return  The announcement or {@code null} if not known (anymore)
+     */
+    @Nullable
+    public Announcement get(long guildId, long commandMessageId) {
+        GuildAnnouncements announcements = guilds.get(guildId);
+        return announcements == null ? null : announcements.get(commandMessageId, System.currentTimeMillis());
+    }
+
+    /**
+     * Removes the announcement created by the given command message.
+     *
+     * @param   guildId
+     *          The id of the guild
+     * @param   commandMessageId
+     *          The id of the message containing the announce command
+     */
+    public void remove(long guildId, long commandMessageId) {
+        GuildAnnouncements announcements = guilds.get(guildId);
+        if(announcements != null)
+            announcements.remove(commandMessageId);
+    }
+
+    /**
+     * @return  The number of stored announcements over all guilds
+     */
+    public int size() {
+        int size = 0;
+        for(GuildAnnouncements announcements : guilds.values())
+            size += announcements.size();
+        return size;
+    }
+
+    /**
+     * Drops all expired announcements and guilds without announcements.
+     */
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+        for(Map.Entry<Long, GuildAnnouncements> entry : guilds.entrySet()) {
+            if(entry.getValue().purge(now) == 0)
+                //re-checked atomically in case something was put in the meantime
+                guilds.computeIfPresent(entry.getKey(), (id, announcements) -> announcements.size() == 0 ? null : announcements);
+        }
+    }
+
+    /**
+     * Ids of a stored announcement.
+     */
+    public static class Announcement {
+        private final long channelId;
+        private final long botMessageId;
+        private final long roleId;
+
+        private Announcement(long channelId, long botMessageId, long roleId) {
+            this.channelId = channelId;
+            this.botMessageId = botMessageId;
+            this.roleId = roleId;
+        }
+
+        public long getChannelId() {
+            return channelId;
+        }
+
+        public long getBotMessageId() {
+            return botMessageId;
+        }
+
+        public long getRoleId() {
+            return roleId;
+        }
+    }
+
+    /**
+     * Ring of the most recent announcements of a guild, stored as parallel primitive arrays.
+     * Slots with a command message id of 0 are empty.
+     */
+    private class GuildAnnouncements {
+        private final long[] commandIds;
+        private final long[] channelIds;
+        private final long[] botMessageIds;
+        private final long[] roleIds;
+        private final long[] createdAt;
+        //next slot to write (= oldest entry when full)
+        private int next = 0;
+        private int size = 0;
+
+        private GuildAnnouncements(int capacity) {
+            commandIds = new long[capacity];
+            channelIds = new long[capacity];
+            botMessageIds = new long[capacity];
+            roleIds = new long[capacity];
+            createdAt = new long[capacity];
+        }
+
+        private synchronized void put(long commandId, long channelId, long botMessageId, long roleId, long now) {
+            int slot = indexOf(commandId);
+            if(slot < 0) {
+                slot = next;
+                next = (next + 1) % commandIds.length;
+                if(commandIds[slot] != 0)
+                    removalListener.accept(commandIds[slot]);
+                else
+                    size++;
+            }
+            commandIds[slot] = commandId;
+            channelIds[slot] = channelId;
+            botMessageIds[slot] = botMessageId;
+            roleIds[slot] = roleId;
+            createdAt[slot] = now;
+        }
+
+        private synchronized Announcement get(long commandId, long now) {
+            int slot = indexOf(commandId);
+            if(slot < 0)
+                return null;
+            if(isExpired(slot, now)) {
+                clear(slot);
+                return null;
+            }
+            return new Announcement(channelIds[slot], botMessageIds[slot], roleIds[slot]);
+        }
+
+        private synchronized void remove(long commandId) {
+            int slot = indexOf(commandId);
+            if(slot >= 0) {
+                commandIds[slot] = 0;
+                size--;
+            }
+        }
+
+        private synchronized int purge(long now) {
+            for(int i = 0; i < commandIds.length; i++) {
+                if(commandIds[i] != 0 && isExpired(i, now))
+                    clear(i);
+            }
+            return size;
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+
+        private boolean isExpired(int slot, long now) {
+            return ttlMillis > 0 && now - createdAt[slot] > ttlMillis;
+        }
+
+        private void clear(int slot) {
+            removalListener.accept(commandIds[slot]);
+            commandIds[slot] = 0;
+            size--;
+        }
+
+        private int indexOf(long commandId) {
+            for(int i = 0; i < commandIds.length; i++) {
+                if(commandIds[i] == commandId)
+                    return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.kantenkugel.hermes.command;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Whitespace-separated token view of the arguments of a command invocation.
+ * <p>
+ * Tokens are located once (lazily) as offsets into the original message content,
+ * so checking or comparing tokens doesn't require splitting or copying the arguments.
+ */
+public class CommandArgs {
+    private static final int[] NO_TOKENS = new int[0];
+
+    private final String content;
+    private final int start;
+    private final int end;
+
+    //start/end offset pairs of all tokens, located on first use
+    private int[] tokens;
+    private String raw;
+
+    /**
+     * Creates a token view of the given region of a String. Leading and trailing whitespace of the region is ignored.
+     *
+     * @param   content
+     *          The String containing the arguments
+     * @param   start
+     *          Start index of the arguments (inclusive)
+     * @param   end
+     *          End index of the arguments (exclusive)
+     */
+    public CommandArgs(@NotNull String content, int start, int end) {
+        while(start < end && isWhitespace(content.charAt(start)))
+            start++;
+        while(end > start && isWhitespace(content.charAt(end - 1)))
+            end--;
+        this.content = content;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Creates a token view of the given String.
+     *
+     * @param   args
+     *          The arguments
+     */
+    public CommandArgs(@NotNull String args) {
+        this(args, 0, args.length());
+    }
+
+    /**
+     * @return  Whether or not there are no arguments
+     */
+    public boolean isEmpty() {
+        return start == end;
+    }
+
+    /**
+     * @return  The number of whitespace-separated tokens
+     */
+    public int size() {
+        return getTokens().length / 2;
+    }
+
+    /**
+     * Retrieves a single token.
+     *
+     * @param   index
+     *          The index of the token
+     * @return  The token
+     *
+     * @throws  IndexOutOfBoundsException
+     *          If there is no token with that index
+     */
+    @NotNull
+    public String get(int index) {
+        int[] tokens = getTokens();
+        checkIndex(index, tokens);
+        return content.substring(tokens[index * 2], tokens[index * 2 + 1]);
+    }
+
+    /**
+     * Checks whether the given token equals the given String, ignoring case, without copying the token.
+     *
+     * @param   index
+     *          The index of the token
+     * @param   other
+     *          The String to compare to
+     * @return  Whether or not the token equals the given String
+     */
+    public boolean equalsIgnoreCase(int index, @NotNull String other) {
+        int[] tokens = getTokens();
+        if(index < 0 || index >= tokens.length / 2)
+            return false;
+        int tokenStart = tokens[index * 2];
+        int tokenLength = tokens[index * 2 + 1] - tokenStart;
+        return tokenLength == other.length() && content.regionMatches(true, tokenStart, other, 0, tokenLength);
+    }
+
+    /**
+     * Retrieves the remaining arguments starting at the given token, keeping their original whitespace.
+     *
+     * @param   index
+     *          The index of the first token to include
+     * @return  The remaining arguments
+     *
+     * @throws  IndexOutOfBoundsException
+     *          If there is no token with that index
+     */
+    @NotNull
+    public String getRemaining(int index) {
+        int[] tokens = getTokens();
+        checkIndex(index, tokens);
+        return content.substring(tokens[index * 2], end);
+    }
+
+    /**
+     * @return  The whole (trimmed) argument String
+     */
+    @NotNull
+    public String getRaw() {
+        if(raw == null)
+            raw = content.substring(start, end);
+        return raw;
+    }
+
+    /**
+     * @return  All tokens as array
+     */
+    @NotNull
+    public String[] toArray() {
+        String[] array = new String[size()];
+        for(int i = 0; i < array.length; i++)
+            array[i] = get(i);
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return getRaw();
+    }
+
+    private int[] getTokens() {
+        if(tokens == null) {
+            if(isEmpty()) {
+                tokens = NO_TOKENS;
+            } else {
+                int[] found = new int[8];
+                int count = 0;
+                int i = start;
+                while(i < end) {
+                    int tokenStart = i;
+                    while(i < end && !isWhitespace(content.charAt(i)))
+                        i++;
+                    if(count + 2 > found.length)
+                        found = Arrays.copyOf(found, found.length * 2);
+                    found[count++] = tokenStart;
+                    found[count++] = i;
+                    while(i < end && isWhitespace(content.charAt(i)))
+                        i++;
+                }
+                tokens = count == found.length ? found : Arrays.copyOf(found, count);
+            }
+        }
+        return tokens;
+    }
+
+    private static void checkIndex(int index, int[] tokens) {
+        if(index < 0 || index >= tokens.length / 2)
+            throw new IndexOutOfBoundsException("Token index " + index + " out of bounds for " + tokens.length / 2 + " tokens");
+    }
+
+    /**
+     * Same whitespace definition as {@link String#trim()}.
+     *
+     * @param   c
+     *          The char to check
+     * @return  Whether or not the given char is whitespace
+     */
+    static boolean isWhitespace(char c) {
+        return c <= ' ';
+    }
+}
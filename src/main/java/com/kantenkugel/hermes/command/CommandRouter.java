@@ -0,0 +1,151 @@
+package com.kantenkugel.hermes.command;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Single-pass router of messages to commands.
+ * <p>
+ * Messages have to start with the bot mention ({@code <@id>} or {@code <@!id>}), followed by the command name or alias.
+ * Messages not starting with the mention are rejected on their first characters without allocating anything.
+ * Command names are matched case-insensitively via a trie, directly on the message content.
+ */
+public class CommandRouter {
+    private final TrieNode root = new TrieNode();
+    private final Set<ICommand> commands = new LinkedHashSet<>();
+    private final Set<ICommand> commandsView = Collections.unmodifiableSet(commands);
+    private volatile String selfId;
+
+    /**
+     * Registers a command under all of its names.
+     *
+     * @param   command
+     *          The command to register
+     */
+    public void register(@NotNull ICommand command) {
+        for(String name : command.getNames()) {
+            TrieNode node = root;
+            for(int i = 0; i < name.length(); i++)
+                node = node.getOrCreateChild(Character.toLowerCase(name.charAt(i)));
+            node.command = command;
+        }
+        commands.add(command);
+    }
+
+    /**
+     * Sets the id of the bot user, which is used to recognize the mention prefix. Messages are not routed until this is set.
+     *
+     * @param   selfId
+     *          The id of the bot user
+     */
+    public void setSelfId(@NotNull String selfId) {
+        this.selfId = selfId;
+    }
+
+    /**
+     * @return  Unmodifiable Set of all registered commands
+     */
+    @NotNull
+    public Set<ICommand> getCommands() {
+        return commandsView;
+    }
+
+    /**
+     * Routes the given message content to a command.
+     *
+     * @param   content
+     *          The raw message content
+     * @return  The matching command with its arguments or {@code null} if the message is not a (known) command
+     */
+    @Nullable
+    public Route route(@NotNull String content) {
+        String id = this.selfId;
+        if(id == null)
+            return null;
+
+        //mention prefix: <@id> or <@!id>
+        int length = content.length();
+        if(length < id.length() + 3 || content.charAt(0) != '<' || content.charAt(1) != '@')
+            return null;
+        int i = 2;
+        if(content.charAt(i) == '!')
+            i++;
+        if(!content.startsWith(id, i))
+            return null;
+        i += id.length();
+        if(i >= length || content.charAt(i) != '>')
+            return null;
+        i++;
+
+        while(i < length && CommandArgs.isWhitespace(content.charAt(i)))
+            i++;
+
+        //command name (up to whitespace)
+        TrieNode node = root;
+        int nameStart = i;
+        while(i < length && !CommandArgs.isWhitespace(content.charAt(i))) {
+            node = node.getChild(Character.toLowerCase(content.charAt(i)));
+            if(node == null)
+                return null;
+            i++;
+        }
+        if(i == nameStart || node.command == null)
+            return null;
+        return new Route(node.command, new CommandArgs(content, i, length));
+    }
+
+    /**
+     * Result of a successful {@link #route(String)} call.
+     */
+    public static class Route {
+        private final ICommand command;
+        private final CommandArgs args;
+
+        private Route(ICommand command, CommandArgs args) {
+            this.command = command;
+            this.args = args;
+        }
+
+        @NotNull
+        public ICommand getCommand() {
+            return command;
+        }
+
+        @NotNull
+        public CommandArgs getArgs() {
+            return args;
+        }
+    }
+
+    private static class TrieNode {
+        private char[] keys = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+        private ICommand command;
+
+        private TrieNode getChild(char c) {
+            //fan-out is tiny, so a linear scan beats hashing
+            for(int i = 0; i < keys.length; i++) {
+                if(keys[i] == c)
+                    return children[i];
+            }
+            return null;
+        }
+
+        private TrieNode getOrCreateChild(char c) {
+            TrieNode child = getChild(c);
+            if(child == null) {
+                child = new TrieNode();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
@@ -13,15 +13,15 @@ public class ConfigCommand implements ICommand {
     private static final String[] NAMES = {"config", "configure"};
 
     @Override
-    public void handleCommand(GuildMessageReceivedEvent event, IGuildConfig guildConfig, String[] args) {
+    public void handleCommand(GuildMessageReceivedEvent event, IGuildConfig guildConfig, CommandArgs args) {
         //admin only (Kantenkugel is hardcoded as bot admin)
         if(!event.getMember().hasPermission(Permission.ADMINISTRATOR) && event.getAuthor().getIdLong() != 122758889815932930L)
             return;
 
         TextChannel channel = event.getChannel();
 
-        if(args == null) {
-            channel.sendMessageFormat(
+        if(args.isEmpty()) {
+            Utils.sendFeedback(channel, String.format(
                     "**Current configuration:**\n" +
                             "Roles with announce permission (change with `config(ure) announcers add/remove role_name`):\n%s\n\n" +
                             "Announcement roles (change with `config(ure) roles add/remove role_name`):\n%s\n\n" +
@@ -29,59 +29,59 @@ public class ConfigCommand implements ICommand {
                     Utils.getRoleList(guildConfig.getAnnouncerRoles(event.getGuild())),
                     Utils.getRoleList(guildConfig.getAnnouncementRoles(event.getGuild())),
                     guildConfig.isSubscriptionsEnabled()
-            ).queue();
+            ));
             return;
         }
 
 //        String[] args = commandSplit[1].toLowerCase().split("\\s+", 4);
 
         List<Role> rolesByName;
-        switch(args[0]) {
+        switch(args.get(0)) {
             case "announcers":
-                if(args.length != 3) {
-                    channel.sendMessage("Invalid number of arguments").queue();
+                if(args.size() != 3) {
+                    Utils.sendFeedback(channel, "Invalid number of arguments");
                     return;
                 }
-                rolesByName = Utils.getRolesByName(event.getGuild(), args[2]);
+                rolesByName = Utils.getRolesByName(event.getGuild(), args.get(2));
                 if(rolesByName.size() != 1) {
-                    channel.sendMessage("None or too many Roles matching given name").queue();
+                    Utils.sendFeedback(channel, "None or too many Roles matching given name");
                 } else {
-                    if(args[1].equals("add")) {
+                    if(args.get(1).equals("add")) {
                         guildConfig.addAnnouncerRole(rolesByName.get(0));
                         guildConfig.update();
                         Utils.reactSuccess(event);
-                    } else if(args[1].equals("remove")) {
+                    } else if(args.get(1).equals("remove")) {
                         guildConfig.removeAnnouncerRole(rolesByName.get(0));
                         guildConfig.update();
                         Utils.reactSuccess(event);
                     } else {
-                        channel.sendMessage("unknown sub-option " + args[1]).queue();
+                        Utils.sendFeedback(channel, "unknown sub-option " + args.get(1));
                     }
                 }
                 break;
 
             case "roles":
             case "role":
-                if(args.length != 3) {
-                    channel.sendMessage("Invalid number of arguments").queue();
+                if(args.size() != 3) {
+                    Utils.sendFeedback(channel, "Invalid number of arguments");
                     return;
                 }
-                rolesByName = Utils.getRolesByName(event.getGuild(), args[2]);
+                rolesByName = Utils.getRolesByName(event.getGuild(), args.get(2));
                 if(rolesByName.size() != 1) {
-                    channel.sendMessage("None or too many Roles matching given name").queue();
+                    Utils.sendFeedback(channel, "None or too many Roles matching given name");
                 } else if(rolesByName.get(0).isManaged() || !event.getGuild().getSelfMember().canInteract(rolesByName.get(0))) {
-                    channel.sendMessage("I can not interact with that role!").queue();
+                    Utils.sendFeedback(channel, "I can not interact with that role!");
                 } else {
-                    if(args[1].equals("add")) {
+                    if(args.get(1).equals("add")) {
                         guildConfig.addAnnouncementRole(rolesByName.get(0));
                         guildConfig.update();
                         Utils.reactSuccess(event);
-                    } else if(args[1].equals("remove")) {
+                    } else if(args.get(1).equals("remove")) {
                         guildConfig.removeAnnouncementRole(rolesByName.get(0));
                         guildConfig.update();
                         Utils.reactSuccess(event);
                     } else {
-                        channel.sendMessage("unknown sub-option " + args[1]).queue();
+                        Utils.sendFeedback(channel, "unknown sub-option " + args.get(1));
                     }
                 }
                 break;
@@ -90,25 +90,25 @@ public class ConfigCommand implements ICommand {
             case "enablesubs":
             case "enablesubscription":
             case "enablesubscriptions":
-                if(args.length != 2) {
-                    channel.sendMessage("Invalid number of arguments").queue();
+                if(args.size() != 2) {
+                    Utils.sendFeedback(channel, "Invalid number of arguments");
                     return;
                 }
-                if(args[1].equals("true")) {
+                if(args.get(1).equals("true")) {
                     guildConfig.setSubscriptionsEnabled(true);
                     guildConfig.update();
                     Utils.reactSuccess(event);
-                } else if(args[1].equals("false")) {
+                } else if(args.get(1).equals("false")) {
                     guildConfig.setSubscriptionsEnabled(false);
                     guildConfig.update();
                     Utils.reactSuccess(event);
                 } else {
-                    channel.sendMessage("unknown sub-option " + args[1]).queue();
+                    Utils.sendFeedback(channel, "unknown sub-option " + args.get(1));
                 }
                 break;
 
             default:
-                channel.sendMessage("Unknown option " + args[0]).queue();
+                Utils.sendFeedback(channel, "Unknown option " + args.get(0));
         }
     }
 
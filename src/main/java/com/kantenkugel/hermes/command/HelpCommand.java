@@ -1,5 +1,6 @@
 package com.kantenkugel.hermes.command;
 
+import com.kantenkugel.hermes.Utils;
 import com.kantenkugel.hermes.guildConfig.IGuildConfig;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
@@ -9,23 +10,24 @@ import java.util.stream.Collectors;
 public class HelpCommand implements ICommand {
     private static final String[] NAMES = {"help"};
 
-    private static final String HELP_MESSAGE = "This bot only has 4 commands which have to be prefixed with the bot mention:\n" +
+    private static final String HELP_MESSAGE = "This bot only has 6 commands which have to be prefixed with the bot mention:\n" +
             "`announce` - Creates an announcement. Only available to configured roles (%s).\n" +
             "`config` - Configures roles and subscription. Only available to admins.\n" +
             "`help` - Shows this help message.\n" +
             "`mention` - Mentions a configured role. Only available to configured roles (see above).\n" +
+            "`schedule` - Schedules, lists and cancels announcements. Only available to configured roles (see above).\n" +
             "`sub` - Un-/Subscribe an announcement role. Has to be enabled via configuration.\n";
 
     @Override
-    public void handleCommand(GuildMessageReceivedEvent event, IGuildConfig guildConfig, String[] args) {
+    public void handleCommand(GuildMessageReceivedEvent event, IGuildConfig guildConfig, CommandArgs args) {
         String help = String.format(HELP_MESSAGE, guildConfig.getAnnouncerRoles(event.getGuild()).stream()
                 .map(Role::getName)
                 .collect(Collectors.joining(", "))
         );
         if(event.getChannel().canTalk()) {
-            event.getChannel().sendMessage(help).queue();
+            Utils.sendFeedback(event.getChannel(), help);
         } else {
-            event.getAuthor().openPrivateChannel().queue(pc -> pc.sendMessage(help).queue());
+            Utils.sendDirectMessage(event.getAuthor(), help);
         }
     }
 
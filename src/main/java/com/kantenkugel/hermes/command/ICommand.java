@@ -6,6 +6,10 @@ import net.dv8tion.jda.api.events.message.guild.GuildMessageUpdateEvent;
 import org.slf4j.LoggerFactory;
 
 public interface ICommand {
+    default void handleCommand(GuildMessageReceivedEvent event, IGuildConfig guildConfig, CommandArgs args) {
+        handleCommand(event, guildConfig, args.getRaw());
+    }
+
     default void handleCommand(GuildMessageReceivedEvent event, IGuildConfig guildConfig, String args) {
         handleCommand(event, guildConfig, args.isEmpty() ? null : args.split("\\s+"));
     }
@@ -14,6 +18,12 @@ public interface ICommand {
         LoggerFactory.getLogger(ICommand.class).warn("ICommand implementation {} doesn't seem to properly handle command calls", getClass().getName());
     }
 
+    /**
+     * Called when a message this command registered via {@link MessageTracker#track(long, ICommand)} was edited.
+     *
+     * @param   event
+     *          The update event
+     */
     default void handleUpdate(GuildMessageUpdateEvent event) {}
 
     String[] getNames();
@@ -1,5 +1,6 @@
 package com.kantenkugel.hermes.command;
 
+import com.kantenkugel.hermes.OutboundScheduler;
 import com.kantenkugel.hermes.Utils;
 import com.kantenkugel.hermes.guildConfig.IGuildConfig;
 import net.dv8tion.jda.api.Permission;
@@ -11,6 +12,13 @@ import java.util.stream.Collectors;
 
 public class MentionCommand implements ICommand {
     private static final String[] NAMES = {"mention", "ping"};
+    private final MentionCoordinator mentionCoordinator;
+    private final RecentAuthorTracker authorTracker;
+
+    public MentionCommand(MentionCoordinator mentionCoordinator, RecentAuthorTracker authorTracker) {
+        this.mentionCoordinator = mentionCoordinator;
+        this.authorTracker = authorTracker;
+    }
 
     @Override
     public void handleCommand(GuildMessageReceivedEvent event, IGuildConfig guildConfig, String args) {
@@ -27,7 +35,7 @@ public class MentionCommand implements ICommand {
         //check if bot can manage roles
         if(!event.getGuild().getSelfMember().hasPermission(event.getChannel(), Permission.MESSAGE_MENTION_EVERYONE) &&
                 !event.getGuild().getSelfMember().hasPermission(event.getChannel(), Permission.MANAGE_ROLES)) {
-            event.getChannel().sendMessage("Missing MANAGE_ROLES or MENTION_EVERYONE permission!").queue();
+            Utils.sendFeedback(event.getChannel(), "Missing MANAGE_ROLES or MENTION_EVERYONE permission!");
             return;
         }
 
@@ -36,38 +44,50 @@ public class MentionCommand implements ICommand {
                 .filter(guildConfig::isAnnouncementRole)
                 .collect(Collectors.toList());
         if(roles.size() == 0) {
-            event.getChannel().sendMessage("No (announcement) roles matching "+args.trim()+" found!").queue();
+            Utils.sendFeedback(event.getChannel(), "No (announcement) roles matching "+args.trim()+" found!");
         } else if(roles.size() > 1) {
-            event.getChannel().sendMessage("Too many announcement roles with this name!").queue();
+            Utils.sendFeedback(event.getChannel(), "Too many announcement roles with this name!");
         } else if(!event.getGuild().getSelfMember().canInteract(roles.get(0))) {
-            event.getChannel().sendMessage("Can't interact with this role!").queue();
+            Utils.sendFeedback(event.getChannel(), "Can't interact with this role!");
         } else {
             Role role = roles.get(0);
-            event.getChannel().getHistoryBefore(event.getMessageIdLong(), 1).queue(history -> {
-                String mentionText;
-                if(history.getRetrievedHistory().isEmpty() || !history.getRetrievedHistory().get(0).getAuthor().equals(event.getAuthor()))
-                    mentionText = String.format("%s (Mention by %#s)", role.getAsMention(), event.getAuthor());
-                else
-                    mentionText = "^ " + role.getAsMention();
-                //announce
-                if(role.isMentionable() || event.getGuild().getSelfMember().hasPermission(event.getChannel(), Permission.MESSAGE_MENTION_EVERYONE)) {
-                    event.getChannel().sendMessage(mentionText).mention(role).queue(msg -> event.getMessage().delete().queue(null, err -> {}));
-                } else {
-                    role.getManager().setMentionable(true)
-                            .queue(v ->
-                                    event.getChannel().sendMessage(mentionText).mention(role).queue(
-                                            msg -> {
-                                                role.getManager().setMentionable(false).queue();
-                                                event.getMessage().delete().queue(null, err -> {});
-                                            },
-                                            err -> role.getManager().setMentionable(false).queue()
-                                    )
-                            );
-                }
-            });
+            //was the previous message written by the same user?
+            long previousAuthor = authorTracker.getPreviousAuthor(event.getChannel().getIdLong(), event.getMessageIdLong());
+            if(previousAuthor != RecentAuthorTracker.UNKNOWN) {
+                mention(event, role, previousAuthor == event.getAuthor().getIdLong());
+            } else {
+                //not seen (e.g. right after startup), ask discord
+                Utils.getOutboundScheduler().submit(OutboundScheduler.Priority.MENTION, event.getGuild().getIdLong(),
+                        () -> event.getChannel().getHistoryBefore(event.getMessageIdLong(), 1),
+                        history -> mention(event, role, !history.getRetrievedHistory().isEmpty()
+                                && history.getRetrievedHistory().get(0).getAuthor().equals(event.getAuthor())),
+                        null);
+            }
+        }
+    }
+
+    private void mention(GuildMessageReceivedEvent event, Role role, boolean sameAuthor) {
+        String mentionText;
+        if(!sameAuthor)
+            mentionText = String.format("%s (Mention by %#s)", role.getAsMention(), event.getAuthor());
+        else
+            mentionText = "^ " + role.getAsMention();
+        //announce
+        if(event.getGuild().getSelfMember().hasPermission(event.getChannel(), Permission.MESSAGE_MENTION_EVERYONE)) {
+            Utils.getOutboundScheduler().submit(OutboundScheduler.Priority.MENTION, event.getGuild().getIdLong(),
+                    () -> event.getChannel().sendMessage(mentionText).mention(role), msg -> deleteCommand(event), null);
+        } else {
+            //makes the role mentionable while needed
+            mentionCoordinator.send(role, OutboundScheduler.Priority.MENTION, () -> event.getChannel().sendMessage(mentionText).mention(role),
+                    msg -> deleteCommand(event), err -> {});
         }
     }
 
+    private static void deleteCommand(GuildMessageReceivedEvent event) {
+        Utils.getOutboundScheduler().submit(OutboundScheduler.Priority.FEEDBACK, event.getGuild().getIdLong(), event.getMessage()::delete,
+                null, err -> {});
+    }
+
     @Override
     public String[] getNames() {
         return NAMES;
@@ -0,0 +1,355 @@
+package com.kantenkugel.hermes.command;
+
+import com.kantenkugel.hermes.OutboundScheduler;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.requests.RestAction;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Coordinates messages mentioning roles which are not mentionable, for when the bot can't mention everything.
+ * <p>
+ * In-flight mentions are reference-counted per role: The first mention makes the role mentionable,
+ * all mentions of that role arriving in the meantime are sent while it is mentionable
+ * and the role is made unmentionable again once after the last of them completed.
+ * This way, concurrent mentions of the same role don't revert the flag for each other
+ * and only need 2 role updates in total.
+ * Batches of messages mentioning several roles hold one reference per role for the whole batch,
+ * so each role is toggled at most once per batch.
+ */
+public class MentionCoordinator {
+    private static final Logger LOG = LoggerFactory.getLogger(MentionCoordinator.class);
+
+    private final OutboundScheduler scheduler;
+    //guarded by this
+    private final TLongObjectMap<RoleState> roles = new TLongObjectHashMap<>();
+
+    /**
+     * Creates a new coordinator.
+     *
+     * @param   scheduler
+     *          The scheduler used to send the messages and role updates
+     */
+    public MentionCoordinator(@NotNull OutboundScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sends a message mentioning the given role, temporarily making the role mentionable if needed.
+     *
+     * @param   role
+     *          The role mentioned by the message
+     * @param   priority
+     *          The priority of the message (and the role updates it requires)
+     * @param   action
+     *          Creates the action sending the message. Only called once the role is mentionable
+     * @param   success
+     *          Called with the sent message
+     * @param   failure
+     *          Called if the role could not be made mentionable or sending failed
+     */
+    public void send(@NotNull Role role, @NotNull OutboundScheduler.Priority priority, @NotNull Supplier<? extends RestAction<Message>> action,
+                     @NotNull Consumer<? super Message> success, @NotNull Consumer<? super Throwable> failure) {
+        acquire(role, priority, new PendingMention(role, priority, action, success, failure));
+    }
+
+    /**
+     * Sends a batch of messages which all mention the given roles, temporarily making the roles mentionable if needed.
+     * <br>The messages are only sent once all roles are mentionable and the roles are only made unmentionable again
+     * after all messages of the batch completed (if no other mentions need them).
+     * The messages are sent in parallel, limited by the scheduler.
+     *
+     * @param   scope
+     *          The id of the guild the messages are sent in (see {@link OutboundScheduler#submit})
+     * @param   roles
+     *          The roles mentioned by the messages
+     * @param   priority
+     *          The priority of the messages (and the role updates they require)
+     * @param   actions
+     *          Create the actions sending the messages. Only called once all roles are mentionable
+     * @param   success
+     *          Called with the sent message and the index of its action
+     * @param   failure
+     *          Called with the error and the index of the action if a role could not be made mentionable or sending failed
+     */
+    public void sendAll(long scope, @NotNull Collection<Role> roles, @NotNull OutboundScheduler.Priority priority,
+                        @NotNull List<? extends Supplier<? extends RestAction<Message>>> actions,
+                        @NotNull ObjIntConsumer<? super Message> success, @NotNull ObjIntConsumer<? super Throwable> failure) {
+        Batch batch = new Batch(scope, roles.size(), priority, actions, success, failure);
+        if(roles.isEmpty()) {
+            batch.start();
+            return;
+        }
+        for(Role role : roles)
+            acquire(role, priority, batch.waiter(role));
+    }
+
+    /**
+     * @return  The number of roles which are currently (being made) mentionable by this coordinator
+     */
+    public synchronized int getActiveRoleCount() {
+        return roles.size();
+    }
+
+    //calls the waiter once the role is mentionable, tracked waiters have to release the role once done
+    private void acquire(Role role, OutboundScheduler.Priority priority, Waiter waiter) {
+        boolean enable = false;
+        boolean sendNow = false;
+        boolean tracked = true;
+        synchronized(this) {
+            RoleState state = roles.get(role.getIdLong());
+            if(state == null && role.isMentionable()) {
+                //mentionable on its own, nothing to coordinate
+                sendNow = true;
+                tracked = false;
+            } else {
+                if(state == null) {
+                    state = new RoleState();
+                    roles.put(role.getIdLong(), state);
+                    state.toggling = true;
+                    enable = true;
+                }
+                if(state.enabled && !state.toggling) {
+                    state.inFlight++;
+                    sendNow = true;
+                } else {
+                    //role is currently being made (un)mentionable
+                    state.pending.add(waiter);
+                }
+            }
+        }
+        if(enable)
+            enable(role, priority);
+        else if(sendNow)
+            waiter.ready(tracked);
+    }
+
+    private void enable(Role role, OutboundScheduler.Priority priority) {
+        scheduler.submit(priority, role.getGuild().getIdLong(), () -> role.getManager().setMentionable(true),
+                v -> onEnabled(role), err -> onEnableFailed(role, err));
+    }
+
+    private void onEnabled(Role role) {
+        List<Waiter> toSend;
+        synchronized(this) {
+            RoleState state = roles.get(role.getIdLong());
+            state.toggling = false;
+            state.enabled = true;
+            toSend = new ArrayList<>(state.pending);
+            state.pending.clear();
+            state.inFlight += toSend.size();
+        }
+        for(Waiter waiter : toSend)
+            waiter.ready(true);
+    }
+
+    private void onEnableFailed(Role role, Throwable error) {
+        List<Waiter> failed;
+        synchronized(this) {
+            RoleState state = roles.remove(role.getIdLong());
+            failed = new ArrayList<>(state.pending);
+        }
+        LOG.debug("Could not make role {} mentionable", role.getId(), error);
+        for(Waiter waiter : failed)
+            waiter.failed(error);
+    }
+
+    private void release(Role role, OutboundScheduler.Priority priority) {
+        synchronized(this) {
+            RoleState state = roles.get(role.getIdLong());
+            if(--state.inFlight > 0 || !state.pending.isEmpty())
+                return;
+            state.toggling = true;
+        }
+        scheduler.submit(priority, role.getGuild().getIdLong(), () -> role.getManager().setMentionable(false),
+                v -> onDisabled(role, priority), err -> {
+                    LOG.warn("Could not make role {} unmentionable again", role.getId(), err);
+                    onDisabled(role, priority);
+                });
+    }
+
+    private void onDisabled(Role role, OutboundScheduler.Priority priority) {
+        synchronized(this) {
+            RoleState state = roles.get(role.getIdLong());
+            state.toggling = false;
+            state.enabled = false;
+            if(state.pending.isEmpty()) {
+                roles.remove(role.getIdLong());
+                return;
+            }
+            //mentions came in while disabling
+            state.toggling = true;
+        }
+        enable(role, priority);
+    }
+
+    private static class RoleState {
+        //whether the role was made mentionable by us
+        private boolean enabled = false;
+        //whether a role update is in flight
+        private boolean toggling = false;
+        //number of mentions currently being sent
+        private int inFlight = 0;
+        //mentions waiting for the role to become mentionable
+        private final ArrayDeque<Waiter> pending = new ArrayDeque<>();
+    }
+
+    private interface Waiter {
+        //the role is mentionable, if tracked it has to be released afterwards
+        void ready(boolean tracked);
+
+        //the role could not be made mentionable
+        void failed(Throwable error);
+    }
+
+    private class PendingMention implements Waiter {
+        private final Role role;
+        private final OutboundScheduler.Priority priority;
+        private final Supplier<? extends RestAction<Message>> action;
+        private final Consumer<? super Message> success;
+        private final Consumer<? super Throwable> failure;
+
+        private PendingMention(Role role, OutboundScheduler.Priority priority, Supplier<? extends RestAction<Message>> action,
+                               Consumer<? super Message> success, Consumer<? super Throwable> failure) {
+            this.role = role;
+            this.priority = priority;
+            this.action = action;
+            this.success = success;
+            this.failure = failure;
+        }
+
+        @Override
+        public void ready(boolean tracked) {
+            scheduler.submit(priority, role.getGuild().getIdLong(), action, msg -> {
+                try {
+                    success.accept(msg);
+                } finally {
+                    if(tracked)
+                        release(role, priority);
+                }
+            }, err -> {
+                try {
+                    failure.accept(err);
+                } finally {
+                    if(tracked)
+                        release(role, priority);
+                }
+            });
+        }
+
+        @Override
+        public void failed(Throwable error) {
+            failure.accept(error);
+        }
+    }
+
+    private class Batch {
+        private final long scope;
+        private final OutboundScheduler.Priority priority;
+        private final List<? extends Supplier<? extends RestAction<Message>>> actions;
+        private final ObjIntConsumer<? super Message> success;
+        private final ObjIntConsumer<? super Throwable> failure;
+        //roles not mentionable yet, then messages not completed yet
+        private final AtomicInteger waitingRoles;
+        private final AtomicInteger pendingMessages;
+        //guarded by this
+        private final List<Role> acquired = new ArrayList<>();
+        private volatile Throwable error;
+
+        private Batch(long scope, int roleCount, OutboundScheduler.Priority priority, List<? extends Supplier<? extends RestAction<Message>>> actions,
+                      ObjIntConsumer<? super Message> success, ObjIntConsumer<? super Throwable> failure) {
+            this.scope = scope;
+            this.priority = priority;
+            this.actions = actions;
+            this.success = success;
+            this.failure = failure;
+            this.waitingRoles = new AtomicInteger(roleCount);
+            this.pendingMessages = new AtomicInteger(actions.size());
+        }
+
+        private Waiter waiter(Role role) {
+            return new Waiter() {
+                @Override
+                public void ready(boolean tracked) {
+                    if(tracked) {
+                        synchronized(Batch.this) {
+                            acquired.add(role);
+                        }
+                    }
+                    if(waitingRoles.decrementAndGet() == 0)
+                        start();
+                }
+
+                @Override
+                public void failed(Throwable err) {
+                    error = err;
+                    if(waitingRoles.decrementAndGet() == 0)
+                        start();
+                }
+            };
+        }
+
+        private void start() {
+            Throwable err = error;
+            if(err != null || actions.isEmpty()) {
+                //mentions would not ping all roles
+                for(int i = 0; i < actions.size(); i++)
+                    failure.accept(err, i);
+                releaseAll();
+                return;
+            }
+            for(int i = 0; i < actions.size(); i++) {
+                int index = i;
+                boolean queued = scheduler.submit(priority, scope, actions.get(i), msg -> {
+                    try {
+                        success.accept(msg, index);
+                    } finally {
+                        complete();
+                    }
+                }, ex -> {
+                    try {
+                        failure.accept(ex, index);
+                    } finally {
+                        complete();
+                    }
+                });
+                if(!queued) {
+                    //callbacks of dropped requests are never called
+                    try {
+                        failure.accept(new IllegalStateException("Outbound queue is full"), index);
+                    } finally {
+                        complete();
+                    }
+                }
+            }
+        }
+
+        private void complete() {
+            if(pendingMessages.decrementAndGet() == 0)
+                releaseAll();
+        }
+
+        private void releaseAll() {
+            List<Role> toRelease;
+            synchronized(this) {
+                toRelease = new ArrayList<>(acquired);
+                acquired.clear();
+            }
+            for(Role role : toRelease)
+                release(role, priority);
+        }
+    }
+}
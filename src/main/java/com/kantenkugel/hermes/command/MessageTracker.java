@@ -0,0 +1,81 @@
+package com.kantenkugel.hermes.command;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread-safe registry of messages commands want to receive edits for.
+ * <p>
+ * Only tracked messages are passed to {@link ICommand#handleUpdate(net.dv8tion.jda.api.events.message.guild.GuildMessageUpdateEvent)},
+ * so edits of all other messages are dropped with a single lookup.
+ */
+public class MessageTracker {
+    private final TLongObjectMap<ICommand> handlers = new TLongObjectHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Starts tracking edits of the given message.
+     *
+     * @param   messageId
+     *          The id of the message
+     * @param   handler
+     *          The command that should handle edits of that message
+     */
+    public void track(long messageId, @NotNull ICommand handler) {
+        lock.writeLock().lock();
+        try {
+            handlers.put(messageId, handler);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stops tracking edits of the given message.
+     *
+     * @param   messageId
+     *          The id of the message
+     */
+    public void untrack(long messageId) {
+        lock.writeLock().lock();
+        try {
+            handlers.remove(messageId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Looks up the command handling edits of the given message.
+     *
+     * @param   messageId
+     *          The id of the message
+     * @return  The command tracking the message or {@code null} if it is not tracked
+     */
+    @Nullable
+    public ICommand getHandler(long messageId) {
+        lock.readLock().lock();
+        try {
+            return handlers.get(messageId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return  The number of currently tracked messages
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return handlers.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
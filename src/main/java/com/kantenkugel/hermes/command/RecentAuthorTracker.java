@@ -0,0 +1,119 @@
+package com.kantenkugel.hermes.command;
+
+import com.kantenkugel.common.ConcurrentCache;
+
+/**
+ * Remembers the authors of the most recent messages per channel, so the author of the message preceding a command
+ * can be determined without requesting the channel history.
+ * <p>
+ * Each channel keeps a small ring of (message id, author id) pairs and a bounded number of channels is tracked.
+ * Since only messages received while running are known, lookups can be inconclusive (e.g. right after startup),
+ * in which case {@link #UNKNOWN} is returned and the history has to be requested instead.
+ */
+public class RecentAuthorTracker {
+    public static final long UNKNOWN = -1;
+
+    private static final int MESSAGES_PER_CHANNEL = 16;
+
+    private final ConcurrentCache<Long, ChannelRing> channels;
+
+    /**
+     * Creates a new tracker.
+     *
+     * @param   maxChannels
+     *          The max number of tracked channels. Least used channels are dropped first
+     */
+    public RecentAuthorTracker(int maxChannels) {
+        this.channels = new ConcurrentCache<>(maxChannels);
+    }
+
+    /**
+     * Records a received message.
+     *
+     * @param   channelId
+     *          The id of the channel
+     * @param   messageId
+     *          The id of the message
+     * @param   authorId
+     *          The id of the message author
+     */
+    public void onMessage(long channelId, long messageId, long authorId) {
+        channels.computeIfAbsent(channelId, id -> new ChannelRing()).add(messageId, authorId);
+    }
+
+    /**
+     * Forgets a deleted message.
+     *
+     * @param   channelId
+     *          The id of the channel
+     * @param   messageId
+     *          The id of the deleted message
+     */
+    public void onDelete(long channelId, long messageId) {
+        ChannelRing ring = channels.getIfPresent(channelId);
+        if(ring != null)
+            ring.remove(messageId);
+    }
+
+    /**
+     * Forgets all messages, e.g. after events might have been missed.
+     */
+    public void clear() {
+        channels.clear();
+    }
+
+    /**
+     * Retrieves the author of the message directly preceding the given one.
+     *
+     * @param   channelId
+     *          The id of the channel
+     * @param   messageId
+     *          The id of the message whose predecessor to look up
+     * @return  The id of the preceding message's author or {@link #UNKNOWN} if that message was not recorded
+     */
+    public long getPreviousAuthor(long channelId, long messageId) {
+        ChannelRing ring = channels.getIfPresent(channelId);
+        return ring == null ? UNKNOWN : ring.getPreviousAuthor(messageId);
+    }
+
+    /**
+     * Ring of the latest messages of a channel. Message id 0 marks an empty (or deleted) slot.
+     * <p>
+     * All messages of the channel from the oldest recorded one on are seen, so the latest recorded message
+     * older than a given one is its predecessor. Deleted messages are dropped, just like in the channel history.
+     */
+    private static class ChannelRing {
+        private final long[] messageIds = new long[MESSAGES_PER_CHANNEL];
+        private final long[] authorIds = new long[MESSAGES_PER_CHANNEL];
+        private int next = 0;
+
+        private synchronized void add(long messageId, long authorId) {
+            messageIds[next] = messageId;
+            authorIds[next] = authorId;
+            next = (next + 1) % messageIds.length;
+        }
+
+        private synchronized void remove(long messageId) {
+            for(int i = 0; i < messageIds.length; i++) {
+                if(messageIds[i] == messageId) {
+                    messageIds[i] = 0;
+                    return;
+                }
+            }
+        }
+
+        private synchronized long getPreviousAuthor(long messageId) {
+            long previousId = 0;
+            long previousAuthor = UNKNOWN;
+            for(int i = 0; i < messageIds.length; i++) {
+                long id = messageIds[i];
+                //snowflakes are ordered by creation time
+                if(id != 0 && id < messageId && id > previousId) {
+                    previousId = id;
+                    previousAuthor = authorIds[i];
+                }
+            }
+            return previousAuthor;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package com.kantenkugel.hermes.command;
+
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Batches role toggles of members, so multiple toggles in quick succession only need one role update.
+ * <p>
+ * Toggles of a member are collected for a short window after the first one. Once it closes,
+ * the net changes (toggling a role twice cancels out) are applied with a single {@code modifyMemberRoles} call.
+ * The member instances are snapshots which don't reflect updates sent by the batcher, so the outcome of completed
+ * updates is tracked per member and each update sends the full role list based on it.
+ * Updates are paced per guild by a token bucket, so mass subscriptions (e.g. after an announcement)
+ * trickle out at a steady rate instead of hitting the rate limit all at once.
+ * Only one update per member is in flight at a time, toggles arriving meanwhile are applied afterwards.
+ */
+public class RoleChangeBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(RoleChangeBatcher.class);
+
+    private final String reason;
+    private final long windowMillis;
+    private final int burst;
+    private final long refillNanos;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentHashMap<Long, GuildState> guilds = new ConcurrentHashMap<>();
+
+    private final LongAdder toggles = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Creates a new batcher.
+     *
+     * @param   reason
+     *          The audit log reason of the role updates
+     * @param   windowMillis
+     *          Time (in milliseconds) toggles of a member are collected before they are applied
+     * @param   burst
+     *          Max number of role updates a guild may send at once
+     * @param   refillMillis
+     *          Time (in milliseconds) after which a guild may send another role update
+     */
+    public RoleChangeBatcher(@NotNull String reason, long windowMillis, int burst, long refillMillis) {
+        if(windowMillis < 0 || burst < 1 || refillMillis < 1)
+            throw new IllegalArgumentException("Window must not be negative, burst and refill time must be at least 1");
+        this.reason = reason;
+        this.windowMillis = windowMillis;
+        this.burst = burst;
+        this.refillNanos = TimeUnit.MILLISECONDS.toNanos(refillMillis);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Hermes-RoleChanges");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Toggles the given roles of a member. Roles the member has (or will have once earlier toggles are applied) are removed,
+     * all others are added.
+     *
+     * @param   member
+     *          The member whose roles to toggle
+     * @param   roles
+     *          The roles to toggle
+     * @param   success
+     *          Called once the toggle was applied
+     * @param   failure
+     *          Called if the role update failed
+     */
+    public void toggle(@NotNull Member member, @NotNull Collection<Role> roles, @NotNull Consumer<? super Toggle> success,
+                       @NotNull Consumer<? super Throwable> failure) {
+        Guild guild = member.getGuild();
+        long memberId = member.getIdLong();
+        while(true) {
+            GuildState state = guilds.computeIfAbsent(guild.getIdLong(), id -> new GuildState(guild.getJDA(), id));
+            MemberChanges changes;
+            boolean schedule;
+            synchronized(state) {
+                //guild ran empty and was dropped in the meantime
+                if(state.retired)
+                    continue;
+                changes = state.members.get(memberId);
+                if(changes == null) {
+                    changes = new MemberChanges(memberId);
+                    state.members.put(memberId, changes);
+                }
+                //members are not cached, so keep the latest instance to apply the changes with
+                changes.member = member;
+                List<Role> added = new ArrayList<>(roles.size());
+                List<Role> removed = new ArrayList<>(roles.size());
+                for(Role role : roles) {
+                    boolean hasRole = changes.hasRole(member, role);
+                    changes.pending.put(role.getIdLong(), !hasRole);
+                    (hasRole ? removed : added).add(role);
+                }
+                changes.waiters.add(new Waiter(new Toggle(added, removed), success, failure));
+                schedule = !changes.scheduled && changes.inFlight == null;
+                changes.scheduled |= schedule;
+            }
+            toggles.increment();
+            if(schedule)
+                scheduleWindow(state, changes);
+            return;
+        }
+    }
+
+    /**
+     * @return  The total number of toggles (command invocations)
+     */
+    public long getToggleCount() {
+        return toggles.sum();
+    }
+
+    /**
+     * @return  The total number of role updates sent
+     */
+    public long getUpdateCount() {
+        return updates.sum();
+    }
+
+    /**
+     * @return  The total number of batches which needed no role update (e.g. because toggles canceled out)
+     */
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return  The total number of failed role updates
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return  The number of guilds which currently have pending toggles
+     */
+    public int getActiveGuildCount() {
+        return guilds.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RoleChangeBatcher[guilds=%d, toggles=%d, updates=%d, skipped=%d, failed=%d]",
+                getActiveGuildCount(), getToggleCount(), getUpdateCount(), getSkippedCount(), getFailedCount());
+    }
+
+    private void scheduleWindow(GuildState state, MemberChanges changes) {
+        timer.schedule(() -> {
+            synchronized(state) {
+                state.ready.add(changes);
+            }
+            drain(state);
+        }, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void drain(GuildState state) {
+        List<MemberChanges> toSend = new ArrayList<>();
+        long delay = -1;
+        synchronized(state) {
+            state.refill();
+            MemberChanges next;
+            while(state.tokens > 0 && (next = state.ready.poll()) != null) {
+                next.scheduled = false;
+                next.inFlight = next.pending;
+                next.pending = new TLongObjectHashMap<>();
+                next.inFlightWaiters = next.waiters;
+                next.inFlightMember = next.member;
+                next.waiters = new ArrayList<>();
+                toSend.add(next);
+                //batches which turn out to be no-ops hand their token back
+                state.tokens--;
+            }
+            if(!state.ready.isEmpty() && !state.drainScheduled) {
+                state.drainScheduled = true;
+                delay = refillNanos - (System.nanoTime() - state.lastRefill);
+            }
+        }
+        for(MemberChanges changes : toSend)
+            apply(state, changes);
+        if(delay >= 0) {
+            timer.schedule(() -> {
+                synchronized(state) {
+                    state.drainScheduled = false;
+                }
+                drain(state);
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void apply(GuildState state, MemberChanges changes) {
+        Guild guild = state.jda.getGuildById(state.guildId);
+        Member member = changes.inFlightMember;
+        if(guild == null) {
+            complete(state, changes, new IllegalStateException("Guild is no longer available"), false);
+            return;
+        }
+        Set<Role> roles;
+        synchronized(state) {
+            roles = changes.currentRoles(guild, member);
+        }
+        boolean modified = false;
+        for(TLongObjectIterator<Boolean> it = changes.inFlight.iterator(); it.hasNext(); ) {
+            it.advance();
+            Role role = guild.getRoleById(it.key());
+            if(role != null)
+                modified |= it.value() ? roles.add(role) : roles.remove(role);
+        }
+        if(!modified) {
+            skipped.increment();
+            complete(state, changes, null, false);
+            return;
+        }
+        updates.increment();
+        //full role list, the member snapshot may miss roles added by earlier updates
+        guild.modifyMemberRoles(member, roles).reason(reason).queue(
+                v -> complete(state, changes, null, true),
+                err -> complete(state, changes, err, true));
+    }
+
+    private void complete(GuildState state, MemberChanges changes, Throwable error, boolean usedToken) {
+        List<Waiter> waiters;
+        boolean reschedule = false;
+        boolean drain = false;
+        synchronized(state) {
+            waiters = changes.inFlightWaiters;
+            if(error == null)
+                changes.applied.putAll(changes.inFlight);
+            changes.inFlight = null;
+            changes.inFlightWaiters = Collections.emptyList();
+            changes.inFlightMember = null;
+            if(!usedToken) {
+                state.tokens = Math.min(burst, state.tokens + 1);
+                drain = !state.ready.isEmpty();
+            }
+            if(!changes.waiters.isEmpty()) {
+                //toggled while in flight
+                changes.scheduled = true;
+                reschedule = true;
+            } else {
+                state.members.remove(changes.memberId);
+                if(state.members.isEmpty()) {
+                    state.retired = true;
+                    guilds.remove(state.guildId, state);
+                }
+            }
+        }
+        if(error != null) {
+            failed.increment();
+            LOG.debug("Could not update roles of member {}", Long.toUnsignedString(changes.memberId), error);
+        }
+        for(Waiter waiter : waiters) {
+            try {
+                if(error == null)
+                    waiter.success.accept(waiter.toggle);
+                else
+                    waiter.failure.accept(error);
+            } catch(RuntimeException ex) {
+                LOG.error("Uncaught exception in role toggle callback", ex);
+            }
+        }
+        if(reschedule)
+            scheduleWindow(state, changes);
+        if(drain)
+            drain(state);
+    }
+
+    /**
+     * The outcome of a single {@link #toggle(Member, Collection, Consumer, Consumer) toggle}.
+     */
+    public static class Toggle {
+        private final List<Role> added;
+        private final List<Role> removed;
+
+        private Toggle(List<Role> added, List<Role> removed) {
+            this.added = Collections.unmodifiableList(added);
+            this.removed = Collections.unmodifiableList(removed);
+        }
+
+        /**
+         * @return  The roles added by this toggle
+         */
+        @NotNull
+        public List<Role> getAdded() {
+            return added;
+        }
+
+        /**
+         * @return  The roles removed by this toggle
+         */
+        @NotNull
+        public List<Role> getRemoved() {
+            return removed;
+        }
+    }
+
+    private static class Waiter {
+        private final Toggle toggle;
+        private final Consumer<? super Toggle> success;
+        private final Consumer<? super Throwable> failure;
+
+        private Waiter(Toggle toggle, Consumer<? super Toggle> success, Consumer<? super Throwable> failure) {
+            this.toggle = toggle;
+            this.success = success;
+            this.failure = failure;
+        }
+    }
+
+    //all fields guarded by the owning GuildState
+    private static class MemberChanges {
+        private final long memberId;
+        private Member member;
+        private Member inFlightMember;
+        //role id -> whether the member should have the role
+        private TLongObjectMap<Boolean> pending = new TLongObjectHashMap<>();
+        private TLongObjectMap<Boolean> inFlight = null;
+        //outcome of completed updates, which member snapshots may not reflect yet
+        private final TLongObjectMap<Boolean> applied = new TLongObjectHashMap<>();
+        private List<Waiter> waiters = new ArrayList<>();
+        private List<Waiter> inFlightWaiters = Collections.emptyList();
+        private boolean scheduled = false;
+
+        private MemberChanges(long memberId) {
+            this.memberId = memberId;
+        }
+
+        private boolean hasRole(Member member, Role role) {
+            Boolean hasRole = pending.get(role.getIdLong());
+            if(hasRole == null && inFlight != null)
+                hasRole = inFlight.get(role.getIdLong());
+            if(hasRole == null)
+                hasRole = applied.get(role.getIdLong());
+            return hasRole == null ? member.getRoles().contains(role) : hasRole;
+        }
+
+        //roles of the member after all completed updates
+        private Set<Role> currentRoles(Guild guild, Member member) {
+            Set<Role> roles = new LinkedHashSet<>(member.getRoles());
+            applied.forEachEntry((roleId, hasRole) -> {
+                Role role = guild.getRoleById(roleId);
+                if(role != null) {
+                    if(hasRole)
+                        roles.add(role);
+                    else
+                        roles.remove(role);
+                }
+                return true;
+            });
+            return roles;
+        }
+    }
+
+    //all fields guarded by this
+    private class GuildState {
+        private final JDA jda;
+        private final long guildId;
+        private final TLongObjectMap<MemberChanges> members = new TLongObjectHashMap<>();
+        private final ArrayDeque<MemberChanges> ready = new ArrayDeque<>();
+        private int tokens = burst;
+        private long lastRefill = System.nanoTime();
+        private boolean drainScheduled = false;
+        private boolean retired = false;
+
+        private GuildState(JDA jda, long guildId) {
+            this.jda = jda;
+            this.guildId = guildId;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            long newTokens = (now - lastRefill) / refillNanos;
+            if(newTokens > 0) {
+                tokens = (int) Math.min(burst, tokens + newTokens);
+                lastRefill = tokens == burst ? now : lastRefill + newTokens * refillNanos;
+            }
+        }
+    }
+}
@@ -3,77 +3,67 @@ package com.kantenkugel.hermes.command;
 import com.kantenkugel.hermes.Utils;
 import com.kantenkugel.hermes.guildConfig.IGuildConfig;
 import net.dv8tion.jda.api.Permission;
-import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.stream.Collectors;
 
 public class SubscriptionCommand implements ICommand {
     private static final String[] NAMES = {"sub", "subscribe", "unsub", "unsubscribe", "toggle"};
 
+    private final RoleChangeBatcher roleChangeBatcher;
+
+    public SubscriptionCommand(RoleChangeBatcher roleChangeBatcher) {
+        this.roleChangeBatcher = roleChangeBatcher;
+    }
+
     @Override
-    public void handleCommand(GuildMessageReceivedEvent event, IGuildConfig guildConfig, String[] args) {
+    public void handleCommand(GuildMessageReceivedEvent event, IGuildConfig guildConfig, CommandArgs args) {
         //abort if subscriptions are not enabled
         if(!guildConfig.isSubscriptionsEnabled()) {
-            event.getChannel().sendMessage("Subscriptions are not enabled for this server").queue();
+            Utils.sendFeedback(event.getChannel(), "Subscriptions are not enabled for this server");
             return;
         }
 
-        if(args == null) {
-            event.getChannel().sendMessage("Syntax: `sub[scribe] role_name [role_name...]`").queue();
+        if(args.isEmpty()) {
+            Utils.sendFeedback(event.getChannel(), "Syntax: `sub[scribe] role_name [role_name...]`");
             return;
         }
 
         //check if bot can manage roles
         if(!event.getGuild().getSelfMember().hasPermission(Permission.MANAGE_ROLES)) {
-            event.getChannel().sendMessage("Missing MANAGE_ROLES permission!").queue();
+            Utils.sendFeedback(event.getChannel(), "Missing MANAGE_ROLES permission!");
             return;
         }
 
-        List<Role> rolesToToggle = new ArrayList<>(args.length);
-        List<String> unavailableRoles = new ArrayList<>(args.length);
-        for(int i=0; i<args.length; i++) {
-            Role r = Utils.getValidRoleByName(event.getGuild(), guildConfig, args[i]);
+        List<Role> rolesToToggle = new ArrayList<>(args.size());
+        List<String> unavailableRoles = new ArrayList<>(args.size());
+        for(int i=0; i<args.size(); i++) {
+            Role r = Utils.getValidRoleByName(event.getGuild(), guildConfig, args.get(i));
             if(r == null)
-                unavailableRoles.add(args[i]);
+                unavailableRoles.add(args.get(i));
             else
                 rolesToToggle.add(r);
         }
 
         if(!unavailableRoles.isEmpty()) {
-            event.getChannel().sendMessage(String.format("Following role(s) were not found or are not available for subscription:" +
+            Utils.sendFeedback(event.getChannel(), String.format("Following role(s) were not found or are not available for subscription:" +
                             "\n%s\nIf the role you want to subscribe to has spaces in its name, please replace them with underscores.",
-                    String.join(", ", unavailableRoles))).queue();
+                    String.join(", ", unavailableRoles)));
         } else {
-            Member member = event.getMember();
-            if(rolesToToggle.size() == 1) {
-                Role role = rolesToToggle.get(0);
-                if(member.getRoles().contains(role)) {
-                    event.getGuild().removeRoleFromMember(member, role).reason("Subscription").queue(v -> {
-                        Utils.reactSuccess(event, "Unsubscribed from " + role.getName());
-                    });
-                }
-                else {
-                    event.getGuild().addRoleToMember(member, role).reason("Subscription").queue(v -> {
-                        Utils.reactSuccess(event, "Subscribed to " + role.getName());
-                    });
-                }
-            } else {
-                Map<Boolean, List<Role>> roleTypes = rolesToToggle.stream().collect(Collectors.groupingBy(role -> member.getRoles().contains(role)));
-                event.getGuild().modifyMemberRoles(member,
-                        roleTypes.getOrDefault(false, Collections.emptyList()),
-                        roleTypes.getOrDefault(true, Collections.emptyList())
-                ).queue(v -> {
-                    event.getChannel().sendMessage("Toggled subscriptions of " +
+            //toggles are batched per member and paced per guild
+            roleChangeBatcher.toggle(event.getMember(), rolesToToggle, toggle -> {
+                if(rolesToToggle.size() == 1) {
+                    Role role = rolesToToggle.get(0);
+                    Utils.reactSuccess(event, (toggle.getAdded().isEmpty() ? "Unsubscribed from " : "Subscribed to ") + role.getName());
+                } else {
+                    Utils.sendFeedback(event.getChannel(), "Toggled subscriptions of " +
                             rolesToToggle.stream().map(Role::getName).collect(Collectors.joining(", "))
-                    ).queue();
-                });
-            }
+                    );
+                }
+            }, err -> Utils.reactError(event, "Could not update your roles"));
         }
     }
 
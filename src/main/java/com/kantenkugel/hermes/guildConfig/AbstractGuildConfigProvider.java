@@ -1,29 +1,66 @@
 package com.kantenkugel.hermes.guildConfig;
 
-import com.kantenkugel.common.FixedSizeCache;
+import com.kantenkugel.common.ConcurrentCache;
+import com.kantenkugel.common.Histogram;
+import com.kantenkugel.common.MetricsRegistry;
+import com.kantenkugel.hermes.GlobalConfig;
+import com.kantenkugel.hermes.Utils;
 import gnu.trove.set.TLongSet;
 import gnu.trove.set.hash.TLongHashSet;
 import net.dv8tion.jda.api.entities.Role;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractGuildConfigProvider<T extends IGuildConfig> implements IGuildConfigProvider {
-    private static final int DEFAULT_CACHE_SIZE = 10;
+    protected final ConcurrentCache<Long, T> configCache;
 
-    protected final Map<Long, T> configCache;
+    private volatile ExecutorService ioExecutor;
 
+    /**
+     * Creates a provider with cache size and ttl taken from the global config ({@code guildConfigCache}).
+     */
     public AbstractGuildConfigProvider() {
-        this(DEFAULT_CACHE_SIZE);
+        this(GlobalConfig.GUILD_CONFIG_CACHE_SIZE, GlobalConfig.GUILD_CONFIG_CACHE_TTL);
     }
 
+    /**
+     * Creates a provider with a cache without ttl.
+     *
+     * @param   cacheSize
+     *          The cache size. {@code 0} disables caching, negative values create an unbounded cache
+     */
     public AbstractGuildConfigProvider(int cacheSize) {
-        if(cacheSize == 0)
+        this(cacheSize, 0);
+    }
+
+    /**
+     * Creates a provider with given cache settings.
+     *
+     * @param   cacheSize
+     *          The cache size. {@code 0} disables caching, negative values create an unbounded cache
+     * @param   cacheTtl
+     *          Time in seconds after which cached configs are re-fetched. {@code 0} disables expiration
+     */
+    public AbstractGuildConfigProvider(int cacheSize, long cacheTtl) {
+        if(cacheSize == 0) {
             configCache = null;
-        else if(cacheSize > 0)
-            configCache = new FixedSizeCache<>(cacheSize);
-        else
-            configCache = new HashMap<>();
+        } else {
+            configCache = new ConcurrentCache<>(cacheSize, cacheTtl, TimeUnit.SECONDS);
+            MetricsRegistry metrics = Utils.getMetrics();
+            metrics.counter("hermes_config_cache_hits_total", "Guild config lookups served from the cache", configCache::getHitCount);
+            metrics.counter("hermes_config_cache_misses_total", "Guild config lookups which had to load from storage", configCache::getMissCount);
+            metrics.counter("hermes_config_cache_evictions_total", "Guild configs evicted from the cache", configCache::getEvictionCount);
+            metrics.gauge("hermes_config_cache_size", "Cached guild configs", configCache::size);
+        }
     }
 
     @Override
@@ -38,6 +75,66 @@ public abstract class AbstractGuildConfigProvider<T extends IGuildConfig> implem
         });
     }
 
+    @Override
+    public @NotNull CompletableFuture<IGuildConfig> getConfigForGuildAsync(long id) {
+        //cache hits complete right away on the calling thread
+        if(configCache != null) {
+            T config = configCache.getIfPresent(id);
+            if(config != null)
+                return CompletableFuture.completedFuture(config);
+        }
+        return CompletableFuture.supplyAsync(() -> getConfigForGuild(id), getIOExecutor());
+    }
+
+    /**
+     * Number of threads used for blocking storage access of async lookups.
+     * Only called once, when the I/O executor is first needed.
+     * Providers which can serve multiple requests in parallel should override this.
+     *
+     * @return  The number of I/O threads (default: 1)
+     */
+    protected int getIOThreadCount() {
+        return 1;
+    }
+
+    /**
+     * Retrieves (and creates on first use) the executor used for blocking storage access of this provider.
+     *
+     * @return  The I/O executor of this provider
+     */
+    @NotNull
+    protected ExecutorService getIOExecutor() {
+        if(ioExecutor == null) {
+            synchronized(this) {
+                if(ioExecutor == null) {
+                    AtomicInteger threadCount = new AtomicInteger();
+                    String threadPrefix = getClass().getSimpleName() + "-IO-";
+                    ioExecutor = Executors.newFixedThreadPool(Math.max(1, getIOThreadCount()), r -> {
+                        Thread t = new Thread(r, threadPrefix + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * Creates a histogram for the latency of a storage operation and registers it in the {@link Utils#getMetrics() metrics}.
+     *
+     * @param   operation
+     *          The name of the operation (e.g. {@code pg_fetch}), used as label
+     * @return  The histogram to record the operation in
+     */
+    @NotNull
+    protected static Histogram createLatencyHistogram(@NotNull String operation) {
+        Histogram histogram = new Histogram();
+        Utils.getMetrics().histogram("hermes_persistence_latency_seconds", "Time taken by storage operations of the ConfigProvider",
+                "operation", operation, histogram);
+        return histogram;
+    }
+
     protected abstract T createConfig(long guildId);
     protected abstract T getConfig(long guildId);
 
@@ -46,6 +143,8 @@ public abstract class AbstractGuildConfigProvider<T extends IGuildConfig> implem
         protected TLongSet announcerRoles = new TLongHashSet();
         protected TLongSet announcementRoles = new TLongHashSet();
         protected boolean subscriptionsEnabled = false;
+        //by id, in order of scheduling (guarded by itself)
+        protected final Map<Long, ScheduledAnnouncement> scheduledAnnouncements = new LinkedHashMap<>();
 
         protected AbstractGuildConfig(long guildId) {
             this.guildId = guildId;
@@ -90,6 +189,28 @@ public abstract class AbstractGuildConfigProvider<T extends IGuildConfig> implem
             return subscriptionsEnabled;
         }
 
+        @Override
+        @NotNull
+        public List<ScheduledAnnouncement> getScheduledAnnouncements() {
+            synchronized(scheduledAnnouncements) {
+                return new ArrayList<>(scheduledAnnouncements.values());
+            }
+        }
+
+        @Override
+        public void putScheduledAnnouncement(@NotNull ScheduledAnnouncement announcement) {
+            synchronized(scheduledAnnouncements) {
+                scheduledAnnouncements.put(announcement.getId(), announcement);
+            }
+        }
+
+        @Override
+        public boolean removeScheduledAnnouncement(long id) {
+            synchronized(scheduledAnnouncements) {
+                return scheduledAnnouncements.remove(id) != null;
+            }
+        }
+
         @Override
         public void addAnnouncerRole(@NotNull Role r) {
             announcerRoles.add(r.getIdLong());
@@ -124,6 +245,12 @@ public abstract class AbstractGuildConfigProvider<T extends IGuildConfig> implem
             this.announcementRoles.addAll(other.getAnnouncementRoleIds());
 
             this.subscriptionsEnabled = other.isSubscriptionsEnabled();
+
+            synchronized(scheduledAnnouncements) {
+                scheduledAnnouncements.clear();
+                for(ScheduledAnnouncement announcement : other.getScheduledAnnouncements())
+                    scheduledAnnouncements.put(announcement.getId(), announcement);
+            }
         }
     }
 
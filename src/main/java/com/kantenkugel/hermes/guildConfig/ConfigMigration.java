@@ -0,0 +1,261 @@
+package com.kantenkugel.hermes.guildConfig;
+
+import com.kantenkugel.hermes.Utils;
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies all guild configs from one {@link IGuildConfigProvider} to another.
+ * <p>
+ * Configs are read from the source in order of guild id ({@link IGuildConfigProvider#forEachConfiguration}),
+ * collected into batches and stored by parallel writers ({@link IGuildConfigProvider#importConfigurations}).
+ * Only a limited number of batches is read ahead, so not all configs have to fit into memory.
+ * <p>
+ * Periodically, buffered imports of the target are flushed ({@link IGuildConfigProvider#flushImports}) and
+ * the last guild id up to which all batches are stored is written to a checkpoint file.
+ * An interrupted migration to the same target continues from there when run again. The checkpoint is deleted
+ * once the migration completed.
+ */
+public class ConfigMigration {
+    private static final Logger LOG = LoggerFactory.getLogger(ConfigMigration.class);
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    public static final int DEFAULT_THREADS = 2;
+    private static final long PROGRESS_INTERVAL = 5;
+    private static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private final IGuildConfigProvider source;
+    private final IGuildConfigProvider target;
+    private final String targetDescription;
+    private final Path checkpointPath;
+    private final int batchSize;
+    private final int fetchSize;
+    private final int threads;
+
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    //stored batches by sequence number which can't be checkpointed yet, because an earlier one is still pending
+    private final TreeMap<Integer, Batch> storedBatches = new TreeMap<>();
+    private int nextCheckpointSequence = 0;
+    private long checkpointGuildId;
+    private long checkpointCount;
+    //last guild id written to the checkpoint file
+    private long savedGuildId;
+    private long lastCheckpoint = System.nanoTime();
+
+    /**
+     * Creates a new migration.
+     *
+     * @param   source
+     *          The provider to read the configs from
+     * @param   target
+     *          The provider to store the configs in
+     * @param   targetDescription
+     *          Identifies the target (e.g. class and args), a checkpoint is only resumed by a migration to the same target
+     * @param   checkpointPath
+     *          The path of the checkpoint file
+     * @param   batchSize
+     *          The number of configs stored at once
+     * @param   fetchSize
+     *          The number of configs read from the source at once (hint for the source)
+     * @param   threads
+     *          The number of batches stored in parallel
+     */
+    public ConfigMigration(@NotNull IGuildConfigProvider source, @NotNull IGuildConfigProvider target, @NotNull String targetDescription,
+                           @NotNull Path checkpointPath, int batchSize, int fetchSize, int threads) {
+        this.source = source;
+        this.target = target;
+        this.targetDescription = targetDescription;
+        this.checkpointPath = checkpointPath;
+        this.batchSize = Math.max(1, batchSize);
+        this.fetchSize = Math.max(1, fetchSize);
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Runs the migration, resuming from the checkpoint if there is one for the same target.
+     *
+     * @return  Whether all configs were migrated. If not, the error was logged and running again resumes the migration
+     */
+    public boolean run() {
+        loadCheckpoint();
+        long resumedCount = checkpointCount;
+        long start = System.nanoTime();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService writers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "ConfigMigration-Writer-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ScheduledExecutorService progressExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ConfigMigration-Progress");
+            t.setDaemon(true);
+            return t;
+        });
+        progressExecutor.scheduleAtFixedRate(() -> LOG.info("Migrated {} configs ({}/s)", resumedCount + migrated.get(),
+                perSecond(migrated.get(), System.nanoTime() - start)), PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.SECONDS);
+
+        //bounds the batches read ahead of the writers
+        Semaphore pendingBatches = new Semaphore(threads * 2);
+        AtomicInteger sequence = new AtomicInteger();
+        List<IGuildConfig> configs = new ArrayList<>(batchSize);
+        try {
+            source.forEachConfiguration(checkpointGuildId, fetchSize, config -> {
+                configs.add(config);
+                if(configs.size() >= batchSize) {
+                    submit(writers, pendingBatches, new Batch(sequence.getAndIncrement(), new ArrayList<>(configs)));
+                    configs.clear();
+                }
+            });
+            if(!configs.isEmpty())
+                submit(writers, pendingBatches, new Batch(sequence.getAndIncrement(), configs));
+        } catch(RuntimeException ex) {
+            //also thrown by submit if a writer failed, that failure is reported below
+            failure.compareAndSet(null, ex);
+        } finally {
+            writers.shutdown();
+            try {
+                writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, new IllegalStateException("Interrupted while waiting for writers", ex));
+            }
+            progressExecutor.shutdownNow();
+        }
+
+        //stores the remaining buffered imports, on failure keeps as much progress as possible
+        try {
+            checkpoint();
+        } catch(RuntimeException ex) {
+            failure.compareAndSet(null, ex);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        if(failure.get() != null) {
+            LOG.error("Migration failed after {} configs. Run it again to resume after guild id {}", resumedCount + migrated.get(),
+                    Long.toUnsignedString(savedGuildId), failure.get());
+            return false;
+        }
+        LOG.info("Migrated {} configs in {}s ({}/s){}", resumedCount + migrated.get(), TimeUnit.NANOSECONDS.toSeconds(elapsed),
+                perSecond(migrated.get(), elapsed), resumedCount > 0 ? " (" + resumedCount + " of them in a previous run)" : "");
+        try {
+            Files.deleteIfExists(checkpointPath);
+        } catch(IOException ex) {
+            LOG.warn("Could not delete migration checkpoint {}", checkpointPath, ex);
+        }
+        return true;
+    }
+
+    private void submit(ExecutorService writers, Semaphore pendingBatches, Batch batch) {
+        try {
+            pendingBatches.acquire();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading configs", ex);
+        }
+        //stop reading, the checkpoint can't advance past the failed batch anyways
+        if(failure.get() != null)
+            throw failure.get();
+        writers.execute(() -> {
+            try {
+                if(failure.get() == null) {
+                    target.importConfigurations(batch.configs);
+                    migrated.addAndGet(batch.configs.size());
+                    onStored(batch);
+                }
+            } catch(RuntimeException ex) {
+                failure.compareAndSet(null, ex);
+            } finally {
+                pendingBatches.release();
+            }
+        });
+    }
+
+    //advances the checkpoint over all batches stored without gaps
+    private synchronized void onStored(Batch batch) {
+        storedBatches.put(batch.sequence, batch);
+        boolean advanced = false;
+        Batch next;
+        while((next = storedBatches.remove(nextCheckpointSequence)) != null) {
+            checkpointGuildId = next.configs.get(next.configs.size() - 1).getGuildId();
+            checkpointCount += next.configs.size();
+            nextCheckpointSequence++;
+            advanced = true;
+        }
+        if(advanced && System.nanoTime() - lastCheckpoint >= CHECKPOINT_INTERVAL)
+            checkpoint();
+    }
+
+    //the checkpoint must not get ahead of what the target stored
+    private synchronized void checkpoint() {
+        target.flushImports();
+        lastCheckpoint = System.nanoTime();
+        if(checkpointGuildId != savedGuildId)
+            writeCheckpoint();
+    }
+
+    private void loadCheckpoint() {
+        if(!Files.exists(checkpointPath))
+            return;
+        try {
+            JSONObject checkpoint = Utils.readJson(checkpointPath);
+            if(!targetDescription.equals(checkpoint.getString("target"))) {
+                LOG.warn("Ignoring migration checkpoint of a different target ({})", checkpoint.getString("target"));
+                return;
+            }
+            checkpointGuildId = Long.parseUnsignedLong(checkpoint.getString("lastGuildId"));
+            checkpointCount = checkpoint.getLong("migrated");
+            savedGuildId = checkpointGuildId;
+            LOG.info("Resuming migration after guild id {} ({} configs already migrated)", Long.toUnsignedString(checkpointGuildId),
+                    checkpointCount);
+        } catch(IOException | JSONException | NumberFormatException ex) {
+            LOG.warn("Could not read migration checkpoint {}, starting from the beginning", checkpointPath, ex);
+        }
+    }
+
+    private void writeCheckpoint() {
+        try {
+            Utils.writeJsonAtomically(checkpointPath, new JSONObject()
+                    .put("target", targetDescription)
+                    .put("lastGuildId", Long.toUnsignedString(checkpointGuildId))
+                    .put("migrated", checkpointCount));
+            savedGuildId = checkpointGuildId;
+        } catch(IOException ex) {
+            //only costs re-migrating some configs when resuming
+            LOG.warn("Could not write migration checkpoint {}", checkpointPath, ex);
+        }
+    }
+
+    private static String perSecond(long count, long nanos) {
+        return String.format("%.1f", count / Math.max(1e-9, nanos / 1e9));
+    }
+
+    private static class Batch {
+        private final int sequence;
+        private final List<IGuildConfig> configs;
+
+        private Batch(int sequence, List<IGuildConfig> configs) {
+            this.sequence = sequence;
+            this.configs = configs;
+        }
+    }
+}
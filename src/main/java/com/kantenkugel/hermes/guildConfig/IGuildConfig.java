@@ -6,9 +6,10 @@ import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Role;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Individual Guild config for a specific Guild. Created and retrieved by some {@link IGuildConfigProvider}.
@@ -32,7 +33,12 @@ public interface IGuildConfig {
      * @return  Whether or not the given Member is an announcer
      */
     default boolean isAnnouncer(@NotNull Member member) {
-        return member.getRoles().stream().anyMatch(this::isAnnouncerRole);
+        List<Role> roles = member.getRoles();
+        for(int i = 0; i < roles.size(); i++) {
+            if(isAnnouncerRole(roles.get(i)))
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -57,7 +63,14 @@ public interface IGuildConfig {
      */
     @NotNull
     default Set<Role> getAnnouncerRoles(@NotNull Guild guild) {
-        return Arrays.stream(getAnnouncerRoleIds().toArray()).mapToObj(guild::getRoleById).collect(Collectors.toSet());
+        Set<Role> roles = new HashSet<>();
+        getAnnouncerRoleIds().forEach(id -> {
+            Role role = guild.getRoleById(id);
+            if(role != null)
+                roles.add(role);
+            return true;
+        });
+        return roles;
     }
 
     /**
@@ -90,7 +103,14 @@ public interface IGuildConfig {
      */
     @NotNull
     default Set<Role> getAnnouncementRoles(@NotNull Guild guild) {
-        return Arrays.stream(getAnnouncementRoleIds().toArray()).mapToObj(guild::getRoleById).collect(Collectors.toSet());
+        Set<Role> roles = new HashSet<>();
+        getAnnouncementRoleIds().forEach(id -> {
+            Role role = guild.getRoleById(id);
+            if(role != null)
+                roles.add(role);
+            return true;
+        });
+        return roles;
     }
 
     /**
@@ -109,6 +129,48 @@ public interface IGuildConfig {
      */
     boolean isSubscriptionsEnabled();
 
+    /**
+     * Retrieves all announcements scheduled in this Guild.
+     *
+     * By default, this returns an empty List (scheduling is not supported).
+     *
+     * @return  Never-null (possibly empty) List of scheduled announcements
+     */
+    @NotNull
+    default List<ScheduledAnnouncement> getScheduledAnnouncements() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Adds a scheduled announcement, replacing the one with the same id if present.
+     * The method should not persist this change automatically. Changes are persisted via {@link #update()}.
+     *
+     * By default, this throws an {@link UnsupportedOperationException} (scheduling is not supported).
+     *
+     * @param   announcement
+     *          The scheduled announcement to add
+     *
+     * @throws  UnsupportedOperationException
+     *          If this config can't store scheduled announcements
+     */
+    default void putScheduledAnnouncement(@NotNull ScheduledAnnouncement announcement) {
+        throw new UnsupportedOperationException("Scheduled announcements are not supported by " + getClass().getName());
+    }
+
+    /**
+     * Removes a scheduled announcement.
+     * The method should not persist this change automatically. Changes are persisted via {@link #update()}.
+     *
+     * By default, this does nothing (scheduling is not supported, so there is nothing to remove).
+     *
+     * @param   id
+     *          The id of the scheduled announcement to remove
+     * @return  Whether or not an announcement with given id was removed
+     */
+    default boolean removeScheduledAnnouncement(long id) {
+        return false;
+    }
+
     /**
      * Adds a new Role to the announcer Roles.
      * The method should not persist this change automatically. Changes are persisted via {@link #update()}.
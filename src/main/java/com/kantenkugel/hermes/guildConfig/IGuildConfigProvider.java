@@ -6,7 +6,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  * Persistence entrypoint used to retrieve {@link IGuildConfig} instances.
@@ -40,6 +46,75 @@ public interface IGuildConfigProvider {
         return getConfigForGuild(guild.getIdLong());
     }
 
+    /**
+     * Non-blocking variant of {@link #getConfigForGuild(long)}.
+     * Implementations backed by blocking storage should perform the lookup on a dedicated I/O executor
+     * and complete the future from there, so callers (JDA event threads) never block on storage.
+     *
+     * By default, this completes synchronously using {@link #getConfigForGuild(long)}.
+     *
+     * @param   guildId
+     *          The guild id for which the configuration should be fetched or created
+     * @return  Future completing with the never-null configuration object for the given guild
+     */
+    @NotNull
+    default CompletableFuture<IGuildConfig> getConfigForGuildAsync(long guildId) {
+        CompletableFuture<IGuildConfig> future = new CompletableFuture<>();
+        try {
+            future.complete(getConfigForGuild(guildId));
+        } catch(Exception ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Non-blocking variant of {@link #getConfigForGuild(Guild)}.
+     *
+     * By default, this forwards to {@link #getConfigForGuildAsync(long)} and doesn't need to be overridden.
+     *
+     * @param   guild
+     *          The guild for which the configuration should be fetched or created
+     * @return  Future completing with the never-null configuration object for the given guild
+     */
+    @NotNull
+    default CompletableFuture<IGuildConfig> getConfigForGuildAsync(@NotNull Guild guild) {
+        return getConfigForGuildAsync(guild.getIdLong());
+    }
+
+    /**
+     * Loads the configurations of the given guilds ahead of their first use (e.g. after startup),
+     * so the first commands don't each trigger a single lookup.
+     * Configurations which don't exist yet are not created.
+     *
+     * By default, this does nothing.
+     *
+     * @param   guildIds
+     *          The ids of the guilds to prefetch configurations for
+     * @return  Future completing once prefetching is done
+     */
+    @NotNull
+    default CompletableFuture<Void> prefetchConfigs(@NotNull long[] guildIds) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Retrieves the scheduled announcements of all guilds, used to put them back on schedule after startup.
+     *
+     * By default, this collects them from {@link #getAllConfigurations()} on a separate thread.
+     *
+     * @return  Future completing with all scheduled announcements
+     */
+    @NotNull
+    default CompletableFuture<List<ScheduledAnnouncement>> getAllScheduledAnnouncements() {
+        return CompletableFuture.supplyAsync(() -> {
+            List<ScheduledAnnouncement> announcements = new ArrayList<>();
+            for(IGuildConfig config : getAllConfigurations())
+                announcements.addAll(config.getScheduledAnnouncements());
+            return announcements;
+        });
+    }
+
     /**
      * Used to retreive all currently existing guild configurations.
      * Only called when migrating from one model to another.
@@ -49,6 +124,64 @@ public interface IGuildConfigProvider {
     @NotNull
     Set<IGuildConfig> getAllConfigurations();
 
+    /**
+     * Passes all existing guild configurations of guilds with an id greater than {@code afterGuildId}
+     * to the consumer, in ascending order of guild id. Used when migrating from one model to another,
+     * the order allows resuming an interrupted migration.
+     *
+     * By default, this sorts the result of {@link #getAllConfigurations()}.
+     * Providers backed by external storage should override this to read the configurations in chunks.
+     *
+     * @param   afterGuildId
+     *          Only configurations of guilds with a greater id are passed ({@code 0} for all)
+     * @param   fetchSize
+     *          Hint of how many configurations to read from storage at once
+     * @param   consumer
+     *          The consumer of the configurations, called on the calling thread
+     *
+     * @throws  RuntimeException
+     *          If reading from storage failed
+     */
+    default void forEachConfiguration(long afterGuildId, int fetchSize, @NotNull Consumer<? super IGuildConfig> consumer) {
+        getAllConfigurations().stream()
+                .filter(config -> config.getGuildId() > afterGuildId)
+                .sorted(Comparator.comparingLong(IGuildConfig::getGuildId))
+                .forEachOrdered(consumer);
+    }
+
+    /**
+     * Stores copies of the given configurations (e.g. of another provider),
+     * replacing the configurations of the same guilds. The configurations are stored once this returns,
+     * or once {@link #flushImports()} returns for providers which buffer imports.
+     *
+     * By default, this copies and updates them one by one via {@link #getConfigForGuild(long)}.
+     * Providers should override this to store them at once.
+     *
+     * @param   configs
+     *          The configurations to store
+     *
+     * @throws  RuntimeException
+     *          If storing failed, part of the configurations may have been stored
+     */
+    default void importConfigurations(@NotNull Collection<? extends IGuildConfig> configs) {
+        for(IGuildConfig config : configs) {
+            IGuildConfig newConfig = getConfigForGuild(config.getGuildId());
+            newConfig.copyFromConfig(config);
+            newConfig.update();
+        }
+    }
+
+    /**
+     * Stores all configurations imported via {@link #importConfigurations(Collection)} which were only buffered so far.
+     * Providers which can only store all configurations at once buffer imports, so importing in batches stays linear.
+     *
+     * By default, this does nothing (imports are stored right away).
+     *
+     * @throws  RuntimeException
+     *          If storing failed
+     */
+    default void flushImports() {}
+
     static IGuildConfigProvider getFromClass(Class<? extends IGuildConfigProvider> clazz, String args) {
         Logger logger = LoggerFactory.getLogger(IGuildConfigProvider.class);
         IGuildConfigProvider guildConfigProvider = null;
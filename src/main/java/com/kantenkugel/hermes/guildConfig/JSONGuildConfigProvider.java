@@ -1,56 +1,147 @@
 package com.kantenkugel.hermes.guildConfig;
 
-import com.kantenkugel.hermes.Utils;
+import com.kantenkugel.common.Histogram;
+import gnu.trove.set.TLongSet;
 import gnu.trove.set.hash.TLongHashSet;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
 
 public class JSONGuildConfigProvider extends AbstractGuildConfigProvider<JSONGuildConfigProvider.JSONGuildConfig> {
     private static final Logger LOG = LoggerFactory.getLogger(JSONGuildConfigProvider.class);
     private static final String DEFAULT_CONFIG_PATH = "guildSettings.json";
+    private static final long DEFAULT_COMPACT_INTERVAL = 300;
     private final Path settingsPath;
 
-    //cached json object for easier re-construction on write
-    private JSONObject settingsObj;
+    //journal mode
+    private final boolean journaled;
+    private final Path journalPath;
+    private final Path compactingPath;
+    private FileChannel journal;
+    private int journalRecords = 0;
+    //without journal: json of updated or imported configs not written to the settings file yet
+    private final Map<Long, JSONObject> unwritten = new HashMap<>();
+    //serializes compactions (scheduled and shutdown), which write the snapshot outside of the provider lock
+    private final Object compactLock = new Object();
+
+    private final Histogram loadLatency = createLatencyHistogram("json_load");
+    private final Histogram writeLatency = createLatencyHistogram("json_write");
+    private final Histogram compactLatency = createLatencyHistogram("json_compact");
 
     public JSONGuildConfigProvider() {
         this(DEFAULT_CONFIG_PATH);
     }
 
-    public JSONGuildConfigProvider(String filePath) {
+    /**
+     * Creates a new provider.
+     * The args consist of the file path, optionally followed by whitespace-separated options:
+     * <ul>
+     *     <li>{@code journal=true} - Enables journal mode: Changes are appended to a journal file next to the settings file
+     *     and periodically compacted into the settings file (default false)</li>
+     *     <li>{@code compactInterval=<s>} - Interval in seconds in which the journal is compacted (default 300)</li>
+     * </ul>
+     *
+     * @param   args
+     *          The file path + options
+     */
+    public JSONGuildConfigProvider(String args) {
         super(-1);
-        settingsPath = Paths.get(filePath);
-        if(Files.exists(settingsPath)) {
+        boolean journalEnabled = false;
+        long compactInterval = DEFAULT_COMPACT_INTERVAL;
+        List<String> pathParts = new ArrayList<>();
+        for(String split : args.trim().split("\\s+")) {
+            String[] option = split.split("=", 2);
             try {
-                settingsObj = Utils.readJson(settingsPath);
-                for(String key : settingsObj.keySet()) {
-                    try {
-                        long guildId = Long.parseUnsignedLong(key);
-                        JSONGuildConfig setting = new JSONGuildConfig(guildId, settingsObj.getJSONObject(key));
-                        configCache.put(guildId, setting);
-                    } catch(NumberFormatException ex) {
-                        LOG.error("There was a non-id key ({}) in the guild settings file", key, ex);
-                    } catch(JSONException ex) {
-                        LOG.error("Error parsing json for guild with id {}", key, ex);
-                    }
+                switch(option.length == 2 ? option[0].toLowerCase() : "") {
+                    case "journal":
+                        journalEnabled = Boolean.parseBoolean(option[1]);
+                        break;
+                    case "compactinterval":
+                        compactInterval = Long.parseLong(option[1]);
+                        if(compactInterval <= 0) {
+                            LOG.warn("compactInterval has to be positive, using default of {}s", DEFAULT_COMPACT_INTERVAL);
+                            compactInterval = DEFAULT_COMPACT_INTERVAL;
+                        }
+                        break;
+                    default:
+                        pathParts.add(split);
                 }
+            } catch(NumberFormatException ex) {
+                LOG.warn("Invalid value for JSONGuildConfigProvider option {}", split);
+            }
+        }
+
+        settingsPath = Paths.get(String.join(" ", pathParts));
+        journaled = journalEnabled;
+        journalPath = settingsPath.resolveSibling(settingsPath.getFileName() + ".journal");
+        compactingPath = settingsPath.resolveSibling(settingsPath.getFileName() + ".journal.compacting");
+
+        if(Files.exists(settingsPath)) {
+            long start = System.nanoTime();
+            try {
+                //streamed into the configs, the file is not kept in memory
+                int count = JSONSettingsReader.read(settingsPath, (guildId, announcerIds, announcementRoles, subscriptionsEnabled, schedules) ->
+                        configCache.put(guildId, new JSONGuildConfig(guildId, announcerIds, announcementRoles, subscriptionsEnabled, schedules)));
+                LOG.info("Loaded {} guild configs in {}ms", count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
             } catch(IOException ex) {
-                LOG.error("Could not read existing guild settings file", ex);
+                //the next write would replace the file with the configs loaded so far
+                throw new RuntimeException("Could not read existing guild settings file", ex);
+            } finally {
+                loadLatency.recordSince(start);
             }
-        } else {
-            settingsObj = new JSONObject();
+        }
+
+        if(journaled) {
+            //journal of an interrupted compaction is older than the current journal
+            journalRecords = replayJournal(compactingPath) + replayJournal(journalPath);
+            try {
+                journal = openJournal();
+                //fold everything replayed into a fresh snapshot
+                compact();
+            } catch(IOException ex) {
+                throw new RuntimeException("Could not open guild settings journal", ex);
+            }
+            ScheduledExecutorService compactExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "JSONGuildConfigProvider-Compact");
+                t.setDaemon(true);
+                return t;
+            });
+            compactExecutor.scheduleWithFixedDelay(this::compact, compactInterval, compactInterval, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                compactExecutor.shutdown();
+                compact();
+            }));
         }
     }
 
@@ -59,13 +150,236 @@ public class JSONGuildConfigProvider extends AbstractGuildConfigProvider<JSONGui
         return new HashSet<>(configCache.values());
     }
 
+    @Override
+    public synchronized void importConfigurations(@NotNull Collection<? extends IGuildConfig> configs) {
+        List<JSONObject> records = new ArrayList<>(configs.size());
+        for(IGuildConfig config : configs) {
+            JSONGuildConfig copy = new JSONGuildConfig(config.getGuildId());
+            copy.copyFromConfig(config);
+            JSONObject record = copy.toJson();
+            if(journaled)
+                records.add(record.put("id", Long.toUnsignedString(copy.guildId)));
+            else
+                unwritten.put(copy.guildId, record);
+            configCache.put(copy.guildId, copy);
+        }
+        //rewriting the whole file for every batch would be quadratic, written by flushImports()
+        if(!journaled)
+            return;
+        //one journal append for all of them
+        long start = System.nanoTime();
+        try {
+            appendJournal(records);
+        } catch(IOException ex) {
+            throw new UncheckedIOException("Could not store imported guild configs", ex);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public synchronized void flushImports() {
+        if(unwritten.isEmpty())
+            return;
+        long start = System.nanoTime();
+        try {
+            writeSettings(unwritten);
+            unwritten.clear();
+        } catch(IOException ex) {
+            throw new UncheckedIOException("Could not store imported guild configs", ex);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    //called by the thread modifying the config (its guild lane), so its sets are not modified while serializing
     private synchronized void update(JSONGuildConfig config) {
-        settingsObj.put(Long.toUnsignedString(config.guildId), config.toJson());
+        long start = System.nanoTime();
         try {
-            Utils.writeJson(settingsPath, settingsObj);
+            JSONObject record = config.toJson();
+            if(journaled) {
+                appendJournal(Collections.singletonList(record.put("id", Long.toUnsignedString(config.guildId))));
+            } else {
+                //kept until written, a failed write is retried with the next one
+                unwritten.put(config.guildId, record);
+                writeSettings(unwritten);
+                unwritten.clear();
+            }
         } catch(IOException ex) {
-            LOG.error("Could not update the guild settings file", ex);
+            LOG.error(journaled ? "Could not append to the guild settings journal" : "Could not update the guild settings file", ex);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    //writes a new settings file of the configs in the current one, replaced by or extended with the given records.
+    //the configs are streamed from the file instead of serializing the cached ones, which other guild lanes may be modifying
+    //(with changes which were not update()d yet). so only configs of updates and not yet written imports are held as json
+    private void writeSettings(Map<Long, JSONObject> records) throws IOException {
+        Path tmpPath = settingsPath.resolveSibling(settingsPath.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1));
+            writer.write('{');
+            Map<Long, JSONObject> remaining = new HashMap<>(records);
+            boolean[] first = {true};
+            if(Files.exists(settingsPath)) {
+                try {
+                    //called concurrently for large files
+                    JSONSettingsReader.read(settingsPath, (guildId, announcerIds, announcementRoles, subscriptionsEnabled, schedules) -> {
+                        synchronized(writer) {
+                            JSONObject record = remaining.remove(guildId);
+                            writeSetting(writer, guildId, record != null ? record
+                                    : toJson(announcerIds, announcementRoles, subscriptionsEnabled, schedules), first[0]);
+                            first[0] = false;
+                        }
+                    });
+                } catch(UncheckedIOException ex) {
+                    throw ex.getCause();
+                }
+            }
+            //new guilds
+            for(Map.Entry<Long, JSONObject> record : remaining.entrySet()) {
+                writeSetting(writer, record.getKey(), record.getValue(), first[0]);
+                first[0] = false;
+            }
+            writer.write(first[0] ? "}" : "\n}");
+            writer.flush();
+            channel.force(true);
         }
+        Files.move(tmpPath, settingsPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeSetting(Writer writer, long guildId, JSONObject record, boolean first) {
+        try {
+            writer.write(first ? "\n    \"" : ",\n    \"");
+            writer.write(Long.toUnsignedString(guildId));
+            writer.write("\": ");
+            record.write(writer, 4, 4);
+        } catch(IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void appendJournal(List<JSONObject> records) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for(JSONObject record : records)
+            lines.append(record.toString()).append('\n');
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        while(buffer.hasRemaining())
+            journal.write(buffer);
+        journal.force(false);
+        journalRecords += records.size();
+    }
+
+    private FileChannel openJournal() throws IOException {
+        return FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private int replayJournal(Path path) {
+        int replayed = readJournal(path, (record, guildId) -> configCache.put(guildId, new JSONGuildConfig(guildId, record)));
+        if(Files.exists(path))
+            LOG.info("Replayed {} records from guild settings journal {}", replayed, path);
+        return replayed;
+    }
+
+    //passes the valid records of the journal to the consumer, returns their number
+    private static int readJournal(Path path, ObjLongConsumer<JSONObject> consumer) {
+        if(!Files.exists(path))
+            return 0;
+        int read = 0;
+        try(BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(line.isEmpty())
+                    continue;
+                try {
+                    JSONObject record = new JSONObject(line);
+                    long guildId = Long.parseUnsignedLong((String) record.remove("id"));
+                    //validates the record
+                    toIdSet(record.getJSONArray("announcerIds"));
+                    toIdSet(record.getJSONArray("announcementRoles"));
+                    record.getBoolean("subscriptionsEnabled");
+                    consumer.accept(record, guildId);
+                    read++;
+                } catch(JSONException | NumberFormatException | ClassCastException ex) {
+                    //most likely a torn write of the last record during a crash
+                    LOG.warn("Skipping invalid record in guild settings journal {}: {}", path, line);
+                }
+            }
+        } catch(IOException ex) {
+            LOG.error("Could not read guild settings journal {}", path, ex);
+        }
+        return read;
+    }
+
+    /**
+     * Merges the journal into a new snapshot of the settings file and clears it.
+     * <p>
+     * The journal is rotated while holding the lock, so updates only wait for the rotation and not the snapshot write.
+     * The snapshot is the old settings file with the records of the rotated journal applied, the cached configs are not read.
+     * If interrupted, the rotated journal is replayed on top of the old snapshot on next startup.
+     * Only one compaction runs at a time.
+     */
+    private void compact() {
+        synchronized(compactLock) {
+            long start = System.nanoTime();
+            synchronized(this) {
+                if(journalRecords == 0 && !Files.exists(compactingPath))
+                    return;
+                try {
+                    if(!Files.exists(compactingPath)) {
+                        //the open journal keeps working if anything fails until it is replaced
+                        Files.move(journalPath, compactingPath);
+                        FileChannel rotated;
+                        try {
+                            rotated = openJournal();
+                        } catch(IOException ex) {
+                            Files.move(compactingPath, journalPath);
+                            throw ex;
+                        }
+                        FileChannel old = journal;
+                        journal = rotated;
+                        journalRecords = 0;
+                        try {
+                            old.close();
+                        } catch(IOException ex) {
+                            LOG.warn("Could not close rotated guild settings journal", ex);
+                        }
+                    }
+                } catch(IOException ex) {
+                    LOG.error("Could not rotate guild settings journal", ex);
+                    return;
+                }
+            }
+            try {
+                //latest record per guild
+                Map<Long, JSONObject> records = new HashMap<>();
+                readJournal(compactingPath, (record, guildId) -> records.put(guildId, record));
+                writeSettings(records);
+                Files.delete(compactingPath);
+                LOG.debug("Compacted {} guild configs of the journal into the guild settings file", records.size());
+            } catch(IOException ex) {
+                LOG.error("Could not write guild settings snapshot", ex);
+            } finally {
+                compactLatency.recordSince(start);
+            }
+        }
+    }
+
+    private static JSONObject toJson(TLongSet announcerIds, TLongSet announcementRoles, boolean subscriptionsEnabled,
+                                     @Nullable JSONArray schedules) {
+        return new JSONObject()
+                .put("announcerIds", new JSONArray(announcerIds.toArray()))
+                .put("announcementRoles", new JSONArray(announcementRoles.toArray()))
+                .put("subscriptionsEnabled", subscriptionsEnabled)
+                .put("scheduledAnnouncements", schedules == null ? new JSONArray() : schedules);
+    }
+
+    private static TLongHashSet toIdSet(JSONArray ids) {
+        TLongHashSet set = new TLongHashSet(ids.length());
+        for(int i = 0; i < ids.length(); i++)
+            set.add(ids.getLong(i));
+        return set;
     }
 
     @Override
@@ -85,13 +399,19 @@ public class JSONGuildConfigProvider extends AbstractGuildConfigProvider<JSONGui
             super(guildId);
         }
 
-        private JSONGuildConfig(long guildId, JSONObject settings) {
-            super(
-                    guildId,
-                    new TLongHashSet(StreamSupport.stream(settings.getJSONArray("announcerIds").spliterator(), false).mapToLong(e -> (long) e).toArray()),
-                    new TLongHashSet(StreamSupport.stream(settings.getJSONArray("announcementRoles").spliterator(), false).mapToLong(e -> (long) e).toArray()),
-                    settings.getBoolean("subscriptionsEnabled")
-            );
+        JSONGuildConfig(long guildId, JSONObject settings) {
+            this(guildId, toIdSet(settings.getJSONArray("announcerIds")), toIdSet(settings.getJSONArray("announcementRoles")),
+                    settings.getBoolean("subscriptionsEnabled"), settings.optJSONArray("scheduledAnnouncements"));
+        }
+
+        private JSONGuildConfig(long guildId, TLongHashSet announcerIds, TLongHashSet announcementRoles, boolean subscriptionsEnabled,
+                                @Nullable JSONArray schedules) {
+            super(guildId, announcerIds, announcementRoles, subscriptionsEnabled);
+            //not present in files written before scheduling was added
+            if(schedules != null) {
+                for(ScheduledAnnouncement announcement : ScheduledAnnouncement.fromJson(guildId, schedules))
+                    scheduledAnnouncements.put(announcement.getId(), announcement);
+            }
         }
 
         @Override
@@ -99,11 +419,9 @@ public class JSONGuildConfigProvider extends AbstractGuildConfigProvider<JSONGui
             JSONGuildConfigProvider.this.update(this);
         }
 
-        private JSONObject toJson() {
-            return new JSONObject()
-                    .put("announcerIds", new JSONArray(announcerRoles.toArray()))
-                    .put("announcementRoles", new JSONArray(announcementRoles.toArray()))
-                    .put("subscriptionsEnabled", subscriptionsEnabled);
+        JSONObject toJson() {
+            return JSONGuildConfigProvider.toJson(announcerRoles, announcementRoles, subscriptionsEnabled,
+                    ScheduledAnnouncement.toJson(getScheduledAnnouncements()));
         }
     }
 
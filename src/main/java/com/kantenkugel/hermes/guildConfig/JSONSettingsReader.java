@@ -0,0 +1,507 @@
+package com.kantenkugel.hermes.guildConfig;
+
+import gnu.trove.set.hash.TLongHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pull parser for the guild settings file of the {@link JSONGuildConfigProvider}
+ * (an object of guild id to {@code {"announcerIds": [...], "announcementRoles": [...], "subscriptionsEnabled": bool,
+ * "scheduledAnnouncements": [...]}}).
+ * <p>
+ * Role ids are read straight into {@link TLongHashSet TLongHashSets}, no json objects are created for the file or
+ * the configs (only for scheduled announcements, which are rare). Unknown keys are skipped.
+ * <p>
+ * Large files are read into memory, split at guild boundaries and parsed in parallel, smaller ones are parsed
+ * while reading.
+ */
+final class JSONSettingsReader {
+    private static final Logger LOG = LoggerFactory.getLogger(JSONSettingsReader.class);
+    //files above this size are parsed in parallel chunks
+    private static final long PARALLEL_THRESHOLD = 4 << 20;
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Receives the parsed configs. Called concurrently when parsing in parallel.
+     */
+    interface ConfigConsumer {
+        void accept(long guildId, @NotNull TLongHashSet announcerIds, @NotNull TLongHashSet announcementRoles,
+                    boolean subscriptionsEnabled, @Nullable JSONArray scheduledAnnouncements);
+    }
+
+    private final Reader reader;
+    private final char[] buffer;
+    private int pos;
+    private int limit;
+
+    private JSONSettingsReader(Reader reader) {
+        this.reader = reader;
+        this.buffer = new char[BUFFER_SIZE];
+    }
+
+    private JSONSettingsReader(char[] chars, int start, int end) {
+        this.reader = null;
+        this.buffer = chars;
+        this.pos = start;
+        this.limit = end;
+    }
+
+    /**
+     * Reads the guild settings file, passing every valid guild config to the consumer.
+     * Configs with invalid or missing values are logged and skipped.
+     *
+     * @param   path
+     *          The path of the settings file
+     * @param   consumer
+     *          The consumer of the configs
+     * @return  The number of read configs
+     *
+     * @throws  IOException
+     *          If reading the file failed
+     * @throws  JSONException
+     *          If the file is not valid json
+     */
+    static int read(@NotNull Path path, @NotNull ConfigConsumer consumer) throws IOException {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        if(parallelism > 1 && Files.size(path) > PARALLEL_THRESHOLD)
+            return readParallel(path, consumer, parallelism);
+        try(Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            JSONSettingsReader settingsReader = new JSONSettingsReader(reader);
+            int count = settingsReader.readSettings(consumer);
+            if(settingsReader.skipWhitespace() != -1)
+                throw settingsReader.syntaxError("Unexpected content after settings object");
+            return count;
+        }
+    }
+
+    private static int readParallel(Path path, ConfigConsumer consumer, int parallelism) throws IOException {
+        CharBuffer content = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(Files.readAllBytes(path)));
+        char[] chars = content.array();
+        int end = content.arrayOffset() + content.limit();
+        List<int[]> chunks = split(chars, content.arrayOffset() + content.position(), end, parallelism);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, chunks.size()), r -> {
+            Thread t = new Thread(r, "JSONGuildConfigProvider-Load-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Integer>> results = new ArrayList<>(chunks.size());
+            for(int[] chunk : chunks)
+                results.add(executor.submit(() -> new JSONSettingsReader(chars, chunk[0], chunk[1]).readEntries(consumer, -1)));
+            int count = 0;
+            for(Future<Integer> result : results)
+                count += result.get();
+            LOG.debug("Parsed guild settings file in {} chunks", chunks.size());
+            return count;
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading guild settings file", ex);
+        } catch(ExecutionException ex) {
+            if(ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw new IOException("Could not read guild settings file", ex.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    //splits the entries of the top-level object into chunks of about equal size (ranges between its braces)
+    private static List<int[]> split(char[] chars, int start, int end, int chunkCount) throws IOException {
+        JSONSettingsReader bounds = new JSONSettingsReader(chars, start, end);
+        if(bounds.skipWhitespace() != '{')
+            throw bounds.syntaxError("Expected '{'");
+        int objectStart = ++bounds.pos;
+        int objectEnd = end;
+        while(objectEnd > objectStart && chars[objectEnd - 1] != '}')
+            objectEnd--;
+        if(objectEnd == objectStart)
+            throw bounds.syntaxError("Unterminated settings object");
+        objectEnd--;
+
+        List<int[]> chunks = new ArrayList<>(chunkCount);
+        int targetSize = Math.max(1, (objectEnd - objectStart) / chunkCount);
+        int chunkStart = objectStart;
+        int depth = 0;
+        boolean inString = false;
+        for(int i = objectStart; i < objectEnd; i++) {
+            char c = chars[i];
+            if(inString) {
+                if(c == '\\')
+                    i++;
+                else if(c == '"')
+                    inString = false;
+            } else if(c == '"') {
+                inString = true;
+            } else if(c == '{' || c == '[') {
+                depth++;
+            } else if(c == '}' || c == ']') {
+                depth--;
+            } else if(c == ',' && depth == 0 && i - chunkStart >= targetSize) {
+                chunks.add(new int[] { chunkStart, i });
+                chunkStart = i + 1;
+            }
+        }
+        chunks.add(new int[] { chunkStart, objectEnd });
+        return chunks;
+    }
+
+    private int readSettings(ConfigConsumer consumer) throws IOException {
+        if(skipWhitespace() != '{')
+            throw syntaxError("Expected '{'");
+        pos++;
+        int count = readEntries(consumer, '}');
+        pos++;
+        return count;
+    }
+
+    //reads "<guild id>": {...} entries until the terminator (-1 = end of input)
+    private int readEntries(ConfigConsumer consumer, int terminator) throws IOException {
+        int count = 0;
+        if(skipWhitespace() == terminator)
+            return count;
+        while(true) {
+            String key = readString();
+            expect(':');
+            long guildId = 0;
+            boolean validId = true;
+            try {
+                guildId = Long.parseUnsignedLong(key);
+            } catch(NumberFormatException ex) {
+                LOG.error("There was a non-id key ({}) in the guild settings file", key);
+                validId = false;
+            }
+            if(!validId)
+                skipValue();
+            else if(readConfig(guildId, consumer))
+                count++;
+
+            int c = skipWhitespace();
+            if(c == terminator)
+                return count;
+            if(c != ',')
+                throw syntaxError("Expected ',' or end of settings object");
+            pos++;
+        }
+    }
+
+    private boolean readConfig(long guildId, ConfigConsumer consumer) throws IOException {
+        if(skipWhitespace() != '{')
+            throw syntaxError("Expected '{' for guild " + guildId);
+        pos++;
+        TLongHashSet announcerIds = null;
+        TLongHashSet announcementRoles = null;
+        Boolean subscriptionsEnabled = null;
+        JSONArray schedules = null;
+        boolean valid = true;
+        if(skipWhitespace() != '}') {
+            while(true) {
+                String key = readString();
+                expect(':');
+                switch(key) {
+                    case "announcerIds":
+                        announcerIds = readIds();
+                        break;
+                    case "announcementRoles":
+                        announcementRoles = readIds();
+                        break;
+                    case "subscriptionsEnabled":
+                        subscriptionsEnabled = readBoolean();
+                        break;
+                    case "scheduledAnnouncements":
+                        Object value = readValue();
+                        if(value instanceof JSONArray)
+                            schedules = (JSONArray) value;
+                        else if(value != JSONObject.NULL)
+                            valid = false;
+                        break;
+                    default:
+                        skipValue();
+                }
+                int c = skipWhitespace();
+                if(c == '}')
+                    break;
+                if(c != ',')
+                    throw syntaxError("Expected ',' or '}' in config of guild " + guildId);
+                pos++;
+            }
+        }
+        pos++;
+
+        if(!valid || announcerIds == null || announcementRoles == null || subscriptionsEnabled == null) {
+            LOG.error("Error parsing json for guild with id {}: Missing or invalid values", Long.toUnsignedString(guildId));
+            return false;
+        }
+        try {
+            consumer.accept(guildId, announcerIds, announcementRoles, subscriptionsEnabled, schedules);
+            return true;
+        } catch(JSONException ex) {
+            LOG.error("Error parsing json for guild with id {}", Long.toUnsignedString(guildId), ex);
+            return false;
+        }
+    }
+
+    private TLongHashSet readIds() throws IOException {
+        if(skipWhitespace() != '[')
+            throw syntaxError("Expected '['");
+        pos++;
+        TLongHashSet ids = new TLongHashSet();
+        if(skipWhitespace() == ']') {
+            pos++;
+            return ids;
+        }
+        while(true) {
+            ids.add(readLong());
+            int c = skipWhitespace();
+            pos++;
+            if(c == ']')
+                return ids;
+            if(c != ',')
+                throw syntaxError("Expected ',' or ']' in id list");
+            skipWhitespace();
+        }
+    }
+
+    private long readLong() throws IOException {
+        int c = peek();
+        boolean negative = c == '-';
+        if(negative) {
+            pos++;
+            c = peek();
+        }
+        if(c < '0' || c > '9')
+            throw syntaxError("Expected number");
+        long value = 0;
+        while(c >= '0' && c <= '9') {
+            try {
+                value = Math.addExact(Math.multiplyExact(value, 10), c - '0');
+            } catch(ArithmeticException ex) {
+                throw syntaxError("Id out of range");
+            }
+            pos++;
+            c = peek();
+        }
+        if(c == '.' || c == 'e' || c == 'E')
+            throw syntaxError("Expected integer");
+        return negative ? -value : value;
+    }
+
+    private boolean readBoolean() throws IOException {
+        if(skipWhitespace() == 't') {
+            expectLiteral("true");
+            return true;
+        }
+        expectLiteral("false");
+        return false;
+    }
+
+    //reads a value as json object (only used for rare values)
+    private Object readValue() throws IOException {
+        int c = skipWhitespace();
+        switch(c) {
+            case '"':
+                return readString();
+            case '{': {
+                pos++;
+                JSONObject object = new JSONObject();
+                if(skipWhitespace() == '}') {
+                    pos++;
+                    return object;
+                }
+                while(true) {
+                    String key = readString();
+                    expect(':');
+                    object.put(key, readValue());
+                    c = skipWhitespace();
+                    pos++;
+                    if(c == '}')
+                        return object;
+                    if(c != ',')
+                        throw syntaxError("Expected ',' or '}'");
+                    skipWhitespace();
+                }
+            }
+            case '[': {
+                pos++;
+                JSONArray array = new JSONArray();
+                if(skipWhitespace() == ']') {
+                    pos++;
+                    return array;
+                }
+                while(true) {
+                    array.put(readValue());
+                    c = skipWhitespace();
+                    pos++;
+                    if(c == ']')
+                        return array;
+                    if(c != ',')
+                        throw syntaxError("Expected ',' or ']'");
+                }
+            }
+            case 't':
+                expectLiteral("true");
+                return Boolean.TRUE;
+            case 'f':
+                expectLiteral("false");
+                return Boolean.FALSE;
+            case 'n':
+                expectLiteral("null");
+                return JSONObject.NULL;
+            default:
+                StringBuilder number = new StringBuilder();
+                while(c != -1 && (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9'))) {
+                    number.append((char) c);
+                    pos++;
+                    c = peek();
+                }
+                if(number.length() == 0)
+                    throw syntaxError("Unexpected character");
+                try {
+                    String text = number.toString();
+                    return text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0
+                            ? (Object) Long.parseLong(text) : (Object) Double.parseDouble(text);
+                } catch(NumberFormatException ex) {
+                    throw syntaxError("Invalid number " + number);
+                }
+        }
+    }
+
+    private void skipValue() throws IOException {
+        int c = skipWhitespace();
+        if(c == '{' || c == '[') {
+            readValue();
+        } else if(c == '"') {
+            readString();
+        } else {
+            //literals and numbers
+            while(c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                pos++;
+                c = peek();
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        if(skipWhitespace() != '"')
+            throw syntaxError("Expected string");
+        pos++;
+        StringBuilder builder = new StringBuilder();
+        while(true) {
+            int c = next();
+            switch(c) {
+                case -1:
+                    throw syntaxError("Unterminated string");
+                case '"':
+                    return builder.toString();
+                case '\\':
+                    int escaped = next();
+                    switch(escaped) {
+                        case 'b':
+                            builder.append('\b');
+                            break;
+                        case 'f':
+                            builder.append('\f');
+                            break;
+                        case 'n':
+                            builder.append('\n');
+                            break;
+                        case 'r':
+                            builder.append('\r');
+                            break;
+                        case 't':
+                            builder.append('\t');
+                            break;
+                        case 'u':
+                            int code = 0;
+                            for(int i = 0; i < 4; i++) {
+                                int digit = Character.digit(next(), 16);
+                                if(digit < 0)
+                                    throw syntaxError("Invalid unicode escape");
+                                code = code * 16 + digit;
+                            }
+                            builder.append((char) code);
+                            break;
+                        case '"':
+                        case '\\':
+                        case '/':
+                            builder.append((char) escaped);
+                            break;
+                        default:
+                            throw syntaxError("Invalid escape");
+                    }
+                    break;
+                default:
+                    builder.append((char) c);
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if(skipWhitespace() != expected)
+            throw syntaxError("Expected '" + expected + '\'');
+        pos++;
+    }
+
+    private void expectLiteral(String literal) throws IOException {
+        for(int i = 0; i < literal.length(); i++) {
+            if(next() != literal.charAt(i))
+                throw syntaxError("Expected " + literal);
+        }
+    }
+
+    //skips whitespace and returns the next char without consuming it (-1 at the end)
+    private int skipWhitespace() throws IOException {
+        int c = peek();
+        while(c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            pos++;
+            c = peek();
+        }
+        return c;
+    }
+
+    private int next() throws IOException {
+        int c = peek();
+        if(c != -1)
+            pos++;
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if(pos == limit) {
+            if(reader == null)
+                return -1;
+            limit = reader.read(buffer, 0, buffer.length);
+            pos = 0;
+            if(limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos];
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " in guild settings file");
+    }
+}
@@ -0,0 +1,551 @@
+package com.kantenkugel.hermes.guildConfig;
+
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Guild config provider storing all configs in a memory-mapped binary file.
+ * <p>
+ * File layout (all values big-endian):
+ * <pre>
+ * header:  int magic, int version, int indexCapacity, int entryCount, long dataEnd, long garbageBytes
+ * index:   indexCapacity slots of (long guildId, long recordOffset), open addressing with linear probing, guildId 0 = free
+ * data:    records of (int count, long[count] announcerIds, int count, long[count] announcementIds, byte subsEnabled,
+ *          int count, schedule[count] scheduledAnnouncements)
+ * schedule: long id, long channelId, long roleId, long nextRun, long interval, str text, str authorName, str authorAvatarUrl
+ * str:     int length, byte[length] utf-8
+ * </pre>
+ * Version 1 files (records without scheduled announcements) are upgraded when opened.
+ * Updates append a new record, sync it and only then re-point the index slot,
+ * so a crash (even of the whole system) never leaves a half-written record referenced.
+ * Superseded records are reclaimed when the index is grown or too much of the data region is garbage.
+ */
+public class MMapGuildConfigProvider extends AbstractGuildConfigProvider<MMapGuildConfigProvider.MMapGuildConfig> {
+    private static final Logger LOG = LoggerFactory.getLogger(MMapGuildConfigProvider.class);
+    private static final String DEFAULT_FILE_PATH = "guildSettings.bin";
+
+    private static final int MAGIC = 0x48524D53; //HRMS
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final float MAX_LOAD_FACTOR = 0.7F;
+    //data regions smaller than this are never compacted
+    private static final long MIN_COMPACT_SIZE = 1 << 20;
+
+    //header offsets
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int DATA_END_OFFSET = 16;
+    private static final int GARBAGE_OFFSET = 24;
+
+    private final Path filePath;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    public MMapGuildConfigProvider() {
+        this(DEFAULT_FILE_PATH);
+    }
+
+    public MMapGuildConfigProvider(String filePath) {
+        this.filePath = Paths.get(filePath.trim());
+        try {
+            if(Files.exists(this.filePath)) {
+                map(FileChannel.open(this.filePath, StandardOpenOption.READ, StandardOpenOption.WRITE));
+                int version = buffer.getInt(4);
+                if(buffer.getInt(0) != MAGIC || version < 1 || version > VERSION)
+                    throw new IOException("File " + filePath + " is not a guild config store of version " + VERSION);
+                if(version < VERSION) {
+                    rebuild(buffer.getInt(CAPACITY_OFFSET), version);
+                    LOG.info("Upgraded guild config store from version {} to {}", version, VERSION);
+                }
+                LOG.info("Mapped guild config store with {} configs", buffer.getInt(COUNT_OFFSET));
+            } else {
+                createStore(this.filePath, INITIAL_CAPACITY, INITIAL_CAPACITY * 64L);
+                map(FileChannel.open(this.filePath, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            }
+        } catch(IOException ex) {
+            throw new RuntimeException("Could not open guild config store", ex);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            lock.writeLock().lock();
+            try {
+                buffer.force();
+                channel.close();
+            } catch(IOException ignored) {
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }));
+    }
+
+    @Override
+    public @NotNull Set<IGuildConfig> getAllConfigurations() {
+        Set<IGuildConfig> configs = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            int capacity = buffer.getInt(CAPACITY_OFFSET);
+            for(int slot = 0; slot < capacity; slot++) {
+                long guildId = buffer.getLong(slotPosition(slot));
+                if(guildId != 0)
+                    configs.add(readRecord(guildId, buffer.getLong(slotPosition(slot) + 8)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return configs;
+    }
+
+    @Override
+    protected MMapGuildConfig createConfig(long guildId) {
+        MMapGuildConfig config = new MMapGuildConfig(guildId);
+        update(config);
+        return config;
+    }
+
+    @Override
+    protected MMapGuildConfig getConfig(long guildId) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(guildId);
+            long slotGuildId = buffer.getLong(slotPosition(slot));
+            return slotGuildId == 0 ? null : readRecord(guildId, buffer.getLong(slotPosition(slot) + 8));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEachConfiguration(long afterGuildId, int fetchSize, @NotNull Consumer<? super IGuildConfig> consumer) {
+        TLongList guildIds = new TLongArrayList();
+        lock.readLock().lock();
+        try {
+            int capacity = buffer.getInt(CAPACITY_OFFSET);
+            for(int slot = 0; slot < capacity; slot++) {
+                long guildId = buffer.getLong(slotPosition(slot));
+                if(guildId != 0 && guildId > afterGuildId)
+                    guildIds.add(guildId);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        guildIds.sort();
+
+        //records are read in chunks, so updates aren't blocked for the whole iteration
+        int chunkSize = Math.max(1, fetchSize);
+        List<MMapGuildConfig> chunk = new ArrayList<>(Math.min(chunkSize, guildIds.size()));
+        for(int from = 0; from < guildIds.size(); from += chunkSize) {
+            lock.readLock().lock();
+            try {
+                for(int i = from; i < Math.min(from + chunkSize, guildIds.size()); i++) {
+                    long guildId = guildIds.get(i);
+                    int slotPosition = slotPosition(findSlot(guildId));
+                    //the store may have been rebuilt in the meantime, so look up the slot again
+                    if(buffer.getLong(slotPosition) == guildId)
+                        chunk.add(readRecord(guildId, buffer.getLong(slotPosition + 8)));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            chunk.forEach(consumer);
+            chunk.clear();
+        }
+    }
+
+    @Override
+    public void importConfigurations(@NotNull Collection<? extends IGuildConfig> configs) {
+        List<Record> records = new ArrayList<>(configs.size());
+        for(IGuildConfig config : configs)
+            records.add(new Record(config));
+        lock.writeLock().lock();
+        try {
+            //syncs once for all records and once for all slots
+            writeRecords(records);
+        } catch(IOException ex) {
+            throw new UncheckedIOException("Could not import guild configs into guild config store", ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        //cached state is older than the imported one
+        if(configCache != null) {
+            for(Record record : records)
+                configCache.remove(record.guildId);
+        }
+    }
+
+    private void update(MMapGuildConfig config) {
+        List<Record> records = Collections.singletonList(new Record(config));
+        lock.writeLock().lock();
+        try {
+            writeRecords(records);
+        } catch(IOException ex) {
+            LOG.error("Could not update config of guild {} in guild config store", config.getGuildId(), ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends new records of the given configs and points their slots to them. Requires the write lock.
+     * <p>
+     * All records are synced before the first slot is re-pointed, so no slot ever references a record which isn't fully on disk.
+     * Index growth or compaction happens up front, since a rebuild only keeps records which are referenced by a slot.
+     */
+    private void writeRecords(List<Record> records) throws IOException {
+        int capacity = buffer.getInt(CAPACITY_OFFSET);
+        TLongSet newIds = new TLongHashSet();
+        for(Record record : records) {
+            if(buffer.getLong(slotPosition(findSlot(record.guildId))) == 0)
+                newIds.add(record.guildId);
+        }
+        int newCapacity = capacity;
+        while(buffer.getInt(COUNT_OFFSET) + newIds.size() > newCapacity * MAX_LOAD_FACTOR)
+            newCapacity *= 2;
+        if(newCapacity != capacity)
+            rebuild(newCapacity, VERSION);
+        else if(newIds.size() < records.size() && shouldCompact())
+            rebuild(capacity, VERSION);
+
+        long[] offsets = new long[records.size()];
+        for(int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            long offset = buffer.getLong(DATA_END_OFFSET);
+            ensureSize(offset + record.size());
+            writeRecord(offset, record.announcerIds, record.announcementIds, record.subsEnabled, record.schedules);
+            buffer.putLong(DATA_END_OFFSET, offset + record.size());
+            offsets[i] = offset;
+        }
+        buffer.force();
+
+        for(int i = 0; i < records.size(); i++) {
+            long guildId = records.get(i).guildId;
+            int slotPosition = slotPosition(findSlot(guildId));
+            if(buffer.getLong(slotPosition) == 0) {
+                buffer.putLong(slotPosition + 8, offsets[i]);
+                buffer.putLong(slotPosition, guildId);
+                buffer.putInt(COUNT_OFFSET, buffer.getInt(COUNT_OFFSET) + 1);
+            } else {
+                long oldOffset = buffer.getLong(slotPosition + 8);
+                buffer.putLong(GARBAGE_OFFSET, buffer.getLong(GARBAGE_OFFSET) + recordSize(buffer, (int) oldOffset, VERSION));
+                buffer.putLong(slotPosition + 8, offsets[i]);
+            }
+        }
+        buffer.force();
+    }
+
+    private MMapGuildConfig readRecord(long guildId, long offset) {
+        int position = (int) offset;
+        MMapGuildConfig config = new MMapGuildConfig(guildId);
+        position = readIds(position, config.getAnnouncerRoleIds());
+        position = readIds(position, config.getAnnouncementRoleIds());
+        config.setSubscriptionsEnabled(buffer.get(position++) != 0);
+        int scheduleCount = buffer.getInt(position);
+        position += 4;
+        for(int i = 0; i < scheduleCount; i++) {
+            long id = buffer.getLong(position);
+            long channelId = buffer.getLong(position + 8);
+            long roleId = buffer.getLong(position + 16);
+            long nextRun = buffer.getLong(position + 24);
+            long interval = buffer.getLong(position + 32);
+            position += 40;
+            String text = readString(position);
+            position += 4 + buffer.getInt(position);
+            String authorName = readString(position);
+            position += 4 + buffer.getInt(position);
+            String authorAvatarUrl = readString(position);
+            position += 4 + buffer.getInt(position);
+            config.putScheduledAnnouncement(new ScheduledAnnouncement(id, guildId, channelId, roleId, nextRun, interval,
+                    text, authorName, authorAvatarUrl));
+        }
+        return config;
+    }
+
+    private String readString(int position) {
+        byte[] bytes = new byte[buffer.getInt(position)];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(position + 4 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readIds(int position, TLongSet target) {
+        int count = buffer.getInt(position);
+        position += 4;
+        for(int i = 0; i < count; i++, position += 8)
+            target.add(buffer.getLong(position));
+        return position;
+    }
+
+    private void writeRecord(long offset, long[] announcerIds, long[] announcementIds, boolean subsEnabled, byte[] schedules) {
+        int position = writeIds((int) offset, announcerIds);
+        position = writeIds(position, announcementIds);
+        buffer.put(position++, (byte) (subsEnabled ? 1 : 0));
+        for(byte b : schedules)
+            buffer.put(position++, b);
+    }
+
+    //schedule count + schedules, encoded up front to know the record size
+    private static byte[] encodeSchedules(List<ScheduledAnnouncement> announcements) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(announcements.size());
+            for(ScheduledAnnouncement announcement : announcements) {
+                out.writeLong(announcement.getId());
+                out.writeLong(announcement.getChannelId());
+                out.writeLong(announcement.getRoleId());
+                out.writeLong(announcement.getNextRun());
+                out.writeLong(announcement.getInterval());
+                writeString(out, announcement.getText());
+                writeString(out, announcement.getAuthorName());
+                writeString(out, announcement.getAuthorAvatarUrl());
+            }
+        } catch(IOException ex) {
+            //in-memory stream
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private int writeIds(int position, long[] ids) {
+        buffer.putInt(position, ids.length);
+        position += 4;
+        for(long id : ids) {
+            buffer.putLong(position, id);
+            position += 8;
+        }
+        return position;
+    }
+
+    //size of the record at given offset, in the layout of given version
+    private static int recordSize(ByteBuffer source, int offset, int version) {
+        int announcerCount = source.getInt(offset);
+        int announcementCount = source.getInt(offset + 4 + announcerCount * 8);
+        int size = recordSize(announcerCount, announcementCount);
+        if(version < 2)
+            return size;
+        int position = offset + size;
+        int scheduleCount = source.getInt(position);
+        position += 4;
+        for(int i = 0; i < scheduleCount; i++) {
+            position += 40;
+            //text, author name, author avatar url
+            for(int j = 0; j < 3; j++)
+                position += 4 + source.getInt(position);
+        }
+        return position - offset;
+    }
+
+    //size of a record without its scheduled announcements
+    private static int recordSize(int announcerCount, int announcementCount) {
+        return 4 + announcerCount * 8 + 4 + announcementCount * 8 + 1;
+    }
+
+    private int findSlot(long guildId) {
+        int mask = buffer.getInt(CAPACITY_OFFSET) - 1;
+        int slot = hash(guildId) & mask;
+        while(true) {
+            long slotGuildId = buffer.getLong(slotPosition(slot));
+            if(slotGuildId == 0 || slotGuildId == guildId)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int hash(long guildId) {
+        //snowflakes share their low (increment) bits a lot, so spread all bits
+        long h = guildId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private boolean shouldCompact() {
+        long dataStart = slotPosition(buffer.getInt(CAPACITY_OFFSET));
+        long dataSize = buffer.getLong(DATA_END_OFFSET) - dataStart;
+        return dataSize > MIN_COMPACT_SIZE && buffer.getLong(GARBAGE_OFFSET) > dataSize / 2;
+    }
+
+    private void ensureSize(long requiredSize) throws IOException {
+        if(requiredSize <= buffer.capacity())
+            return;
+        long newSize = Math.max(requiredSize, buffer.capacity() * 2L);
+        if(newSize > Integer.MAX_VALUE)
+            throw new IOException("Guild config store exceeds maximum size");
+        buffer.force();
+        channel.write(ByteBuffer.wrap(new byte[1]), newSize - 1);
+        MappedByteBuffer oldBuffer = buffer;
+        map(channel);
+        unmap(oldBuffer);
+    }
+
+    /**
+     * Writes all live records into a new file with given index capacity (dropping superseded records)
+     * and atomically replaces the current file with it.
+     * Records of older versions are converted to the current layout on the way.
+     */
+    private void rebuild(int newCapacity, int sourceVersion) throws IOException {
+        Path tmpPath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        long liveSize = buffer.getLong(DATA_END_OFFSET) - slotPosition(buffer.getInt(CAPACITY_OFFSET)) - buffer.getLong(GARBAGE_OFFSET);
+        createStore(tmpPath, newCapacity, slotPosition(newCapacity) + liveSize * 2 + 1024);
+
+        MappedByteBuffer oldBuffer = buffer;
+        FileChannel oldChannel = channel;
+        int oldCapacity = oldBuffer.getInt(CAPACITY_OFFSET);
+        map(FileChannel.open(tmpPath, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        int count = 0;
+        try {
+            long dataEnd = buffer.getLong(DATA_END_OFFSET);
+            for(int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+                long guildId = oldBuffer.getLong(slotPosition(oldSlot));
+                if(guildId == 0)
+                    continue;
+                int oldOffset = (int) oldBuffer.getLong(slotPosition(oldSlot) + 8);
+                int size = recordSize(oldBuffer, oldOffset, sourceVersion);
+                //version 1 records lack the schedule count
+                int newSize = sourceVersion < 2 ? size + 4 : size;
+                ensureSize(dataEnd + newSize);
+                for(int i = 0; i < size; i++)
+                    buffer.put((int) dataEnd + i, oldBuffer.get(oldOffset + i));
+                if(newSize != size)
+                    buffer.putInt((int) dataEnd + size, 0);
+                int slotPosition = slotPosition(findSlot(guildId));
+                buffer.putLong(slotPosition + 8, dataEnd);
+                buffer.putLong(slotPosition, guildId);
+                dataEnd += newSize;
+                count++;
+            }
+            buffer.putLong(DATA_END_OFFSET, dataEnd);
+            buffer.putInt(COUNT_OFFSET, count);
+            buffer.force();
+            Files.move(tmpPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException | RuntimeException ex) {
+            //keep using the old file
+            MappedByteBuffer tmpBuffer = buffer;
+            FileChannel tmpChannel = channel;
+            buffer = oldBuffer;
+            channel = oldChannel;
+            unmap(tmpBuffer);
+            tmpChannel.close();
+            Files.deleteIfExists(tmpPath);
+            throw ex;
+        }
+        unmap(oldBuffer);
+        oldChannel.close();
+        LOG.debug("Rebuilt guild config store with capacity {} ({} configs)", newCapacity, count);
+    }
+
+    private void map(FileChannel newChannel) throws IOException {
+        channel = newChannel;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+
+    //releases a mapping right away instead of whenever it is garbage collected, must not be accessed anymore afterwards
+    private static void unmap(MappedByteBuffer mapping) {
+        try {
+            //java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), mapping);
+        } catch(NoSuchMethodException ex) {
+            //java 8
+            try {
+                Method cleanerMethod = mapping.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(mapping);
+                if(cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch(ReflectiveOperationException | RuntimeException ex2) {
+                LOG.debug("Could not unmap guild config store mapping, leaving it to the garbage collector", ex2);
+            }
+        } catch(ReflectiveOperationException | RuntimeException ex) {
+            LOG.debug("Could not unmap guild config store mapping, leaving it to the garbage collector", ex);
+        }
+    }
+
+    private static void createStore(Path path, int capacity, long size) throws IOException {
+        try(FileChannel newChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            newBuffer.putInt(0, MAGIC);
+            newBuffer.putInt(4, VERSION);
+            newBuffer.putInt(CAPACITY_OFFSET, capacity);
+            newBuffer.putInt(COUNT_OFFSET, 0);
+            newBuffer.putLong(DATA_END_OFFSET, slotPosition(capacity));
+            newBuffer.putLong(GARBAGE_OFFSET, 0);
+            newBuffer.force();
+        }
+    }
+
+    //encoded state of a config, taken before acquiring the write lock
+    private static final class Record {
+        private final long guildId;
+        private final long[] announcerIds;
+        private final long[] announcementIds;
+        private final boolean subsEnabled;
+        private final byte[] schedules;
+
+        private Record(IGuildConfig config) {
+            this.guildId = config.getGuildId();
+            this.announcerIds = config.getAnnouncerRoleIds().toArray();
+            this.announcementIds = config.getAnnouncementRoleIds().toArray();
+            this.subsEnabled = config.isSubscriptionsEnabled();
+            this.schedules = encodeSchedules(config.getScheduledAnnouncements());
+        }
+
+        private int size() {
+            return recordSize(announcerIds.length, announcementIds.length) + schedules.length;
+        }
+    }
+
+    public class MMapGuildConfig extends AbstractGuildConfigProvider.AbstractGuildConfig {
+        private MMapGuildConfig(long guildId) {
+            super(guildId);
+        }
+
+        @Override
+        public void update() {
+            MMapGuildConfigProvider.this.update(this);
+        }
+    }
+}
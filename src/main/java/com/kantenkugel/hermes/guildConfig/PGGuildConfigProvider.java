@@ -1,30 +1,129 @@
 package com.kantenkugel.hermes.guildConfig;
 
+import com.kantenkugel.common.ConnectionPool;
+import com.kantenkugel.common.Histogram;
+import com.kantenkugel.common.MetricsRegistry;
+import com.kantenkugel.hermes.Utils;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
 import org.jetbrains.annotations.NotNull;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class PGGuildConfigProvider extends AbstractGuildConfigProvider<PGGuildConfigProvider.PGConfigObject> {
     private static final Logger LOG = LoggerFactory.getLogger(PGGuildConfigProvider.class);
     private static final String DEFAULT_CONNECT_PATH = "jdbc:postgresql://localhost/hermes?user=hermes&password=hermespw";
+    private static final int DEFAULT_POOL_SIZE = 4;
+    private static final long DEFAULT_POOL_TIMEOUT = 5000;
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 100;
+    private static final int DEFAULT_PREFETCH_CHUNK_SIZE = 500;
+    private static final int DEFAULT_PREFETCH_CONCURRENCY = 2;
+    //number of flushes a failing write-behind update is tried in before it is dropped
+    private static final int MAX_WRITE_ATTEMPTS = 5;
 
-    private final Connection connection;
-    private final PreparedStatement fetchStatement;
-    private final PreparedStatement insertStatement;
-    private final PreparedStatement updateStatement;
+    private static final String FETCH_SQL = "SELECT * FROM guildConfigs WHERE guildId = ?;";
+    private static final String FETCH_MANY_SQL = "SELECT * FROM guildConfigs WHERE guildId = ANY(?);";
+    private static final String INSERT_SQL = "INSERT INTO guildConfigs VALUES (?);";
+    private static final String UPSERT_SQL = "INSERT INTO guildConfigs (guildId, announcerRoleIds, announcementRoleIds, subsEnabled, scheduledAnnouncements) " +
+            "VALUES (?, ?, ?, ?, ?) ON CONFLICT (guildId) DO UPDATE SET announcerRoleIds = EXCLUDED.announcerRoleIds, " +
+            "announcementRoleIds = EXCLUDED.announcementRoleIds, subsEnabled = EXCLUDED.subsEnabled, " +
+            "scheduledAnnouncements = EXCLUDED.scheduledAnnouncements";
+    private static final String FETCH_SCHEDULED_SQL = "SELECT guildId, scheduledAnnouncements FROM guildConfigs WHERE scheduledAnnouncements <> '[]'";
+    private static final String FETCH_AFTER_SQL = "SELECT * FROM guildConfigs WHERE guildId > ? ORDER BY guildId";
+
+    private final ConnectionPool pool;
+    private final Histogram fetchLatency = createLatencyHistogram("pg_fetch");
+    private final Histogram prefetchLatency = createLatencyHistogram("pg_prefetch");
+    private final Histogram writeLatency = createLatencyHistogram("pg_write");
+    private final Histogram batchWriteLatency = createLatencyHistogram("pg_write_batch");
+
+    //write-behind: latest unsaved state per guild (null if disabled)
+    private final ConcurrentHashMap<Long, ConfigRow> dirtyConfigs;
+    private final ScheduledExecutorService flushExecutor;
+    private final int writeBatchSize;
+
+    private final int prefetchChunkSize;
+    private final int prefetchConcurrency;
 
     public PGGuildConfigProvider() {
         this(DEFAULT_CONNECT_PATH);
     }
 
-    public PGGuildConfigProvider(String connectString) {
-        try {
-            connection = DriverManager.getConnection(connectString);
-            Statement statement = connection.createStatement();
+    /**
+     * Creates a new provider.
+     * The args consist of the jdbc connect string, optionally followed by whitespace-separated pool options:
+     * <ul>
+     *     <li>{@code poolSize=<n>} - Max number of parallel connections (default 4)</li>
+     *     <li>{@code poolTimeout=<ms>} - Max time to wait for a free connection (default 5000)</li>
+     *     <li>{@code writeBehind=<ms>} - Enables write-behind of config updates with given flush interval (default 0 = disabled)</li>
+     *     <li>{@code writeBatchSize=<n>} - Number of pending updates which trigger an early flush (default 100)</li>
+     *     <li>{@code prefetchChunkSize=<n>} - Number of configs fetched per query when prefetching (default 500)</li>
+     *     <li>{@code prefetchConcurrency=<n>} - Number of parallel prefetch queries (default 2)</li>
+     * </ul>
+     *
+     * @param   args
+     *          The connect string + pool options
+     */
+    public PGGuildConfigProvider(String args) {
+        String[] splits = args.trim().split("\\s+");
+        String connectString = splits[0];
+        int poolSize = DEFAULT_POOL_SIZE;
+        long poolTimeout = DEFAULT_POOL_TIMEOUT;
+        long writeBehind = 0;
+        int batchSize = DEFAULT_WRITE_BATCH_SIZE;
+        int chunkSize = DEFAULT_PREFETCH_CHUNK_SIZE;
+        int concurrency = DEFAULT_PREFETCH_CONCURRENCY;
+        for(int i = 1; i < splits.length; i++) {
+            String[] option = splits[i].split("=", 2);
+            try {
+                switch(option[0].toLowerCase()) {
+                    case "poolsize":
+                        poolSize = Integer.parseInt(option[1]);
+                        break;
+                    case "pooltimeout":
+                        poolTimeout = Long.parseLong(option[1]);
+                        break;
+                    case "writebehind":
+                        writeBehind = Long.parseLong(option[1]);
+                        break;
+                    case "writebatchsize":
+                        batchSize = Integer.parseInt(option[1]);
+                        break;
+                    case "prefetchchunksize":
+                        chunkSize = Integer.parseInt(option[1]);
+                        break;
+                    case "prefetchconcurrency":
+                        concurrency = Integer.parseInt(option[1]);
+                        break;
+                    default:
+                        LOG.warn("Unknown PGGuildConfigProvider option {}", splits[i]);
+                }
+            } catch(NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                LOG.warn("Invalid value for PGGuildConfigProvider option {}", splits[i]);
+            }
+        }
+
+        pool = new ConnectionPool(connectString, Math.max(1, poolSize), poolTimeout);
+        try(ConnectionPool.PooledConnection conn = pool.borrow();
+                Statement statement = conn.getConnection().createStatement()) {
             statement.executeUpdate(
                     "CREATE TABLE IF NOT EXISTS guildConfigs" +
                     "(" +
@@ -35,30 +134,74 @@ public class PGGuildConfigProvider extends AbstractGuildConfigProvider<PGGuildCo
                     " CONSTRAINT guildConfigs_pk PRIMARY KEY (guildid)" +
                     ");"
             );
-            statement.close();
-            fetchStatement = connection.prepareStatement("SELECT * FROM guildConfigs WHERE guildId = ?;");
-            insertStatement = connection.prepareStatement("INSERT INTO guildConfigs VALUES (?);");
-            updateStatement = connection.prepareStatement("UPDATE guildConfigs SET announcerRoleIds = ?, announcementRoleIds = ?, subsEnabled = ? WHERE guildId = ?");
-
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                try {
-                    fetchStatement.close();
-                    insertStatement.close();
-                    updateStatement.close();
-                    connection.close();
-                } catch(SQLException ignored) {}
-            }));
+            //added with scheduled announcements, stored as json array
+            statement.executeUpdate("ALTER TABLE guildConfigs ADD COLUMN IF NOT EXISTS scheduledAnnouncements text NOT NULL DEFAULT '[]';");
         } catch(SQLException e) {
+            pool.close();
             throw new RuntimeException("Could not connect to pg database", e);
         }
+
+        writeBatchSize = Math.max(1, batchSize);
+        prefetchChunkSize = Math.max(1, chunkSize);
+        prefetchConcurrency = Math.max(1, concurrency);
+        if(writeBehind > 0) {
+            dirtyConfigs = new ConcurrentHashMap<>();
+            flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "PGGuildConfigProvider-Flush");
+                t.setDaemon(true);
+                return t;
+            });
+            flushExecutor.scheduleWithFixedDelay(this::flush, writeBehind, writeBehind, TimeUnit.MILLISECONDS);
+        } else {
+            dirtyConfigs = null;
+            flushExecutor = null;
+        }
+
+        MetricsRegistry metrics = Utils.getMetrics();
+        metrics.gauge("hermes_pg_pool_active", "Borrowed database connections", pool::getActiveCount);
+        metrics.gauge("hermes_pg_pool_open", "Open database connections", pool::getOpenCount);
+        metrics.counter("hermes_pg_pool_borrows_total", "Database connections borrowed from the pool", pool::getBorrowCount);
+        metrics.counter("hermes_pg_pool_wait_nanos_total", "Total time spent waiting for a free database connection", pool::getTotalWaitNanos);
+        metrics.counter("hermes_pg_pool_timeouts_total", "Timeouts waiting for a free database connection", pool::getTimeoutCount);
+        metrics.counter("hermes_pg_pool_discarded_total", "Broken database connections which were discarded", pool::getDiscardCount);
+        if(dirtyConfigs != null)
+            metrics.gauge("hermes_pg_pending_writes", "Config updates waiting for the next write-behind flush", dirtyConfigs::size);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if(flushExecutor != null) {
+                flushExecutor.shutdown();
+                try {
+                    flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+                } catch(InterruptedException ignored) {}
+                //final flush of everything still pending
+                flush();
+            }
+            LOG.info("Closing connection pool: {}", pool);
+            pool.close();
+        }));
+    }
+
+    /**
+     * @return  The connection pool of this provider (for metrics)
+     */
+    @NotNull
+    public ConnectionPool getConnectionPool() {
+        return pool;
     }
 
     @Override
     public @NotNull Set<IGuildConfig> getAllConfigurations() {
+        flush();
         Set<IGuildConfig> configs = new HashSet<>();
-        try(ResultSet rs = connection.createStatement().executeQuery("SELECT * FROM guildConfigs")) {
-            while(rs.next()) {
-                configs.add(new PGConfigObject(rs.getLong("guildId"), rs));
+        try(ConnectionPool.PooledConnection conn = pool.borrow()) {
+            try(Statement statement = conn.getConnection().createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT * FROM guildConfigs")) {
+                while(rs.next()) {
+                    configs.add(new PGConfigObject(rs.getLong("guildId"), rs));
+                }
+            } catch(SQLException e) {
+                conn.checkError(e);
+                throw e;
             }
         } catch(SQLException e) {
             LOG.error("Error creating/Executing query", e);
@@ -66,12 +209,168 @@ public class PGGuildConfigProvider extends AbstractGuildConfigProvider<PGGuildCo
         return configs;
     }
 
+    @Override
+    public void forEachConfiguration(long afterGuildId, int fetchSize, @NotNull Consumer<? super IGuildConfig> consumer) {
+        flush();
+        try(ConnectionPool.PooledConnection conn = pool.borrow()) {
+            Connection connection = conn.getConnection();
+            //the driver only uses a cursor (instead of loading all rows) inside a transaction
+            connection.setAutoCommit(false);
+            try(PreparedStatement statement = connection.prepareStatement(FETCH_AFTER_SQL)) {
+                statement.setFetchSize(Math.max(1, fetchSize));
+                statement.setLong(1, afterGuildId);
+                try(ResultSet rs = statement.executeQuery()) {
+                    while(rs.next())
+                        consumer.accept(new PGConfigObject(rs.getLong("guildId"), rs));
+                }
+            } catch(SQLException e) {
+                conn.checkError(e);
+                throw e;
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch(SQLException e) {
+            throw new RuntimeException("Error reading guild configs", e);
+        }
+    }
+
+    @Override
+    public void importConfigurations(@NotNull Collection<? extends IGuildConfig> configs) {
+        List<ConfigRow> rows = new ArrayList<>(configs.size());
+        for(IGuildConfig config : configs) {
+            rows.add(new ConfigRow(config));
+            //pending or cached state is older than the imported one
+            if(dirtyConfigs != null)
+                dirtyConfigs.remove(config.getGuildId());
+            if(configCache != null)
+                configCache.remove(config.getGuildId());
+        }
+        long start = System.nanoTime();
+        try(ConnectionPool.PooledConnection conn = pool.borrow()) {
+            Connection connection = conn.getConnection();
+            //one transaction for the whole batch
+            connection.setAutoCommit(false);
+            try {
+                upsert(conn, rows);
+                connection.commit();
+            } catch(SQLException e) {
+                conn.checkError(e);
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch(SQLException e) {
+            throw new RuntimeException("Error importing " + rows.size() + " guild configs", e);
+        } finally {
+            batchWriteLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public @NotNull CompletableFuture<List<ScheduledAnnouncement>> getAllScheduledAnnouncements() {
+        return CompletableFuture.supplyAsync(() -> {
+            flush();
+            List<ScheduledAnnouncement> announcements = new ArrayList<>();
+            try(ConnectionPool.PooledConnection conn = pool.borrow()) {
+                //only guilds which actually have some
+                try(Statement statement = conn.getConnection().createStatement();
+                        ResultSet rs = statement.executeQuery(FETCH_SCHEDULED_SQL)) {
+                    while(rs.next()) {
+                        long guildId = rs.getLong("guildId");
+                        try {
+                            announcements.addAll(ScheduledAnnouncement.fromJson(guildId, new JSONArray(rs.getString("scheduledAnnouncements"))));
+                        } catch(JSONException ex) {
+                            LOG.error("Invalid scheduled announcements of guild id {}", guildId, ex);
+                        }
+                    }
+                } catch(SQLException e) {
+                    conn.checkError(e);
+                    throw e;
+                }
+            } catch(SQLException e) {
+                LOG.error("Error fetching scheduled announcements", e);
+            }
+            return announcements;
+        }, getIOExecutor());
+    }
+
+    @Override
+    public @NotNull CompletableFuture<Void> prefetchConfigs(@NotNull long[] guildIds) {
+        if(configCache == null || guildIds.length == 0)
+            return CompletableFuture.completedFuture(null);
+        //no point in loading more than the cache can hold
+        long[] toFetch = configCache.getMaxSize() > 0 && guildIds.length > configCache.getMaxSize()
+                ? Arrays.copyOf(guildIds, configCache.getMaxSize())
+                : guildIds;
+        int chunkCount = (toFetch.length + prefetchChunkSize - 1) / prefetchChunkSize;
+        int workers = Math.min(prefetchConcurrency, chunkCount);
+        CompletableFuture<?>[] futures = new CompletableFuture[workers];
+        for(int worker = 0; worker < workers; worker++) {
+            int firstChunk = worker;
+            futures[worker] = CompletableFuture.runAsync(() -> {
+                for(int chunk = firstChunk; chunk < chunkCount; chunk += workers) {
+                    int from = chunk * prefetchChunkSize;
+                    prefetchChunk(Arrays.copyOfRange(toFetch, from, Math.min(from + prefetchChunkSize, toFetch.length)));
+                }
+            }, getIOExecutor());
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    private void prefetchChunk(long[] guildIds) {
+        Long[] boxedIds = new Long[guildIds.length];
+        for(int i = 0; i < guildIds.length; i++)
+            boxedIds[i] = guildIds[i];
+        long start = System.nanoTime();
+        try(ConnectionPool.PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement fetchStatement = conn.prepareStatement(FETCH_MANY_SQL);
+                fetchStatement.setArray(1, conn.getConnection().createArrayOf("bigint", boxedIds));
+                TLongSet found = new TLongHashSet(guildIds.length);
+                try(ResultSet resultSet = fetchStatement.executeQuery()) {
+                    while(resultSet.next()) {
+                        long guildId = resultSet.getLong("guildId");
+                        found.add(guildId);
+                        //pending write-behind state is newer than the database
+                        if(dirtyConfigs == null || !dirtyConfigs.containsKey(guildId))
+                            configCache.putIfAbsent(guildId, new PGConfigObject(guildId, resultSet));
+                    }
+                }
+                //guilds without a row get a fresh config, its row is created (upserted) on the first update
+                for(long guildId : guildIds) {
+                    if(!found.contains(guildId) && (dirtyConfigs == null || !dirtyConfigs.containsKey(guildId)))
+                        configCache.putIfAbsent(guildId, new PGConfigObject(guildId));
+                }
+            } catch(SQLException e) {
+                conn.checkError(e);
+                throw e;
+            }
+        } catch(SQLException e) {
+            LOG.error("Error prefetching configs of {} guilds", guildIds.length, e);
+        } finally {
+            prefetchLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    protected int getIOThreadCount() {
+        return pool.getMaxSize();
+    }
+
     @Override
     protected PGConfigObject createConfig(long guildId) {
-        try {
-            insertStatement.setLong(1, guildId);
-            insertStatement.executeUpdate();
-            return new PGConfigObject(guildId);
+        try(ConnectionPool.PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement insertStatement = conn.prepareStatement(INSERT_SQL);
+                insertStatement.setLong(1, guildId);
+                insertStatement.executeUpdate();
+                return new PGConfigObject(guildId);
+            } catch(SQLException e) {
+                conn.checkError(e);
+                throw e;
+            }
         } catch(SQLException e) {
             LOG.error("Could not create new config entry for guild id {}", guildId, e);
         }
@@ -80,29 +379,158 @@ public class PGGuildConfigProvider extends AbstractGuildConfigProvider<PGGuildCo
 
     @Override
     protected PGConfigObject getConfig(long guildId) {
-        try {
-            fetchStatement.setLong(1, guildId);
-            try(ResultSet resultSet = fetchStatement.executeQuery()) {
-                if(resultSet.next()) {
-                    return new PGConfigObject(guildId, resultSet);
+        //config may have been evicted from cache while its update is still pending
+        if(dirtyConfigs != null) {
+            ConfigRow pending = dirtyConfigs.get(guildId);
+            if(pending != null)
+                return new PGConfigObject(pending);
+        }
+        long start = System.nanoTime();
+        try(ConnectionPool.PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement fetchStatement = conn.prepareStatement(FETCH_SQL);
+                fetchStatement.setLong(1, guildId);
+                try(ResultSet resultSet = fetchStatement.executeQuery()) {
+                    if(resultSet.next()) {
+                        return new PGConfigObject(guildId, resultSet);
+                    }
+                    return null;
                 }
-                return null;
+            } catch(SQLException e) {
+                conn.checkError(e);
+                throw e;
             }
         } catch(SQLException e) {
             LOG.error("Error fetching config for guild with id {}", guildId, e);
+        } finally {
+            fetchLatency.recordSince(start);
         }
         return null;
     }
 
     private void update(PGConfigObject confObject) {
-        try {
-            updateStatement.setObject(1, confObject.getAnnouncerIds());
-            updateStatement.setObject(2, confObject.getAnnouncementIds());
-            updateStatement.setBoolean(3, confObject.isSubscriptionsEnabled());
-            updateStatement.setLong(4, confObject.getGuildId());
-            updateStatement.executeUpdate();
+        //snapshot taken by the updating thread, the config itself may change again before it is written
+        ConfigRow row = new ConfigRow(confObject);
+        if(dirtyConfigs != null) {
+            //only the latest state of each guild is written on flush
+            dirtyConfigs.put(row.guildId, row);
+            if(dirtyConfigs.size() >= writeBatchSize) {
+                try {
+                    flushExecutor.execute(this::flush);
+                } catch(RejectedExecutionException ex) {
+                    //shutting down, the final flush might already be done
+                    flush();
+                }
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        try(ConnectionPool.PooledConnection conn = pool.borrow()) {
+            try {
+                //upsert, prefetched configs of new guilds don't have a row yet
+                upsert(conn, Collections.singletonList(row));
+            } catch(SQLException e) {
+                conn.checkError(e);
+                throw e;
+            }
         } catch(SQLException e) {
             LOG.error("Error updating config object with new values (guild id {})", confObject.getGuildId(), e);
+        } finally {
+            writeLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Writes all pending (write-behind) updates to the database, using batched upserts.
+     * Updates stay pending (and visible to reads) until they are written, unless a newer update replaced them.
+     * Failed updates are retried on the next flush and dropped after failing {@value #MAX_WRITE_ATTEMPTS} times.
+     */
+    private synchronized void flush() {
+        if(dirtyConfigs == null || dirtyConfigs.isEmpty())
+            return;
+        List<ConfigRow> batch = new ArrayList<>(Math.min(writeBatchSize, dirtyConfigs.size()));
+        for(ConfigRow config : dirtyConfigs.values()) {
+            batch.add(config);
+            if(batch.size() >= writeBatchSize) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+        if(!batch.isEmpty())
+            writeBatch(batch);
+    }
+
+    private void writeBatch(List<ConfigRow> batch) {
+        long start = System.nanoTime();
+        try(ConnectionPool.PooledConnection conn = pool.borrow()) {
+            try {
+                upsert(conn, batch);
+            } catch(SQLException e) {
+                conn.checkError(e);
+                throw e;
+            }
+            //only if no newer update came in meanwhile
+            for(ConfigRow config : batch)
+                dirtyConfigs.remove(config.guildId, config);
+        } catch(SQLException e) {
+            LOG.error("Error writing batch of {} config updates. Retrying on next flush", batch.size(), e);
+            for(ConfigRow config : batch) {
+                if(config.attempts + 1 < MAX_WRITE_ATTEMPTS) {
+                    dirtyConfigs.replace(config.guildId, config, config.retried());
+                } else if(dirtyConfigs.remove(config.guildId, config)) {
+                    LOG.error("Dropping config update of guild id {} after {} failed attempts", config.guildId, MAX_WRITE_ATTEMPTS);
+                }
+            }
+        } finally {
+            batchWriteLatency.recordSince(start);
+        }
+    }
+
+    private static void upsert(ConnectionPool.PooledConnection conn, List<ConfigRow> rows) throws SQLException {
+        PreparedStatement upsertStatement = conn.prepareStatement(UPSERT_SQL);
+        for(ConfigRow row : rows) {
+            upsertStatement.setLong(1, row.guildId);
+            upsertStatement.setObject(2, row.announcerIds);
+            upsertStatement.setObject(3, row.announcementIds);
+            upsertStatement.setBoolean(4, row.subsEnabled);
+            upsertStatement.setString(5, row.scheduledAnnouncementsJson);
+            upsertStatement.addBatch();
+        }
+        upsertStatement.executeBatch();
+    }
+
+    /**
+     * Immutable snapshot of a config as written to the database.
+     */
+    private static final class ConfigRow {
+        private final long guildId;
+        private final long[] announcerIds;
+        private final long[] announcementIds;
+        private final boolean subsEnabled;
+        private final String scheduledAnnouncementsJson;
+        //failed write attempts so far
+        private final int attempts;
+
+        private ConfigRow(IGuildConfig config) {
+            this.guildId = config.getGuildId();
+            this.announcerIds = config.getAnnouncerRoleIds().toArray();
+            this.announcementIds = config.getAnnouncementRoleIds().toArray();
+            this.subsEnabled = config.isSubscriptionsEnabled();
+            this.scheduledAnnouncementsJson = ScheduledAnnouncement.toJson(config.getScheduledAnnouncements()).toString();
+            this.attempts = 0;
+        }
+
+        private ConfigRow(ConfigRow other, int attempts) {
+            this.guildId = other.guildId;
+            this.announcerIds = other.announcerIds;
+            this.announcementIds = other.announcementIds;
+            this.subsEnabled = other.subsEnabled;
+            this.scheduledAnnouncementsJson = other.scheduledAnnouncementsJson;
+            this.attempts = attempts;
+        }
+
+        private ConfigRow retried() {
+            return new ConfigRow(this, attempts + 1);
         }
     }
 
@@ -112,6 +540,15 @@ public class PGGuildConfigProvider extends AbstractGuildConfigProvider<PGGuildCo
             super(guildId);
         }
 
+        private PGConfigObject(ConfigRow row) {
+            super(row.guildId, new TLongHashSet(row.announcerIds), new TLongHashSet(row.announcementIds), row.subsEnabled);
+            try {
+                for(ScheduledAnnouncement announcement : ScheduledAnnouncement.fromJson(guildId, new JSONArray(row.scheduledAnnouncementsJson)))
+                    this.scheduledAnnouncements.put(announcement.getId(), announcement);
+            } catch(JSONException e) {
+                LOG.error("Error populating config object from pending update (guild id: {})", guildId, e);
+            }
+        }
 
         private PGConfigObject(long guildId, ResultSet rs) {
             super(guildId);
@@ -125,19 +562,13 @@ public class PGGuildConfigProvider extends AbstractGuildConfigProvider<PGGuildCo
                 for(long announcementId: (Long[]) announcementRoleIds.getArray())
                     this.announcementRoles.add(announcementId);
                 this.subscriptionsEnabled = subsEnabled;
-            } catch(SQLException e) {
+                for(ScheduledAnnouncement announcement : ScheduledAnnouncement.fromJson(guildId, new JSONArray(rs.getString("scheduledAnnouncements"))))
+                    this.scheduledAnnouncements.put(announcement.getId(), announcement);
+            } catch(SQLException | JSONException e) {
                 LOG.error("Error populating config object from ResultSet (guild id: {})", guildId, e);
             }
         }
 
-        private long[] getAnnouncerIds() {
-            return announcerRoles.toArray();
-        }
-
-        private long[] getAnnouncementIds() {
-            return announcementRoles.toArray();
-        }
-
         @Override
         public void update() {
             PGGuildConfigProvider.this.update(this);
@@ -0,0 +1,160 @@
+package com.kantenkugel.hermes.guildConfig;
+
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An announcement which is posted at a given time and optionally repeated in a fixed interval.
+ * Stored as part of the {@link IGuildConfig} of its guild.
+ * <p>
+ * The author's name and avatar are captured when the announcement is scheduled,
+ * since members are not cached and the author might not be available anymore when it is posted.
+ */
+public class ScheduledAnnouncement {
+    private final long id;
+    private final long guildId;
+    private final long channelId;
+    private final long roleId;
+    private final long nextRun;
+    private final long interval;
+    private final String text;
+    private final String authorName;
+    private final String authorAvatarUrl;
+
+    /**
+     * Creates a new scheduled announcement.
+     *
+     * @param   id
+     *          The unique id of this announcement (id of the scheduling command message)
+     * @param   guildId
+     *          The id of the guild
+     * @param   channelId
+     *          The id of the channel to post the announcement in
+     * @param   roleId
+     *          The id of the role to mention
+     * @param   nextRun
+     *          The time (epoch millis) the announcement is posted next
+     * @param   interval
+     *          The interval (in milliseconds) in which the announcement is repeated, {@code 0} to only post it once
+     * @param   text
+     *          The announcement text
+     * @param   authorName
+     *          The name of the author shown in the announcement
+     * @param   authorAvatarUrl
+     *          The avatar url of the author shown in the announcement
+     */
+    public ScheduledAnnouncement(long id, long guildId, long channelId, long roleId, long nextRun, long interval,
+                                 @NotNull String text, @NotNull String authorName, @NotNull String authorAvatarUrl) {
+        this.id = id;
+        this.guildId = guildId;
+        this.channelId = channelId;
+        this.roleId = roleId;
+        this.nextRun = nextRun;
+        this.interval = interval;
+        this.text = text;
+        this.authorName = authorName;
+        this.authorAvatarUrl = authorAvatarUrl;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getGuildId() {
+        return guildId;
+    }
+
+    public long getChannelId() {
+        return channelId;
+    }
+
+    public long getRoleId() {
+        return roleId;
+    }
+
+    /**
+     * @return  The time (epoch millis) the announcement is posted next
+     */
+    public long getNextRun() {
+        return nextRun;
+    }
+
+    /**
+     * @return  The interval (in milliseconds) in which the announcement is repeated, {@code 0} if it is only posted once
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    public boolean isRecurring() {
+        return interval > 0;
+    }
+
+    @NotNull
+    public String getText() {
+        return text;
+    }
+
+    @NotNull
+    public String getAuthorName() {
+        return authorName;
+    }
+
+    @NotNull
+    public String getAuthorAvatarUrl() {
+        return authorAvatarUrl;
+    }
+
+    /**
+     * Creates a copy of this announcement with a different time of the next post.
+     *
+     * @param   nextRun
+     *          The time (epoch millis) the announcement is posted next
+     * @return  The updated copy
+     */
+    @NotNull
+    public ScheduledAnnouncement withNextRun(long nextRun) {
+        return new ScheduledAnnouncement(id, guildId, channelId, roleId, nextRun, interval, text, authorName, authorAvatarUrl);
+    }
+
+    @NotNull
+    public JSONObject toJson() {
+        return new JSONObject()
+                .put("id", id)
+                .put("channelId", channelId)
+                .put("roleId", roleId)
+                .put("nextRun", nextRun)
+                .put("interval", interval)
+                .put("text", text)
+                .put("authorName", authorName)
+                .put("authorAvatarUrl", authorAvatarUrl);
+    }
+
+    @NotNull
+    public static ScheduledAnnouncement fromJson(long guildId, @NotNull JSONObject json) {
+        return new ScheduledAnnouncement(json.getLong("id"), guildId, json.getLong("channelId"), json.getLong("roleId"),
+                json.getLong("nextRun"), json.getLong("interval"), json.getString("text"), json.getString("authorName"),
+                json.getString("authorAvatarUrl"));
+    }
+
+    @NotNull
+    public static JSONArray toJson(@NotNull Collection<ScheduledAnnouncement> announcements) {
+        JSONArray array = new JSONArray();
+        for(ScheduledAnnouncement announcement : announcements)
+            array.put(announcement.toJson());
+        return array;
+    }
+
+    @NotNull
+    public static List<ScheduledAnnouncement> fromJson(long guildId, @NotNull JSONArray json) {
+        List<ScheduledAnnouncement> announcements = new ArrayList<>(json.length());
+        for(int i = 0; i < json.length(); i++)
+            announcements.add(fromJson(guildId, json.getJSONObject(i)));
+        return announcements;
+    }
+}